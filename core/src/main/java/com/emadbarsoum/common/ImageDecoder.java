@@ -0,0 +1,138 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.bytedeco.javacpp.BytePointer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * ImageDecoder decode the values of image records one at a time, reusing its native buffers across
+ * records.
+ *
+ * A raw or rawz image is copied or decompressed straight into the image of the previous record when
+ * it has the same size and type. A compressed image is copied into a reusable native buffer before decoding, rather than into a
+ * new buffer as large as the whole BytesWritable backing array. The image returned by decode() belongs
+ * to the decoder and is only valid until the next call. This class isn't thread safe.
+ */
+public class ImageDecoder
+{
+    private IplImage image = null;
+    private boolean raw = false;
+    private BytePointer buffer = null;
+    private RawImageCodec codec = null;
+
+    public IplImage image()
+    {
+        return this.image;
+    }
+
+    // Decode the value of an image record, return null if a compressed image can't be decoded.
+    public IplImage decode(ImageMetadata metadata, BytesWritable value)
+    {
+        if (ImageHelper.isRawType(metadata))
+        {
+            int width = metadata.getAsInt("width");
+            int height = metadata.getAsInt("height");
+            int channelCount = metadata.getAsInt("channel_count");
+            int depth = metadata.getAsInt("depth");
+
+            if (!(this.raw                            &&
+                  (this.image.width() == width)       &&
+                  (this.image.height() == height)     &&
+                  (this.image.depth() == depth)       &&
+                  (this.image.nChannels() == channelCount)))
+            {
+                releaseImage();
+
+                this.image = IplImage.create(width, height, depth, channelCount);
+                this.raw = true;
+            }
+
+            copyRaw(metadata, value, this.image);
+            return this.image;
+        }
+
+        releaseImage();
+        this.image = decodeCompressed(value);
+
+        return this.image;
+    }
+
+    // Copy the pixels of a raw or rawz record into an image of the right size and type.
+    public void copyRaw(ImageMetadata metadata, BytesWritable value, IplImage image)
+    {
+        if (ImageHelper.isRawz(metadata))
+        {
+            if (this.codec == null)
+            {
+                this.codec = new RawImageCodec();
+            }
+
+            this.codec.decode(value.getBytes(), value.getLength(), image);
+        }
+        else
+        {
+            ImageHelper.copyRawBytes(value, image);
+        }
+    }
+
+    // Decode a compressed image into a new image that belongs to the caller, who must release it
+    // with cvReleaseImage(). Only the input buffer is reused.
+    public IplImage decodeCompressed(BytesWritable value)
+    {
+        int length = value.getLength();
+        if ((this.buffer == null) || (this.buffer.capacity() < length))
+        {
+            if (this.buffer != null)
+            {
+                this.buffer.deallocate();
+            }
+
+            // Grow by half so slightly larger images don't reallocate each time.
+            this.buffer = new BytePointer(Math.max(length, length + length / 2));
+        }
+
+        this.buffer.position(0);
+        this.buffer.put(value.getBytes(), 0, length);
+
+        return cvDecodeImage(cvMat(1, length, CV_8UC1, this.buffer));
+    }
+
+    // Release the current image and the native buffers.
+    public void release()
+    {
+        releaseImage();
+
+        if (this.buffer != null)
+        {
+            this.buffer.deallocate();
+            this.buffer = null;
+        }
+
+        if (this.codec != null)
+        {
+            this.codec.end();
+            this.codec = null;
+        }
+    }
+
+    // Raw images are created by JavaCV and compressed ones by OpenCV, so they are released differently.
+    private void releaseImage()
+    {
+        if (this.image != null)
+        {
+            if (this.raw)
+            {
+                this.image.release();
+            }
+            else
+            {
+                cvReleaseImage(this.image);
+            }
+
+            this.image = null;
+            this.raw = false;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * ImageEncoder encode the result images of the map only jobs into record values, in the output format
+ * of the job, and update the record metadata to match.
+ *
+ * The formats are:
+ *
+ *     same   encode with the original extension of each image, the default.
+ *     raw    the pixels as is, no codec at all, the fastest for intermediate datasets.
+ *     rawz   the pixels compressed with the lossless RawImageCodec.
+ *     jpg    JPEG, the quality is 0 to 100.
+ *     png    PNG, the quality is the compression level, 0 to 9.
+ *     webp   WebP, the quality is 1 to 100, above 100 is lossless.
+ *
+ * The quality is optional, OpenCV defaults are used otherwise, and also applies to the "same" format.
+ * This class isn't thread safe.
+ */
+public class ImageEncoder
+{
+    public static final String FORMAT = "hvision.output.format";
+    public static final String QUALITY = "hvision.output.quality";
+
+    public static final String FORMAT_SAME = "same";
+    public static final String FORMAT_RAW = "raw";
+    public static final String FORMAT_RAWZ = "rawz";
+    public static final String[] FORMATS = {FORMAT_SAME, FORMAT_RAW, FORMAT_RAWZ, "jpg", "png", "webp"};
+
+    private String format;
+    private int quality;
+    private RawImageCodec codec = null;
+
+    public ImageEncoder()
+    {
+        this(FORMAT_SAME, -1);
+    }
+
+    // A quality below 0 keeps the OpenCV default.
+    public ImageEncoder(String format, int quality)
+    {
+        this.format = checkFormat(format);
+        this.quality = quality;
+    }
+
+    // The encoder configured by setFormat() for the job.
+    public static ImageEncoder create(Configuration conf)
+    {
+        return new ImageEncoder(conf.get(FORMAT, FORMAT_SAME), conf.getInt(QUALITY, -1));
+    }
+
+    // Set the output format of a job from -oformat and -quality, if given.
+    public static void setFormat(Configuration conf, CommandParser parser)
+    {
+        if (parser.has("oformat"))
+        {
+            conf.set(FORMAT, checkFormat(parser.get("oformat")));
+        }
+
+        if (parser.has("quality"))
+        {
+            conf.setInt(QUALITY, parser.getAsInt("quality"));
+        }
+    }
+
+    public String format()
+    {
+        return this.format;
+    }
+
+    public int quality()
+    {
+        return this.quality;
+    }
+
+    // Encode the image and update the type, extension and size of the metadata accordingly.
+    public byte[] encode(IplImage image, ImageMetadata metadata)
+    {
+        if (this.format.equals(FORMAT_RAW) || this.format.equals(FORMAT_RAWZ))
+        {
+            byte[] data;
+            if (this.format.equals(FORMAT_RAWZ))
+            {
+                if (this.codec == null)
+                {
+                    this.codec = new RawImageCodec();
+                }
+
+                data = this.codec.encode(image);
+            }
+            else
+            {
+                ByteBuffer buffer = image.getByteBuffer();
+                data = new byte[image.imageSize()];
+                buffer.get(data);
+            }
+
+            metadata.put("type", this.format);
+            metadata.put("width", image.width());
+            metadata.put("height", image.height());
+            metadata.put("channel_count", image.nChannels());
+            metadata.put("depth", image.depth());
+
+            return data;
+        }
+
+        String ext = this.format.equals(FORMAT_SAME) ? metadata.get("ext") : this.format;
+        CvMat imageMat = cvEncodeImage("." + ext, image, qualityParams(ext));
+
+        byte[] data = new byte[imageMat.size()];
+        imageMat.getByteBuffer().get(data);
+        cvReleaseMat(imageMat);
+
+        // The result stored as compressed.
+        metadata.remove("type");
+        metadata.put("ext", ext);
+
+        return data;
+    }
+
+    // Free the rawz codec.
+    public void release()
+    {
+        if (this.codec != null)
+        {
+            this.codec.end();
+            this.codec = null;
+        }
+    }
+
+    // The OpenCV parameters for the quality of the given extension, a zero terminated list.
+    private int[] qualityParams(String ext)
+    {
+        if (this.quality < 0)
+        {
+            return new int[]{0};
+        }
+
+        switch (ext.toLowerCase())
+        {
+            case "jpg":
+            case "jpeg":
+                return new int[]{CV_IMWRITE_JPEG_QUALITY, this.quality, 0};
+            case "png":
+                return new int[]{CV_IMWRITE_PNG_COMPRESSION, this.quality, 0};
+            case "webp":
+                return new int[]{CV_IMWRITE_WEBP_QUALITY, this.quality, 0};
+            default:
+                return new int[]{0};
+        }
+    }
+
+    private static String checkFormat(String format)
+    {
+        for (String knownFormat : FORMATS)
+        {
+            if (knownFormat.equals(format))
+            {
+                return format;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown output format: " + format + ", expected one of same, raw, rawz, jpg, png or webp.");
+    }
+}
@@ -0,0 +1,411 @@
+package com.emadbarsoum.common;
+
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ImageFileWalker stream the image files under a folder to a visitor, one file at a time.
+ *
+ * Unlike File.listFiles(), the folder entries are never loaded all at once, so walking a folder with
+ * millions of images start immediately and use constant memory. Sub folders are walked recursively,
+ * hidden files and folders are skipped, extensions are matched case insensitively and the files can
+ * be filtered by size using the size from the directory entry attributes. Symbolic links to files are
+ * followed, symbolic links to folders aren't.
+ *
+ * Tar, tar.gz and zip archives are walked the same way without extracting them: a tar is read in a
+ * single sequential pass and a zip is read in the order of its central directory. Each image entry is
+ * read into memory and handed to the visitor with its path inside the archive.
+ */
+public class ImageFileWalker
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageFileWalker.class);
+
+    private Set<String> extensions = new HashSet<String>();
+    private boolean recursive = true;
+    private long minSize = 0;
+    private long maxSize = Long.MAX_VALUE;
+
+    public interface Visitor
+    {
+        void visit(File imageFile) throws Exception;
+    }
+
+    public interface ArchiveVisitor
+    {
+        void visit(String entryName, byte[] data) throws Exception;
+    }
+
+    public ImageFileWalker()
+    {
+        setExtensions("jpg", "jpeg", "png");
+    }
+
+    // Extensions without the leading '.', in any case.
+    public void setExtensions(String... extensions)
+    {
+        this.extensions.clear();
+        for (String extension : extensions)
+        {
+            this.extensions.add(extension.trim().toLowerCase());
+        }
+    }
+
+    public void setRecursive(boolean recursive)
+    {
+        this.recursive = recursive;
+    }
+
+    // Only files with minSize <= size <= maxSize (in bytes) are visited.
+    public void setMinSize(long minSize)
+    {
+        this.minSize = minSize;
+    }
+
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    // Configure the walker from the common command line options: -ext, -minsize, -maxsize and -norecurse.
+    public void configure(CommandParser parser)
+    {
+        if (parser.has("ext"))
+        {
+            setExtensions(parser.get("ext").split(","));
+        }
+
+        if (parser.has("minsize"))
+        {
+            setMinSize(parser.getAsInt("minsize") * 1024L);
+        }
+
+        if (parser.has("maxsize"))
+        {
+            setMaxSize(parser.getAsInt("maxsize") * 1024L);
+        }
+
+        setRecursive(!parser.has("norecurse"));
+    }
+
+    // Walk the given folder and return the number of visited images. An exception thrown by the
+    // visitor stop the walk and is thrown back, a file or folder that can't be read is skipped.
+    public long walk(File folder, final Visitor visitor) throws Exception
+    {
+        final Path root = folder.toPath();
+        final long[] count = { 0 };
+        final Exception[] failure = { null };
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+            {
+                if (dir.equals(root))
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                return (recursive && !isHidden(dir)) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isSymbolicLink())
+                {
+                    try
+                    {
+                        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    }
+                    catch (IOException e)
+                    {
+                        return visitFileFailed(file, e);
+                    }
+                }
+
+                if (!attrs.isRegularFile() || isHidden(file) || !accept(file.getFileName().toString(), attrs.size()))
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                try
+                {
+                    visitor.visit(file.toFile());
+                    count[0]++;
+                }
+                catch (Exception e)
+                {
+                    failure[0] = e;
+                    return FileVisitResult.TERMINATE;
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                log.warn("Skipping " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (failure[0] != null)
+        {
+            throw failure[0];
+        }
+
+        return count[0];
+    }
+
+    public static boolean isArchive(File file)
+    {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz"));
+    }
+
+    // Walk the image entries of an archive and return the number of visited images. Entries are relative
+    // to the archive root, entries less than rootDepth folders deep are skipped and so are entries more
+    // than rootDepth folders deep if not recursive.
+    public long walkArchive(File archive, int rootDepth, ArchiveVisitor visitor) throws Exception
+    {
+        long count = 0;
+
+        if (archive.getName().toLowerCase().endsWith(".zip"))
+        {
+            ZipFile zip = new ZipFile(archive);
+            try
+            {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements())
+                {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory() || !acceptEntry(entry.getName(), entry.getSize(), rootDepth))
+                    {
+                        continue;
+                    }
+
+                    InputStream in = zip.getInputStream(entry);
+                    try
+                    {
+                        visitor.visit(entry.getName(), readEntry(in, entry.getSize()));
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+
+                    count++;
+                }
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+        else
+        {
+            TarArchiveInputStream tar = openTar(archive);
+            try
+            {
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextTarEntry()) != null)
+                {
+                    // The data of a skipped entry is skipped by the next getNextTarEntry().
+                    if (!entry.isFile() || !acceptEntry(entry.getName(), entry.getSize(), rootDepth))
+                    {
+                        continue;
+                    }
+
+                    visitor.visit(entry.getName(), readEntry(tar, entry.getSize()));
+                    count++;
+                }
+            }
+            finally
+            {
+                tar.close();
+            }
+        }
+
+        return count;
+    }
+
+    // Return the names of the top level folders of an archive, sorted. For a tar only the entry headers
+    // are read, the data is skipped (it is still decompressed for a tar.gz).
+    public static List<String> listArchiveFolders(File archive) throws IOException
+    {
+        Set<String> folders = new HashSet<String>();
+
+        if (archive.getName().toLowerCase().endsWith(".zip"))
+        {
+            ZipFile zip = new ZipFile(archive);
+            try
+            {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements())
+                {
+                    addTopFolder(entries.nextElement().getName(), folders);
+                }
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+        else
+        {
+            TarArchiveInputStream tar = openTar(archive);
+            try
+            {
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextTarEntry()) != null)
+                {
+                    addTopFolder(entry.getName(), folders);
+                }
+            }
+            finally
+            {
+                tar.close();
+            }
+        }
+
+        List<String> sorted = new ArrayList<String>(folders);
+        Collections.sort(sorted);
+
+        return sorted;
+    }
+
+    // Return the top level folder of an archive entry, or null for an entry at the root of the archive.
+    public static String topFolder(String entryName)
+    {
+        String name = entryName.startsWith("./") ? entryName.substring(2) : entryName;
+        int pos = name.indexOf('/');
+
+        return (pos > 0) ? name.substring(0, pos) : null;
+    }
+
+    // Return the names of the direct sub folders, sorted, without loading the files of the folder.
+    public static List<String> listFolders(File folder) throws IOException
+    {
+        List<String> folders = new ArrayList<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath());
+
+        try
+        {
+            for (Path path : stream)
+            {
+                if (Files.isDirectory(path) && !isHidden(path))
+                {
+                    folders.add(path.getFileName().toString());
+                }
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        Collections.sort(folders);
+        return folders;
+    }
+
+    private boolean acceptEntry(String entryName, long size, int rootDepth)
+    {
+        String name = entryName.startsWith("./") ? entryName.substring(2) : entryName;
+        String[] components = name.split("/");
+        int depth = components.length - 1;
+
+        if ((depth < rootDepth) || (!this.recursive && (depth > rootDepth)))
+        {
+            return false;
+        }
+
+        for (String component : components)
+        {
+            if (component.startsWith("."))
+            {
+                return false;
+            }
+        }
+
+        return accept(components[depth], size);
+    }
+
+    private static void addTopFolder(String entryName, Set<String> folders)
+    {
+        String folder = topFolder(entryName);
+        if ((folder != null) && !folder.startsWith("."))
+        {
+            folders.add(folder);
+        }
+    }
+
+    private static TarArchiveInputStream openTar(File archive) throws IOException
+    {
+        String name = archive.getName().toLowerCase();
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), 1 << 16);
+
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+        {
+            in = new GzipCompressorInputStream(in);
+        }
+
+        return new TarArchiveInputStream(in);
+    }
+
+    private static byte[] readEntry(InputStream in, long size) throws IOException
+    {
+        if ((size < 0) || (size > Integer.MAX_VALUE))
+        {
+            throw new IOException("Invalid archive entry size " + size);
+        }
+
+        byte[] data = new byte[(int)size];
+        ByteStreams.readFully(in, data);
+
+        return data;
+    }
+
+    private boolean accept(String name, long size)
+    {
+        int pos = name.lastIndexOf('.');
+        if (pos <= 0)
+        {
+            return false;
+        }
+
+        return this.extensions.contains(name.substring(pos + 1).toLowerCase()) &&
+               (size >= this.minSize) &&
+               (size <= this.maxSize);
+    }
+
+    private static boolean isHidden(Path path)
+    {
+        Path name = path.getFileName();
+        return (name != null) && name.toString().startsWith(".");
+    }
+}
@@ -1,17 +1,220 @@
 package com.emadbarsoum.common;
 
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core.*;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.InvalidPropertiesFormatException;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * A helper class that simplify dealing with JavaCV images.
  */
 public class ImageHelper
 {
+    // Return the metadata of an image sequence file key, which is either an ImageKeyWritable or a Text
+    // in the "name1=value1;name2=value2" format. For ImageKeyWritable, the key itself is returned.
+    public static ImageMetadata getMetadata(Writable key) throws InvalidPropertiesFormatException
+    {
+        return getMetadata(key, new MetadataParser());
+    }
+
+    // Same as above, but a Text key is parsed in place using the given parser, so a per task
+    // parser can be reused across records.
+    public static ImageMetadata getMetadata(Writable key, MetadataParser parser) throws InvalidPropertiesFormatException
+    {
+        if (key instanceof ImageKeyWritable)
+        {
+            return (ImageKeyWritable)key;
+        }
+
+        parser.reset((Text)key);
+        parser.parse();
+
+        return parser;
+    }
+
+    // Return a key of the same kind as the one the metadata was read from. For a Text key, the
+    // returned Text is reused by the parser and is only valid until the next call.
+    public static Writable toKey(ImageMetadata metadata)
+    {
+        if (metadata instanceof MetadataParser)
+        {
+            return ((MetadataParser)metadata).toText();
+        }
+
+        if (metadata instanceof ImageKeyWritable)
+        {
+            return (ImageKeyWritable)metadata;
+        }
+
+        return new Text(metadata.toMetadata());
+    }
+
+    public static boolean isRaw(ImageMetadata metadata)
+    {
+        return metadata.has("type") && metadata.get("type").equals(ImageKeyWritable.TYPE_RAW);
+    }
+
+    // Raw image compressed with RawImageCodec.
+    public static boolean isRawz(ImageMetadata metadata)
+    {
+        return metadata.has("type") && metadata.get("type").equals(ImageKeyWritable.TYPE_RAWZ);
+    }
+
+    // Either raw or rawz, the size and type of the image are in the metadata and the value is decoded
+    // by HVision rather than OpenCV.
+    public static boolean isRawType(ImageMetadata metadata)
+    {
+        return isRaw(metadata) || isRawz(metadata);
+    }
+
+    // Copy the value of a raw image record into an image of the right size and type.
+    public static void copyRawBytes(BytesWritable value, IplImage image)
+    {
+        copyRawBytes(value.getBytes(), value.getLength(), image);
+    }
+
+    // Copy raw image data straight into the image buffer, without any intermediate copy. The data is
+    // either the whole image buffer, rows padded to widthStep as written by ImageSequenceFileWriter, or
+    // rows without padding, which are then copied one at a time.
+    public static void copyRawBytes(byte[] imageData, int length, IplImage image)
+    {
+        ByteBuffer buffer = image.getByteBuffer();
+        if (length == image.imageSize())
+        {
+            buffer.put(imageData, 0, length);
+            return;
+        }
+
+        int height = image.height();
+        int widthStep = image.widthStep();
+        int rowSize = image.width() * image.nChannels() * ((image.depth() & 255) / 8);
+
+        if (length != rowSize * height)
+        {
+            throw new IllegalArgumentException("The raw image data is " + length + " bytes, expected " +
+                image.imageSize() + " or " + (rowSize * height) + " bytes.");
+        }
+
+        for (int row = 0; row < height; ++row)
+        {
+            buffer.position(row * widthStep);
+            buffer.put(imageData, row * rowSize, rowSize);
+        }
+    }
+
+    // Same as above, from a buffer such as a memory mapped file, which is read from its position to its limit.
+    public static void copyRawBytes(ByteBuffer imageData, IplImage image)
+    {
+        ByteBuffer buffer = image.getByteBuffer();
+        int length = imageData.remaining();
+        if (length == image.imageSize())
+        {
+            buffer.put(imageData);
+            return;
+        }
+
+        int height = image.height();
+        int widthStep = image.widthStep();
+        int rowSize = image.width() * image.nChannels() * ((image.depth() & 255) / 8);
+
+        if (length != rowSize * height)
+        {
+            throw new IllegalArgumentException("The raw image data is " + length + " bytes, expected " +
+                image.imageSize() + " or " + (rowSize * height) + " bytes.");
+        }
+
+        ByteBuffer row = imageData.duplicate();
+        for (int i = 0; i < height; ++i)
+        {
+            row.limit(imageData.position() + (i + 1) * rowSize);
+            row.position(imageData.position() + i * rowSize);
+            buffer.position(i * widthStep);
+            buffer.put(row);
+        }
+    }
+
+    // Decode the value of a compressed image record, return null if it can't be decoded. The returned
+    // image is allocated by OpenCV and must be released with cvReleaseImage(). Use ImageDecoder to
+    // decode many records.
+    public static IplImage decodeCompressedImage(BytesWritable value)
+    {
+        BytePointer data = new BytePointer(value.getLength());
+        data.put(value.getBytes(), 0, value.getLength());
+
+        IplImage image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, data));
+        data.deallocate();
+
+        return image;
+    }
+
+    // Read the width and height of a JPEG, PNG, GIF or BMP image from its header, without decoding
+    // it. Return {width, height}, or null if the format isn't known or the header is truncated.
+    public static int[] probeImageSize(byte[] data, int length)
+    {
+        if ((length >= 24) && (u8(data, 0) == 0x89) && (data[1] == 'P') && (data[2] == 'N') && (data[3] == 'G'))
+        {
+            // IHDR is always the first chunk.
+            return new int[]{u32(data, 16), u32(data, 20)};
+        }
+
+        if ((length >= 10) && (data[0] == 'G') && (data[1] == 'I') && (data[2] == 'F'))
+        {
+            return new int[]{u16le(data, 6), u16le(data, 8)};
+        }
+
+        if ((length >= 26) && (data[0] == 'B') && (data[1] == 'M'))
+        {
+            // The height is negative for top down bitmaps.
+            int width = u16le(data, 18) | (u16le(data, 20) << 16);
+            int height = u16le(data, 22) | (u16le(data, 24) << 16);
+            return new int[]{width, Math.abs(height)};
+        }
+
+        if ((length >= 4) && (u8(data, 0) == 0xFF) && (u8(data, 1) == 0xD8))
+        {
+            // Walk the segments up to the start of frame, which holds the size.
+            int pos = 2;
+            while (pos + 8 < length)
+            {
+                if (u8(data, pos) != 0xFF)
+                {
+                    return null;
+                }
+
+                int marker = u8(data, pos + 1);
+                if (marker == 0xFF)
+                {
+                    // Fill byte.
+                    pos++;
+                }
+                else if ((marker == 0x01) || ((marker >= 0xD0) && (marker <= 0xD8)))
+                {
+                    // Markers without a segment.
+                    pos += 2;
+                }
+                else if ((marker >= 0xC0) && (marker <= 0xCF) && (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC))
+                {
+                    return new int[]{u16(data, pos + 7), u16(data, pos + 5)};
+                }
+                else
+                {
+                    pos += 2 + u16(data, pos + 2);
+                }
+            }
+        }
+
+        return null;
+    }
+
     // Creating IplImage from a raw uncompressed image data.
-    public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, MetadataParser metadata)
+    public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, ImageMetadata metadata)
     {
         int width = metadata.getAsInt("width");
         int height = metadata.getAsInt("height");
@@ -25,10 +228,7 @@ public class ImageHelper
     public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, int width, int height, int channelCount, int depth)
     {
         IplImage image = IplImage.create(width, height, depth, channelCount);
-
-        ByteBuffer buffer = image.getByteBuffer();
-        byte[] rawBuffer = Arrays.copyOf(imageData, length);
-        buffer.put(rawBuffer);
+        copyRawBytes(imageData, length, image);
 
         return image;
     }
@@ -59,4 +259,24 @@ public class ImageHelper
     {
         return matData.toMat();
     }
+
+    private static int u8(byte[] data, int pos)
+    {
+        return data[pos] & 0xFF;
+    }
+
+    private static int u16(byte[] data, int pos)
+    {
+        return (u8(data, pos) << 8) | u8(data, pos + 1);
+    }
+
+    private static int u16le(byte[] data, int pos)
+    {
+        return u8(data, pos) | (u8(data, pos + 1) << 8);
+    }
+
+    private static int u32(byte[] data, int pos)
+    {
+        return (u16(data, pos) << 16) | u16(data, pos + 2);
+    }
 }
@@ -0,0 +1,581 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.InvalidPropertiesFormatException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImageKeyWritable is the binary counterpart of the "name=value;..." Text key of an image sequence file.
+ *
+ * The well known fields (name, ext, type, width, height, channel_count and depth) are stored as binary
+ * fields, so reading them doesn't involve any string parsing. Any other metadata, such as label or path,
+ * is stored in an extension map. It implements ImageMetadata using the same names as the Text key, so
+ * the code written against MetadataParser works on both.
+ *
+ * Keys are sorted by name, and a raw comparator is registered so sorting doesn't deserialize the keys.
+ */
+public class ImageKeyWritable implements WritableComparable<ImageKeyWritable>, ImageMetadata
+{
+    public static final String TYPE_RAW = "raw";
+    public static final String TYPE_RAWZ = "rawz";
+
+    // Known record types, the stored type code is the index in this array, so new types are added last.
+    private static final String[] TYPES = {TYPE_RAW, TYPE_RAWZ};
+
+    // Presence bits of the fixed fields.
+    private static final int HAS_NAME = 1;
+    private static final int HAS_EXT = 2;
+    private static final int HAS_TYPE = 4;
+    private static final int HAS_WIDTH = 8;
+    private static final int HAS_HEIGHT = 16;
+    private static final int HAS_CHANNEL_COUNT = 32;
+    private static final int HAS_DEPTH = 64;
+
+    private int flags = 0;
+    private Text name = new Text();
+    private Text ext = new Text();
+    private int type = 0;
+    private int width = 0;
+    private int height = 0;
+    private int channelCount = 0;
+    private int depth = 0;
+    private Map<String, String> extensions = new LinkedHashMap<String, String>();
+
+    static
+    {
+        WritableComparator.define(ImageKeyWritable.class, new Comparator());
+    }
+
+    public ImageKeyWritable()
+    {}
+
+    public ImageKeyWritable(String metadata) throws InvalidPropertiesFormatException
+    {
+        putAll(metadata);
+    }
+
+    public Text getName()
+    {
+        return this.name;
+    }
+
+    public void setName(String name)
+    {
+        this.name.set(name);
+        this.flags |= HAS_NAME;
+    }
+
+    public Text getExt()
+    {
+        return this.ext;
+    }
+
+    public void setExt(String ext)
+    {
+        this.ext.set(ext);
+        this.flags |= HAS_EXT;
+    }
+
+    public boolean isRaw()
+    {
+        return isSet(HAS_TYPE) && TYPES[this.type].equals(TYPE_RAW);
+    }
+
+    public boolean isRawz()
+    {
+        return isSet(HAS_TYPE) && TYPES[this.type].equals(TYPE_RAWZ);
+    }
+
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    public int getChannelCount()
+    {
+        return this.channelCount;
+    }
+
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    // Mark the image as raw with the given dimension.
+    public void setRaw(int width, int height, int channelCount, int depth)
+    {
+        this.type = typeCode(TYPE_RAW);
+        this.width = width;
+        this.height = height;
+        this.channelCount = channelCount;
+        this.depth = depth;
+        this.flags |= HAS_TYPE | HAS_WIDTH | HAS_HEIGHT | HAS_CHANNEL_COUNT | HAS_DEPTH;
+    }
+
+    // Mark the image as rawz (compressed with RawImageCodec) with the given dimension.
+    public void setRawz(int width, int height, int channelCount, int depth)
+    {
+        setRaw(width, height, channelCount, depth);
+        this.type = typeCode(TYPE_RAWZ);
+    }
+
+    public void clear()
+    {
+        this.flags = 0;
+        this.name.clear();
+        this.ext.clear();
+        this.type = 0;
+        this.width = 0;
+        this.height = 0;
+        this.channelCount = 0;
+        this.depth = 0;
+        this.extensions.clear();
+    }
+
+    public void set(ImageKeyWritable other)
+    {
+        this.flags = other.flags;
+        this.name.set(other.name);
+        this.ext.set(other.ext);
+        this.type = other.type;
+        this.width = other.width;
+        this.height = other.height;
+        this.channelCount = other.channelCount;
+        this.depth = other.depth;
+        this.extensions.clear();
+        this.extensions.putAll(other.extensions);
+    }
+
+    // Add all the name value pairs of a Text metadata in the "name1=value1;name2=value2" format.
+    public void putAll(String metadata) throws InvalidPropertiesFormatException
+    {
+        int start = 0;
+        int length = metadata.length();
+
+        while (start < length)
+        {
+            int end = metadata.indexOf(';', start);
+            if (end < 0)
+            {
+                end = length;
+            }
+
+            // Trailing '=' are dropped, so "a=b=" is "a=b", same as MetadataParser.
+            int valueEnd = end;
+            while ((valueEnd > start) && (metadata.charAt(valueEnd - 1) == '='))
+            {
+                --valueEnd;
+            }
+
+            // Exactly one '=' with a non empty value, empty trailing entries such as "x=1;;" are ignored.
+            int separator = metadata.indexOf('=', start);
+            if ((separator < 0) || (separator >= valueEnd) || (metadata.lastIndexOf('=', valueEnd - 1) != separator))
+            {
+                if ((start == end) && isTrailing(metadata, end))
+                {
+                    break;
+                }
+
+                throw new InvalidPropertiesFormatException("Invalid metadata...");
+            }
+
+            put(metadata.substring(start, separator), metadata.substring(separator + 1, valueEnd));
+
+            start = end + 1;
+        }
+    }
+
+    @Override
+    public boolean has(String name)
+    {
+        switch (name)
+        {
+            case "name":
+                return isSet(HAS_NAME);
+            case "ext":
+                return isSet(HAS_EXT);
+            case "type":
+                return isSet(HAS_TYPE);
+            case "width":
+                return isSet(HAS_WIDTH);
+            case "height":
+                return isSet(HAS_HEIGHT);
+            case "channel_count":
+                return isSet(HAS_CHANNEL_COUNT);
+            case "depth":
+                return isSet(HAS_DEPTH);
+            default:
+                return this.extensions.containsKey(name);
+        }
+    }
+
+    @Override
+    public String get(String name)
+    {
+        if (!has(name))
+        {
+            return null;
+        }
+
+        switch (name)
+        {
+            case "name":
+                return this.name.toString();
+            case "ext":
+                return this.ext.toString();
+            case "type":
+                return TYPES[this.type];
+            case "width":
+                return Integer.toString(this.width);
+            case "height":
+                return Integer.toString(this.height);
+            case "channel_count":
+                return Integer.toString(this.channelCount);
+            case "depth":
+                return Integer.toString(this.depth);
+            default:
+                return this.extensions.get(name);
+        }
+    }
+
+    @Override
+    public int getAsInt(String name)
+    {
+        switch (name)
+        {
+            case "width":
+                return this.width;
+            case "height":
+                return this.height;
+            case "channel_count":
+                return this.channelCount;
+            case "depth":
+                return this.depth;
+            default:
+                return Integer.parseInt(get(name));
+        }
+    }
+
+    @Override
+    public void remove(String name)
+    {
+        switch (name)
+        {
+            case "name":
+                this.name.clear();
+                this.flags &= ~HAS_NAME;
+                break;
+            case "ext":
+                this.ext.clear();
+                this.flags &= ~HAS_EXT;
+                break;
+            case "type":
+                this.type = 0;
+                this.flags &= ~HAS_TYPE;
+                break;
+            case "width":
+                this.width = 0;
+                this.flags &= ~HAS_WIDTH;
+                break;
+            case "height":
+                this.height = 0;
+                this.flags &= ~HAS_HEIGHT;
+                break;
+            case "channel_count":
+                this.channelCount = 0;
+                this.flags &= ~HAS_CHANNEL_COUNT;
+                break;
+            case "depth":
+                this.depth = 0;
+                this.flags &= ~HAS_DEPTH;
+                break;
+            default:
+                this.extensions.remove(name);
+                break;
+        }
+    }
+
+    @Override
+    public void put(String name, String value)
+    {
+        switch (name)
+        {
+            case "name":
+                setName(value);
+                break;
+            case "ext":
+                setExt(value);
+                break;
+            case "type":
+                this.type = typeCode(value);
+                this.flags |= HAS_TYPE;
+                break;
+            case "width":
+            case "height":
+            case "channel_count":
+            case "depth":
+                put(name, Integer.parseInt(value));
+                break;
+            default:
+                this.extensions.put(name, value);
+                break;
+        }
+    }
+
+    @Override
+    public void put(String name, int value)
+    {
+        switch (name)
+        {
+            case "width":
+                this.width = value;
+                this.flags |= HAS_WIDTH;
+                break;
+            case "height":
+                this.height = value;
+                this.flags |= HAS_HEIGHT;
+                break;
+            case "channel_count":
+                this.channelCount = value;
+                this.flags |= HAS_CHANNEL_COUNT;
+                break;
+            case "depth":
+                this.depth = value;
+                this.flags |= HAS_DEPTH;
+                break;
+            default:
+                put(name, Integer.toString(value));
+                break;
+        }
+    }
+
+    @Override
+    public String toMetadata()
+    {
+        StringBuilder metadata = new StringBuilder();
+
+        if (isSet(HAS_NAME))
+        {
+            append(metadata, "name", this.name.toString());
+        }
+
+        if (isSet(HAS_EXT))
+        {
+            append(metadata, "ext", this.ext.toString());
+        }
+
+        if (isSet(HAS_TYPE))
+        {
+            append(metadata, "type", TYPES[this.type]);
+        }
+
+        if (isSet(HAS_WIDTH))
+        {
+            append(metadata, "width", Integer.toString(this.width));
+        }
+
+        if (isSet(HAS_HEIGHT))
+        {
+            append(metadata, "height", Integer.toString(this.height));
+        }
+
+        if (isSet(HAS_CHANNEL_COUNT))
+        {
+            append(metadata, "channel_count", Integer.toString(this.channelCount));
+        }
+
+        if (isSet(HAS_DEPTH))
+        {
+            append(metadata, "depth", Integer.toString(this.depth));
+        }
+
+        for (Map.Entry<String, String> entry : this.extensions.entrySet())
+        {
+            append(metadata, entry.getKey(), entry.getValue());
+        }
+
+        return metadata.toString();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        // The name must stay right after the flags, the raw comparator depends on it.
+        out.writeByte(this.flags);
+        this.name.write(out);
+        out.writeByte(this.type);
+        WritableUtils.writeVInt(out, this.width);
+        WritableUtils.writeVInt(out, this.height);
+        WritableUtils.writeVInt(out, this.channelCount);
+        WritableUtils.writeVInt(out, this.depth);
+        this.ext.write(out);
+
+        WritableUtils.writeVInt(out, this.extensions.size());
+        for (Map.Entry<String, String> entry : this.extensions.entrySet())
+        {
+            Text.writeString(out, entry.getKey());
+            Text.writeString(out, entry.getValue());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.flags = in.readByte() & 0xff;
+        this.name.readFields(in);
+        this.type = in.readByte() & 0xff;
+        this.width = WritableUtils.readVInt(in);
+        this.height = WritableUtils.readVInt(in);
+        this.channelCount = WritableUtils.readVInt(in);
+        this.depth = WritableUtils.readVInt(in);
+        this.ext.readFields(in);
+
+        if (this.type >= TYPES.length)
+        {
+            throw new IOException("Unknown image type code: " + this.type);
+        }
+
+        this.extensions.clear();
+        int count = WritableUtils.readVInt(in);
+        for (int i = 0; i < count; ++i)
+        {
+            String key = Text.readString(in);
+            this.extensions.put(key, Text.readString(in));
+        }
+    }
+
+    @Override
+    public int compareTo(ImageKeyWritable other)
+    {
+        int result = this.name.compareTo(other.name);
+        if (result != 0)
+        {
+            return result;
+        }
+
+        // Same name, fall back to the serialized form to stay consistent with the raw comparator.
+        try
+        {
+            DataOutputBuffer buffer1 = new DataOutputBuffer();
+            DataOutputBuffer buffer2 = new DataOutputBuffer();
+            this.write(buffer1);
+            other.write(buffer2);
+
+            return WritableComparator.compareBytes(buffer1.getData(), 0, buffer1.getLength(),
+                                                   buffer2.getData(), 0, buffer2.getLength());
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return (other instanceof ImageKeyWritable) && (compareTo((ImageKeyWritable)other) == 0);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.name.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toMetadata();
+    }
+
+    private boolean isSet(int flag)
+    {
+        return (this.flags & flag) != 0;
+    }
+
+    private static boolean isTrailing(String metadata, int position)
+    {
+        for (int i = position; i < metadata.length(); ++i)
+        {
+            if (metadata.charAt(i) != ';')
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int typeCode(String type)
+    {
+        for (int i = 0; i < TYPES.length; ++i)
+        {
+            if (TYPES[i].equals(type))
+            {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown image type: " + type);
+    }
+
+    private static void append(StringBuilder metadata, String name, String value)
+    {
+        if (metadata.length() > 0)
+        {
+            metadata.append(';');
+        }
+
+        metadata.append(name).append('=').append(value);
+    }
+
+    /**
+     * Raw comparator that compare the serialized names first, without deserializing the keys.
+     */
+    public static class Comparator extends WritableComparator
+    {
+        public Comparator()
+        {
+            super(ImageKeyWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            try
+            {
+                // Skip the flags byte, the name is stored right after it as a Text.
+                int nameSize1 = WritableUtils.decodeVIntSize(b1[s1 + 1]);
+                int nameSize2 = WritableUtils.decodeVIntSize(b2[s2 + 1]);
+                int nameLength1 = readVInt(b1, s1 + 1);
+                int nameLength2 = readVInt(b2, s2 + 1);
+
+                int result = compareBytes(b1, s1 + 1 + nameSize1, nameLength1, b2, s2 + 1 + nameSize2, nameLength2);
+                if (result != 0)
+                {
+                    return result;
+                }
+
+                return compareBytes(b1, s1, l1, b2, s2, l2);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.emadbarsoum.common;
+
+/**
+ * Common interface for the metadata of an image record, implemented by the text based
+ * MetadataParser and the binary ImageKeyWritable.
+ */
+public interface ImageMetadata
+{
+    public boolean has(String name);
+
+    public String get(String name);
+
+    public int getAsInt(String name);
+
+    public void remove(String name);
+
+    public void put(String name, String value);
+
+    public void put(String name, int value);
+
+    public String toMetadata();
+}
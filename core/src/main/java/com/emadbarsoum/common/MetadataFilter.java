@@ -0,0 +1,181 @@
+package com.emadbarsoum.common;
+
+import java.util.ArrayList;
+import java.util.InvalidPropertiesFormatException;
+import java.util.List;
+
+/**
+ * MetadataFilter is a filter expression on the metadata of an image record, in the following
+ * format: "label=cat;width>=640".
+ *
+ * Conditions are separated by ';' and a record matches if all of them match. The operators are =, !=,
+ * <, <=, > and >=, the values are compared as numbers if both are numbers and as strings otherwise. A
+ * condition on a name that isn't in the metadata only matches for !=.
+ *
+ * Compressed images have no width and height in their metadata, for them needsImageSize() is true and
+ * the caller pass the size read from the image header, see ImageHelper.probeImageSize().
+ */
+public class MetadataFilter
+{
+    private static final String[] OPERATORS = {"!=", "<=", ">=", "=", "<", ">"};
+
+    private List<Condition> conditions = new ArrayList<Condition>();
+
+    public MetadataFilter(String expression) throws InvalidPropertiesFormatException
+    {
+        for (String condition : expression.split(";"))
+        {
+            if (!condition.trim().isEmpty())
+            {
+                this.conditions.add(parseCondition(condition));
+            }
+        }
+
+        if (this.conditions.isEmpty())
+        {
+            throw new InvalidPropertiesFormatException("Empty filter expression.");
+        }
+    }
+
+    public boolean matches(ImageMetadata metadata)
+    {
+        return matches(metadata, null);
+    }
+
+    // Same as matches(metadata), with the width and height of the image for the metadata that lack them,
+    // size can be null if unknown.
+    public boolean matches(ImageMetadata metadata, int[] size)
+    {
+        for (Condition condition : this.conditions)
+        {
+            if (!condition.matches(metadata, size))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // True if a condition is on the width or height and the metadata doesn't have it.
+    public boolean needsImageSize(ImageMetadata metadata)
+    {
+        for (Condition condition : this.conditions)
+        {
+            if (isSizeName(condition.name) && !metadata.has(condition.name))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isSizeName(String name)
+    {
+        return name.equals("width") || name.equals("height");
+    }
+
+    private static Condition parseCondition(String condition) throws InvalidPropertiesFormatException
+    {
+        int pos = -1;
+        for (int i = 0; i < condition.length(); ++i)
+        {
+            char c = condition.charAt(i);
+            if ((c == '=') || (c == '!') || (c == '<') || (c == '>'))
+            {
+                pos = i;
+                break;
+            }
+        }
+
+        if (pos <= 0)
+        {
+            throw new InvalidPropertiesFormatException("Invalid filter condition: " + condition);
+        }
+
+        for (String operator : OPERATORS)
+        {
+            if (condition.startsWith(operator, pos))
+            {
+                String name = condition.substring(0, pos).trim();
+                String value = condition.substring(pos + operator.length()).trim();
+
+                if (name.isEmpty())
+                {
+                    throw new InvalidPropertiesFormatException("Invalid filter condition: " + condition);
+                }
+
+                return new Condition(name, operator, value);
+            }
+        }
+
+        throw new InvalidPropertiesFormatException("Invalid filter condition: " + condition);
+    }
+
+    private static Double toNumber(String value)
+    {
+        try
+        {
+            return Double.valueOf(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private static class Condition
+    {
+        final String name;
+        final String operator;
+        final String value;
+        final Double number;
+
+        Condition(String name, String operator, String value)
+        {
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+            this.number = toNumber(value);
+        }
+
+        boolean matches(ImageMetadata metadata, int[] size)
+        {
+            String actual;
+            if (metadata.has(this.name))
+            {
+                actual = metadata.get(this.name);
+            }
+            else if ((size != null) && isSizeName(this.name))
+            {
+                actual = Integer.toString(this.name.equals("width") ? size[0] : size[1]);
+            }
+            else
+            {
+                return this.operator.equals("!=");
+            }
+            Double actualNumber = (this.number != null) ? toNumber(actual) : null;
+
+            int result = (actualNumber != null) ?
+                Double.compare(actualNumber, this.number) :
+                actual.compareTo(this.value);
+
+            switch (this.operator)
+            {
+                case "=":
+                    return result == 0;
+                case "!=":
+                    return result != 0;
+                case "<":
+                    return result < 0;
+                case "<=":
+                    return result <= 0;
+                case ">":
+                    return result > 0;
+                default:
+                    return result >= 0;
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.emadbarsoum.common;
 
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
 import java.util.Iterator;
@@ -7,82 +10,463 @@ import java.util.Map;
 
 /**
  * Parser for the Key value of the sequence file. Key type is text and will contains metadata.
+ *
+ * The parser works directly on the UTF-8 bytes of the metadata, parse() only validate it and index
+ * where each name and value start and end. Values are turned into String only when get() is called,
+ * and getAsInt() read the digits in place. put() and remove() are kept on the side and merged when the
+ * metadata is written back. A single parser can be reused across records with reset(), in that case
+ * it doesn't allocate anything per record unless the metadata is modified.
  */
-public class MetadataParser
+public class MetadataParser implements ImageMetadata
 {
-    private String metadata;
-    private Map<String, String> nameValues = new HashMap<String, String>();
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] bytes = EMPTY;
+    private int length = 0;
+
+    // For each name value pair: start of the name, position of '=' and end of the value.
+    private int[] offsets = new int[3 * 16];
+    private int count = 0;
+
+    // Changes on top of the parsed metadata, a null value means removed.
+    private Map<String, String> edits = null;
+
+    // Reusable buffers for writing the metadata back.
+    private byte[] output = EMPTY;
+    private int outputLength = 0;
+    private Text text = null;
+
+    public MetadataParser()
+    {}
 
     public MetadataParser(String metadata)
     {
-        this.metadata = metadata;
+        byte[] data = metadata.getBytes(StandardCharsets.UTF_8);
+        reset(data, data.length);
+    }
+
+    public MetadataParser(Text metadata)
+    {
+        reset(metadata);
+    }
+
+    // Point the parser to a new metadata, the bytes of the Text are used in place so the parser must
+    // be reset again if the Text is modified. parse() must be called after reset().
+    public void reset(Text metadata)
+    {
+        reset(metadata.getBytes(), metadata.getLength());
     }
 
+    public void reset(byte[] data, int length)
+    {
+        this.bytes = data;
+        this.length = length;
+        this.count = 0;
+
+        if (this.edits != null)
+        {
+            this.edits.clear();
+        }
+    }
+
+    @Override
     public boolean has(String name)
     {
-        return this.nameValues.containsKey(name);
+        if ((this.edits != null) && this.edits.containsKey(name))
+        {
+            return this.edits.get(name) != null;
+        }
+
+        return indexOf(name) >= 0;
     }
 
+    @Override
     public String get(String name)
     {
-        return this.nameValues.get(name);
+        if ((this.edits != null) && this.edits.containsKey(name))
+        {
+            return this.edits.get(name);
+        }
+
+        int index = indexOf(name);
+        if (index < 0)
+        {
+            return null;
+        }
+
+        int start = this.offsets[3 * index + 1] + 1;
+        int end = this.offsets[3 * index + 2];
+
+        return new String(this.bytes, start, end - start, StandardCharsets.UTF_8);
     }
 
+    @Override
     public int getAsInt(String name)
     {
-        return Integer.parseInt(this.nameValues.get(name));
+        if ((this.edits != null) && this.edits.containsKey(name))
+        {
+            return Integer.parseInt(this.edits.get(name));
+        }
+
+        int index = indexOf(name);
+        if (index < 0)
+        {
+            throw new NumberFormatException("null");
+        }
+
+        int start = this.offsets[3 * index + 1] + 1;
+        int end = this.offsets[3 * index + 2];
+
+        return parseInt(start, end);
     }
 
+    @Override
     public void remove(String name)
     {
         if (this.has(name))
         {
-            this.nameValues.remove(name);
+            edits().put(name, null);
         }
     }
 
+    @Override
     public void put(String name, String value)
     {
-        this.nameValues.put(name, value);
+        edits().put(name, value);
     }
 
+    @Override
     public void put(String name, int value)
     {
-        this.nameValues.put(name, Integer.toString(value));
+        edits().put(name, Integer.toString(value));
     }
 
+    @Override
     public String toMetadata()
     {
-        String metadata = "";
-        Iterator it = this.nameValues.entrySet().iterator();
-        while (it.hasNext())
+        build();
+        return new String(this.output, 0, this.outputLength, StandardCharsets.UTF_8);
+    }
+
+    // Write the metadata, including any change, into the given Text without going through a String.
+    public void writeTo(Text metadata)
+    {
+        build();
+        metadata.set(this.output, 0, this.outputLength);
+    }
+
+    // Same as writeTo() using a Text owned by the parser, the result is only valid until the next call.
+    public Text toText()
+    {
+        if (this.text == null)
+        {
+            this.text = new Text();
+        }
+
+        writeTo(this.text);
+        return this.text;
+    }
+
+    public void parse() throws InvalidPropertiesFormatException
+    {
+        this.count = 0;
+
+        int start = 0;
+        while (start < this.length)
         {
-            Map.Entry pairs = (Map.Entry)it.next();
-            if (metadata.isEmpty())
+            int end = start;
+            int separator = -1;
+            int separatorCount = 0;
+
+            while ((end < this.length) && (this.bytes[end] != ';'))
+            {
+                ++end;
+            }
+
+            // Trailing '=' are dropped, so "a=b=" is "a=b", as String.split() did in the original parser.
+            int valueEnd = end;
+            while ((valueEnd > start) && (this.bytes[valueEnd - 1] == '='))
             {
-                metadata += pairs.getKey() + "=" + pairs.getValue();
+                --valueEnd;
             }
-            else
+
+            for (int i = start; i < valueEnd; ++i)
             {
-                metadata += ";" + pairs.getKey() + "=" + pairs.getValue();
+                if (this.bytes[i] == '=')
+                {
+                    separator = i;
+                    separatorCount++;
+                }
             }
+
+            if (separatorCount != 1)
+            {
+                // Empty trailing entries such as "x=1;;" are ignored, same as String.split().
+                if ((start == end) && isTrailing(end))
+                {
+                    break;
+                }
+
+                throw new InvalidPropertiesFormatException("Invalid metadata...");
+            }
+
+            add(start, separator, valueEnd);
+            start = end + 1;
         }
 
-        return metadata;
+        if (this.count == 0)
+        {
+            throw new InvalidPropertiesFormatException("Invalid metadata...");
+        }
     }
 
-    public void parse() throws InvalidPropertiesFormatException
+    private void add(int start, int separator, int end)
+    {
+        if (3 * this.count + 3 > this.offsets.length)
+        {
+            int[] offsets = new int[2 * this.offsets.length];
+            System.arraycopy(this.offsets, 0, offsets, 0, this.offsets.length);
+            this.offsets = offsets;
+        }
+
+        this.offsets[3 * this.count] = start;
+        this.offsets[3 * this.count + 1] = separator;
+        this.offsets[3 * this.count + 2] = end;
+        this.count++;
+    }
+
+    private boolean isTrailing(int position)
     {
-        String[] nameValueArray = this.metadata.split(";");
-        for (String nameValue : nameValueArray)
+        for (int i = position; i < this.length; ++i)
         {
-            String[] nameValueSplit = nameValue.split("=");
-            if (nameValueSplit.length != 2)
+            if (this.bytes[i] != ';')
             {
-                throw new InvalidPropertiesFormatException("Invalid metadata...");
+                return false;
             }
+        }
+
+        return true;
+    }
+
+    private Map<String, String> edits()
+    {
+        if (this.edits == null)
+        {
+            this.edits = new HashMap<String, String>();
+        }
+
+        return this.edits;
+    }
+
+    // Index of the last pair with the given name, so that a duplicated name behave like a map.
+    private int indexOf(String name)
+    {
+        for (int i = this.count - 1; i >= 0; --i)
+        {
+            if (nameEquals(i, name))
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean nameEquals(int index, String name)
+    {
+        int start = this.offsets[3 * index];
+        int end = this.offsets[3 * index + 1];
+        int nameLength = name.length();
+
+        if (end - start < nameLength)
+        {
+            return false;
+        }
 
-            this.nameValues.put(nameValueSplit[0], nameValueSplit[1]);
+        for (int i = 0; i < nameLength; ++i)
+        {
+            char c = name.charAt(i);
+            if (c >= 0x80)
+            {
+                // Non ASCII name, compare the encoded bytes.
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                return rangeEquals(start, end, encoded, 0, encoded.length);
+            }
+
+            if (this.bytes[start + i] != (byte)c)
+            {
+                return false;
+            }
+        }
+
+        return end - start == nameLength;
+    }
+
+    private boolean namesEqual(int index1, int index2)
+    {
+        int start = this.offsets[3 * index2];
+        return rangeEquals(this.offsets[3 * index1], this.offsets[3 * index1 + 1], this.bytes, start, this.offsets[3 * index2 + 1] - start);
+    }
+
+    private boolean rangeEquals(int start, int end, byte[] other, int otherStart, int otherLength)
+    {
+        if (end - start != otherLength)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < otherLength; ++i)
+        {
+            if (this.bytes[start + i] != other[otherStart + i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int parseInt(int start, int end)
+    {
+        boolean negative = false;
+        int position = start;
+
+        if ((position < end) && ((this.bytes[position] == '-') || (this.bytes[position] == '+')))
+        {
+            negative = this.bytes[position] == '-';
+            ++position;
+        }
+
+        if (position == end)
+        {
+            throw numberFormatException(start, end);
+        }
+
+        long value = 0;
+        for (; position < end; ++position)
+        {
+            int digit = this.bytes[position] - '0';
+            if ((digit < 0) || (digit > 9))
+            {
+                throw numberFormatException(start, end);
+            }
+
+            value = 10 * value + digit;
+            if (value > (long)Integer.MAX_VALUE + 1)
+            {
+                throw numberFormatException(start, end);
+            }
+        }
+
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+        {
+            throw numberFormatException(start, end);
+        }
+
+        return (int)value;
+    }
+
+    private NumberFormatException numberFormatException(int start, int end)
+    {
+        return new NumberFormatException("For input string: \"" + new String(this.bytes, start, end - start, StandardCharsets.UTF_8) + "\"");
+    }
+
+    // Write the parsed pairs that are still valid followed by the added ones into the output buffer.
+    private void build()
+    {
+        this.outputLength = 0;
+
+        for (int i = 0; i < this.count; ++i)
+        {
+            if (isOverridden(i))
+            {
+                continue;
+            }
+
+            if (this.outputLength > 0)
+            {
+                write((byte)';');
+            }
+
+            int start = this.offsets[3 * i];
+            write(this.bytes, start, this.offsets[3 * i + 2] - start);
+        }
+
+        if (this.edits != null)
+        {
+            Iterator<Map.Entry<String, String>> it = this.edits.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, String> pairs = it.next();
+                if (pairs.getValue() == null)
+                {
+                    continue;
+                }
+
+                if (this.outputLength > 0)
+                {
+                    write((byte)';');
+                }
+
+                write(pairs.getKey());
+                write((byte)'=');
+                write(pairs.getValue());
+            }
+        }
+    }
+
+    // A parsed pair is skipped if it is modified, removed or repeated later in the metadata.
+    private boolean isOverridden(int index)
+    {
+        for (int i = index + 1; i < this.count; ++i)
+        {
+            if (namesEqual(index, i))
+            {
+                return true;
+            }
+        }
+
+        if (this.edits != null)
+        {
+            for (String name : this.edits.keySet())
+            {
+                if (nameEquals(index, name))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void write(byte b)
+    {
+        ensureOutput(1);
+        this.output[this.outputLength++] = b;
+    }
+
+    private void write(byte[] data, int start, int length)
+    {
+        ensureOutput(length);
+        System.arraycopy(data, start, this.output, this.outputLength, length);
+        this.outputLength += length;
+    }
+
+    private void write(String value)
+    {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        write(data, 0, data.length);
+    }
+
+    private void ensureOutput(int extra)
+    {
+        if (this.outputLength + extra > this.output.length)
+        {
+            byte[] output = new byte[Math.max(2 * this.output.length, this.outputLength + extra + 64)];
+            System.arraycopy(this.output, 0, output, 0, this.outputLength);
+            this.output = output;
         }
     }
 }
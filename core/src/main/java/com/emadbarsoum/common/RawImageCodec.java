@@ -0,0 +1,165 @@
+package com.emadbarsoum.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * RawImageCodec is the lossless codec of the "rawz" record type, a middle ground between raw images,
+ * which are fast to read but large, and JPEG or PNG images, which are small but slow to decode.
+ *
+ * Each row is filtered by replacing each byte with its difference from the same channel of the previous
+ * pixel (the PNG "Sub" filter), which turns smooth areas into runs of small values, and the filtered rows
+ * are compressed with Deflate at its fastest level. Decoding inflate the rows, undo the filter in place
+ * and copy them into the image buffer. The rows are stored without the widthStep padding.
+ *
+ * The codec keeps its buffers and zlib state across images, call end() to free them. This class isn't
+ * thread safe.
+ */
+public class RawImageCodec
+{
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    private byte[] rows = new byte[0];
+    private byte[] output = new byte[0];
+
+    // Filter and compress the pixels of the image, return the compressed data.
+    public byte[] encode(IplImage image)
+    {
+        int height = image.height();
+        int widthStep = image.widthStep();
+        int pixelSize = image.nChannels() * ((image.depth() & 255) / 8);
+        int rowSize = image.width() * pixelSize;
+        int length = rowSize * height;
+
+        ensureRows(length);
+
+        ByteBuffer buffer = image.getByteBuffer();
+        for (int row = 0; row < height; ++row)
+        {
+            buffer.position(row * widthStep);
+            buffer.get(this.rows, row * rowSize, rowSize);
+
+            // Backward, so each byte is subtracted the original value of its left neighbor.
+            int start = row * rowSize;
+            for (int i = start + rowSize - 1; i >= start + pixelSize; --i)
+            {
+                this.rows[i] -= this.rows[i - pixelSize];
+            }
+        }
+
+        if (this.deflater == null)
+        {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        this.deflater.reset();
+        this.deflater.setInput(this.rows, 0, length);
+        this.deflater.finish();
+
+        if (this.output.length < length / 2 + 64)
+        {
+            this.output = new byte[length / 2 + 64];
+        }
+
+        int size = 0;
+        while (!this.deflater.finished())
+        {
+            if (size == this.output.length)
+            {
+                this.output = Arrays.copyOf(this.output, this.output.length * 2);
+            }
+
+            size += this.deflater.deflate(this.output, size, this.output.length - size);
+        }
+
+        return Arrays.copyOf(this.output, size);
+    }
+
+    // Decompress and unfilter the data into the image, which must have the size and type the data was
+    // encoded from.
+    public void decode(byte[] data, int length, IplImage image)
+    {
+        int height = image.height();
+        int pixelSize = image.nChannels() * ((image.depth() & 255) / 8);
+        int rowSize = image.width() * pixelSize;
+        int rowsLength = rowSize * height;
+
+        ensureRows(rowsLength);
+
+        if (this.inflater == null)
+        {
+            this.inflater = new Inflater();
+        }
+
+        this.inflater.reset();
+        this.inflater.setInput(data, 0, length);
+
+        try
+        {
+            int size = 0;
+            while ((size < rowsLength) && !this.inflater.finished())
+            {
+                int count = this.inflater.inflate(this.rows, size, rowsLength - size);
+                if ((count == 0) && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                {
+                    break;
+                }
+
+                size += count;
+            }
+
+            if ((size != rowsLength) || !this.inflater.finished())
+            {
+                throw new IllegalArgumentException("The rawz image data doesn't match a " +
+                    image.width() + "x" + image.height() + " image.");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid rawz image data.", e);
+        }
+
+        for (int row = 0; row < height; ++row)
+        {
+            int start = row * rowSize;
+            for (int i = start + pixelSize; i < start + rowSize; ++i)
+            {
+                this.rows[i] += this.rows[i - pixelSize];
+            }
+        }
+
+        ImageHelper.copyRawBytes(this.rows, rowsLength, image);
+    }
+
+    // Free the zlib state and the buffers.
+    public void end()
+    {
+        if (this.deflater != null)
+        {
+            this.deflater.end();
+            this.deflater = null;
+        }
+
+        if (this.inflater != null)
+        {
+            this.inflater.end();
+            this.inflater = null;
+        }
+
+        this.rows = new byte[0];
+        this.output = new byte[0];
+    }
+
+    private void ensureRows(int length)
+    {
+        if (this.rows.length < length)
+        {
+            this.rows = new byte[length];
+        }
+    }
+}
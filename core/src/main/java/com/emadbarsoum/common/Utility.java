@@ -1,5 +1,12 @@
 package com.emadbarsoum.common;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
@@ -21,4 +28,47 @@ public class Utility
         byte[] fileData = Files.readAllBytes(Paths.get(path));
         return new String(fileData, charset);
     }
+
+    // Return the key class of a sequence file. If the path is a folder (such as the output of a job) or a
+    // glob, the first sequence file found is used. Text is returned if there is no sequence file.
+    public static Class<?> getSequenceFileKeyClass(Configuration conf, Path path) throws IOException
+    {
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus[] statuses = fs.globStatus(path);
+        if (statuses == null)
+        {
+            return Text.class;
+        }
+
+        for (FileStatus status : statuses)
+        {
+            if (status.isDirectory())
+            {
+                statuses = fs.listStatus(status.getPath());
+            }
+            else
+            {
+                statuses = new FileStatus[]{status};
+            }
+
+            for (FileStatus file : statuses)
+            {
+                String name = file.getPath().getName();
+                if (file.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                {
+                    SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file.getPath()));
+                    try
+                    {
+                        return reader.getKeyClass();
+                    }
+                    finally
+                    {
+                        reader.close();
+                    }
+                }
+            }
+        }
+
+        return Text.class;
+    }
 }
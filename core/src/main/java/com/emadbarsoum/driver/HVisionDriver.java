@@ -65,6 +65,14 @@ public final class HVisionDriver
             {
                 com.emadbarsoum.tools.SVMModelsFromSequenceFile.main(remainingArgs);
             }
+            else if (args[0].equals("ikconv"))
+            {
+                com.emadbarsoum.format.ImageKeyConverter.main(remainingArgs);
+            }
+            else if (args[0].equals("iseqbench"))
+            {
+                com.emadbarsoum.tools.SequenceFileBenchmark.main(remainingArgs);
+            }
             // Hadoop tasks
             else
             {
@@ -78,6 +86,9 @@ public final class HVisionDriver
                 programDriver.addClass("color2gray", Gaussian.class, "Map task that convert a set of colored images to monochrome images.");
                 programDriver.addClass("dilate", Dilate.class, "Map task that dilate a set of images.");
                 programDriver.addClass("erode", Erode.class, "Map task that erode a set of images.");
+                programDriver.addClass("morph", Morph.class, "Map task that apply a morphological operation such as open or close to a set of images.");
+                programDriver.addClass("chain", Chain.class, "Map task that apply a chain of operators to a set of images in a single pass.");
+                programDriver.addClass("iseqmr", SequenceFileFromImageList.class, "Map task that convert a list of images into image sequence files.");
 
                 // MapReduce tasks
                 programDriver.addClass("imagesearch", ImageSearch.class, "MapReduce task that performs content based image search using various algorithms.");
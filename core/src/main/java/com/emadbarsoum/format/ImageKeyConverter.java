@@ -0,0 +1,130 @@
+package com.emadbarsoum.format;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageKeyWritable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A simple command line tool that migrate an image sequence file with "name=value;..." Text keys into
+ * an image sequence file with binary ImageKeyWritable keys, or the other way around with "-text".
+ *
+ * The input can be a single sequence file or a folder of sequence files (such as the output of a job),
+ * in the later case the output is a folder with the same file names.
+ *
+ * Here the main entry point: com.emadbarsoum.format.ImageKeyConverter
+ */
+public class ImageKeyConverter
+{
+    public static void main(String[] args) throws Exception
+    {
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 2)  ||
+            !(parser.has("i") && parser.has("o")))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        boolean toText = parser.has("text");
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        Path inputPath = new Path(new File(parser.get("i")).getAbsolutePath());
+        Path outputPath = new Path(new File(parser.get("o")).getAbsolutePath());
+        FileSystem fs = inputPath.getFileSystem(conf);
+
+        if (fs.getFileStatus(inputPath).isDirectory())
+        {
+            for (FileStatus status : fs.listStatus(inputPath))
+            {
+                String name = status.getPath().getName();
+                if (status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                {
+                    convert(conf, status.getPath(), new Path(outputPath, name), toText);
+                }
+            }
+        }
+        else
+        {
+            convert(conf, inputPath, outputPath, toText);
+        }
+    }
+
+    // Convert one file, a partially written output is deleted if the conversion fails.
+    private static void convert(Configuration conf, Path inputPath, Path outputPath, boolean toText) throws IOException
+    {
+        SequenceFile.Reader reader = new SequenceFile.Reader(
+                conf,
+                SequenceFile.Reader.file(inputPath));
+
+        try
+        {
+            SequenceFile.Writer writer = SequenceFile.createWriter(
+                    conf,
+                    SequenceFile.Writer.file(outputPath),
+                    SequenceFile.Writer.keyClass(toText ? Text.class : ImageKeyWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class));
+
+            boolean done = false;
+            try
+            {
+                boolean binaryInput = ImageKeyWritable.class.equals(reader.getKeyClass());
+                Writable key = binaryInput ? new ImageKeyWritable() : new Text();
+                ImageKeyWritable binaryKey = new ImageKeyWritable();
+                Text textKey = new Text();
+                BytesWritable value = new BytesWritable();
+
+                while (reader.next(key, value))
+                {
+                    if (toText)
+                    {
+                        textKey.set(key.toString());
+                        writer.append(textKey, value);
+                    }
+                    else if (binaryInput)
+                    {
+                        writer.append(key, value);
+                    }
+                    else
+                    {
+                        binaryKey.clear();
+                        binaryKey.putAll(key.toString());
+                        writer.append(binaryKey, value);
+                    }
+                }
+
+                done = true;
+            }
+            finally
+            {
+                writer.close();
+
+                if (!done)
+                {
+                    outputPath.getFileSystem(conf).delete(outputPath, false);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision ikconv -i <input path to sequence file or folder> -o <output path> [-text]");
+    }
+}
@@ -1,16 +1,24 @@
 package com.emadbarsoum.format;
 
 import com.emadbarsoum.common.*;
+import com.emadbarsoum.lib.ImageRecord;
 import com.emadbarsoum.lib.ImageSearchResultReader;
+import com.emadbarsoum.lib.ImageStore;
 import org.apache.hadoop.conf.Configuration;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * com.emadbarsoum.format.ImageSearchResultDump
  *
+ * By default the images are loaded from their original path, with "-s" they are fetched by name from
+ * the indexed image sequence file that was searched, reading only the top images.
  */
 public class ImageSearchResultDump
 {
@@ -18,7 +26,7 @@ public class ImageSearchResultDump
     {
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
-            (parser.getNumberOfArgs() != 3) ||
+            (parser.getNumberOfArgs() < 3)  ||
             !(parser.has("i") && parser.has("o") && parser.has("top")))
         {
             showUsage();
@@ -41,26 +49,96 @@ public class ImageSearchResultDump
 
         reader.open(inputFile.getAbsolutePath());
 
-        int fileIndex = 0;
-        while (reader.next())
+        try
         {
-            String outputPath = parser.get("o") + "/" + fileIndex + "." + reader.ext();
+            if (parser.has("s"))
+            {
+                dumpFromStore(conf, reader, new File(parser.get("s")).getAbsolutePath(), parser.get("o"), numOfImages);
+                return;
+            }
 
-            cvSaveImage(outputPath, reader.image());
+            int fileIndex = 0;
+            while (reader.next())
+            {
+                String outputPath = parser.get("o") + "/" + fileIndex + "." + reader.ext();
 
-            ++fileIndex;
+                cvSaveImage(outputPath, reader.image());
 
-            if (fileIndex >= numOfImages)
-            {
-                break;
+                ++fileIndex;
+
+                if (fileIndex >= numOfImages)
+                {
+                    break;
+                }
             }
         }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    // Collect the names of the top images, then fetch them from the store in a single batch. Images that
+    // can't be decoded are reported and skipped.
+    private static void dumpFromStore(Configuration conf, ImageSearchResultReader reader, String storePath, String outputFolder, int numOfImages) throws Exception
+    {
+        List<String> names = new ArrayList<String>();
+        List<String> exts = new ArrayList<String>();
+        while ((names.size() < numOfImages) && reader.next())
+        {
+            names.add(reader.name());
+            exts.add(reader.ext());
+        }
+
+        ImageStore store = new ImageStore(conf);
+        ImageDecoder decoder = new ImageDecoder();
 
-        reader.close();
+        try
+        {
+            store.open(storePath);
+
+            Map<String, ImageRecord> records = store.getAll(names);
+            MetadataParser metadataParser = new MetadataParser();
+
+            for (int fileIndex = 0; fileIndex < names.size(); ++fileIndex)
+            {
+                ImageRecord record = records.get(names.get(fileIndex));
+                if (record == null)
+                {
+                    System.out.println("Image " + names.get(fileIndex) + " isn't in " + storePath);
+                    continue;
+                }
+
+                ImageMetadata metadata = ImageHelper.getMetadata(record.key(), metadataParser);
+
+                IplImage image;
+                try
+                {
+                    image = decoder.decode(metadata, record.value());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    image = null;
+                }
+
+                if (image == null)
+                {
+                    System.out.println("Failed to decode " + names.get(fileIndex));
+                    continue;
+                }
+
+                cvSaveImage(outputFolder + "/" + fileIndex + "." + exts.get(fileIndex), image);
+            }
+        }
+        finally
+        {
+            decoder.release();
+            store.close();
+        }
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision isrdump -i <input path to sequence file> -o <output folder> -top <number of images>");
+        System.out.println("Usage: hvision isrdump -i <input path to sequence file> -o <output folder> -top <number of images> [-s <indexed image sequence file>]");
     }
 }
@@ -3,16 +3,18 @@ package com.emadbarsoum.format;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
 
 import com.emadbarsoum.common.CommandParser;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.lib.AsyncImageSequenceFileReader;
+import com.emadbarsoum.lib.MappedImageSequenceFileReader;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
@@ -20,6 +22,9 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * A simple command line tool that dump all images in a given folder from a Hadoop sequence file.
  *
+ * With -mmap, an uncompressed sequence file on the local disk is memory mapped and read without the
+ * Hadoop file system, so compressed images are written straight from the mapped file.
+ *
  * Here the main entry point: com.emadbarsoum.format.ImagesFromSequenceFile
  *
  */
@@ -29,7 +34,7 @@ public class ImagesFromSequenceFile
     {
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
-            (parser.getNumberOfArgs() != 2) ||
+            (parser.getNumberOfArgs() < 2)  ||
             !(parser.has("i") && parser.has("o")))
         {
             showUsage();
@@ -40,77 +45,108 @@ public class ImagesFromSequenceFile
         conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
 
         File inputFile = new File(parser.get("i"));
-        Path inputPath = new Path(inputFile.getAbsolutePath());
+        if (parser.has("mmap") && MappedImageSequenceFileReader.isSupported(conf, new Path(inputFile.getAbsolutePath())))
+        {
+            dumpMapped(conf, inputFile, parser);
+            return;
+        }
 
-        SequenceFile.Reader reader = new SequenceFile.Reader(
-                conf,
-                SequenceFile.Reader.file(inputPath));
+        int threadCount = parser.has("threads") ? parser.getAsInt("threads") : Runtime.getRuntime().availableProcessors();
 
-        Text key = new Text();
-        BytesWritable value = new BytesWritable();
-        IplImage image = null;
+        // The images are written by name, so the order doesn't matter. Compressed images are written
+        // as is, only the raw and rawz ones are decoded and encoded back.
+        AsyncImageSequenceFileReader reader = new AsyncImageSequenceFileReader(conf, threadCount);
+        reader.setOrdered(false);
+        reader.setDecodeCompressed(false);
+        reader.open(inputFile.getAbsolutePath());
 
-        while (reader.next(key, value))
+        try
         {
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-
-            String outputPath = parser.get("o") + "/" + metadata.get("name") + "." + metadata.get("ext");
-            if (metadata.has("type") && metadata.get("type").equals("raw"))
+            while (reader.next())
             {
-                String ext = "." + metadata.get("ext");
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
+                ImageMetadata metadata = reader.metadata();
+                String outputPath = parser.get("o") + "/" + reader.name() + "." + reader.originalExt();
 
-                if (image == null)
+                if (ImageHelper.isRawType(metadata))
                 {
-                    image = IplImage.create(width, height, depth, channelCount);
+                    writeEncoded(reader.image(), reader.originalExt(), outputPath);
                 }
-                else if (!((image.width() == width)   &&
-                           (image.height() == height) &&
-                           (image.depth() == depth)   &&
-                           (image.nChannels() == channelCount)))
+                else
                 {
-                    image.release();
-                    image = IplImage.create(width, height, depth, channelCount);
-                }
-
-                ByteBuffer buffer = image.getByteBuffer();
-                byte[] rawBuffer = Arrays.copyOf(value.getBytes(), value.getLength());
-                buffer.put(rawBuffer);
-
-                CvMat imageMat = cvEncodeImage(ext, image);
+                    BytesWritable value = reader.value();
 
-                // Write the result...
-                byte[] data = new byte[imageMat.size()];
-                imageMat.getByteBuffer().get(data);
+                    DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
+                    out.write(value.getBytes(), 0, value.getLength());
+                    out.close();
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
 
-                DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
-                out.write(data, 0, data.length);
-                out.close();
+    // Read the file with MappedImageSequenceFileReader, on a single thread.
+    private static void dumpMapped(Configuration conf, File inputFile, CommandParser parser) throws Exception
+    {
+        MappedImageSequenceFileReader reader = new MappedImageSequenceFileReader(conf);
+        reader.setDecodeCompressed(false);
+        reader.setVerifyChecksum(parser.has("verify"));
+        reader.open(inputFile.getAbsolutePath());
 
-                cvReleaseMat(imageMat);
-            }
-            else
+        try
+        {
+            while (reader.next())
             {
-                DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
-                out.write(value.getBytes(), 0, value.getLength());
-                out.close();
+                String outputPath = parser.get("o") + "/" + reader.name() + "." + reader.originalExt();
+
+                if (ImageHelper.isRawType(reader.metadata()))
+                {
+                    writeEncoded(reader.image(), reader.originalExt(), outputPath);
+                }
+                else
+                {
+                    ByteBuffer value = reader.value().duplicate();
+
+                    FileChannel out = new FileOutputStream(outputPath).getChannel();
+                    try
+                    {
+                        while (value.hasRemaining())
+                        {
+                            out.write(value);
+                        }
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
             }
         }
-
-        if (image != null)
+        finally
         {
-            image.release();
+            reader.close();
         }
+    }
+
+    private static void writeEncoded(IplImage image, String ext, String outputPath) throws IOException
+    {
+        CvMat imageMat = cvEncodeImage("." + ext, image);
+
+        // Write the result...
+        byte[] data = new byte[imageMat.size()];
+        imageMat.getByteBuffer().get(data);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
+        out.write(data, 0, data.length);
+        out.close();
 
-        reader.close();
+        cvReleaseMat(imageMat);
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision idump -i <input path to sequence file> -o <output folder>");
+        System.out.println("Usage: hvision idump -i <input path to sequence file> -o <output folder> [-threads <number of decoding threads>] [-mmap [-verify]]");
     }
 }
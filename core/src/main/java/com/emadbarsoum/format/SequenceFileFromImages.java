@@ -1,11 +1,13 @@
 package com.emadbarsoum.format;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.nio.ByteBuffer;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageFileWalker;
+import com.emadbarsoum.lib.ImageDeduplicator;
 import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import com.emadbarsoum.lib.ParallelImageSequenceFileWriter;
 import com.google.common.io.Files;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -35,8 +37,8 @@ public class SequenceFileFromImages
             System.exit(2);
         }
 
-        // Should we store the images uncompressed in the sequence file.
-        if (parser.has("raw"))
+        // Should we store the images uncompressed in the sequence file, as is or with a fast lossless codec.
+        if (parser.has("raw") || parser.has("rawz"))
         {
             compressed = false;
         }
@@ -46,44 +48,113 @@ public class SequenceFileFromImages
 
         File outputFile = new File(parser.get("o"));
 
-        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+        ImageSequenceFileWriter writer;
+        if (parser.has("threads"))
+        {
+            // Read and decode the images on multiple threads, while a single thread write them.
+            ParallelImageSequenceFileWriter parallelWriter = new ParallelImageSequenceFileWriter(conf, compressed, parser.getAsInt("threads"));
+            parallelWriter.setOrdered(parser.has("ordered"));
+            parallelWriter.setSharded(parser.has("shards"));
+
+            writer = parallelWriter;
+        }
+        else
+        {
+            writer = new ImageSequenceFileWriter(conf, compressed);
+        }
+
+        writer.setRawz(parser.has("rawz"));
+
+        // Store the metadata as binary ImageKeyWritable instead of Text.
+        writer.setBinaryKey(parser.has("binkey"));
+
+        // Index the images by name, so they can be fetched with ImageStore.
+        writer.setIndexed(parser.has("index"));
+
+        // Compress the records or blocks of records, the files are uncompressed by default.
+        writer.configureCompression(parser);
+
+        // Roll to a new part file after the given size in MB (0 for one block) and/or number of images,
+        // with only -rollcount the parts have no size limit.
+        if (parser.has("roll") || parser.has("rollcount"))
+        {
+            long maxBytes = parser.has("roll") ? parser.getAsInt("roll") * 1024L * 1024L : -1;
+            long maxRecords = parser.has("rollcount") ? parser.getAsInt("rollcount") : 0;
+
+            writer.setRolling(maxBytes, maxRecords);
+        }
+
+        // Continue an interrupted or previous run, only the new images are added as new parts.
+        if (parser.has("resume"))
+        {
+            if (!writer.isRolling())
+            {
+                writer.setRolling(0, 0);
+            }
+
+            writer.setResume(true);
+        }
+
+        // Skip images with the same content, across runs if a store folder is given.
+        ImageDeduplicator deduplicator = null;
+        if (parser.has("dedup") || parser.has("dedupstore"))
+        {
+            int expectedImages = parser.has("dedupsize") ? parser.getAsInt("dedupsize") : 10000000;
+            deduplicator = new ImageDeduplicator(conf, parser.has("dedupstore") ? new File(parser.get("dedupstore")).getAbsolutePath() : null, expectedImages);
+            deduplicator.open();
+
+            writer.setDeduplicator(deduplicator);
+        }
 
         writer.create(outputFile.getAbsolutePath());
 
-        // Iterate through image files only.
-        FilenameFilter fileNameFilter = new FilenameFilter()
+        // Stream the image files to the writer, including the ones in sub folders.
+        ImageFileWalker walker = new ImageFileWalker();
+        walker.configure(parser);
+
+        final ImageSequenceFileWriter imageWriter = writer;
+        final File input = new File(parser.get("i"));
+        if (ImageFileWalker.isArchive(input))
         {
-            @Override
-            public boolean accept(File dir, String name)
+            // Read the images straight from the archive, without extracting it.
+            walker.walkArchive(input, 0, new ImageFileWalker.ArchiveVisitor()
             {
-                if (name.lastIndexOf('.') > 0)
+                @Override
+                public void visit(String entryName, byte[] data) throws Exception
                 {
-                    int lastIndex = name.lastIndexOf('.');
-                    String str = name.substring(lastIndex).toLowerCase();
-
-                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
-                    {
-                        return true;
-                    }
+                    String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+                    imageWriter.append(fileName, input.getAbsolutePath() + "!/" + entryName, data, null);
                 }
-                return false;
-            }
-        };
-
-        File[] files = new File(parser.get("i")).listFiles(fileNameFilter);
-        for (File file : files)
+            });
+        }
+        else
         {
-            if (file.isFile() && !file.isHidden())
+            walker.walk(input, new ImageFileWalker.Visitor()
             {
-                writer.append(file);
-            }
+                @Override
+                public void visit(File imageFile) throws Exception
+                {
+                    imageWriter.append(imageFile);
+                }
+            });
         }
 
         writer.close();
+
+        if (writer.isResume())
+        {
+            System.out.println("Skipped " + writer.skippedCount() + " already ingested images.");
+        }
+
+        if (deduplicator != null)
+        {
+            deduplicator.close();
+            System.out.println("Skipped " + deduplicator.duplicateCount() + " duplicate images.");
+        }
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision iseq -i <input path to folder of images> -o <output path for sequence file> [-raw]");
+        System.out.println("Usage: hvision iseq -i <input path to folder of images or tar, tar.gz, zip archive> -o <output path for sequence file> [-ext <jpg,jpeg,png>] [-minsize <KB>] [-maxsize <KB>] [-norecurse] [-raw | -rawz] [-binkey] [-index] [-roll <part size in MB>] [-rollcount <images per part>] [-resume] [-dedup] [-dedupstore <folder> [-dedupsize <expected images>]] [-compress <record or block> [-codec <snappy, lz4, deflate, bzip2 or gzip>] [-blocksize <KB>]] [-threads <number of threads> [-ordered] [-shards]]");
     }
 }
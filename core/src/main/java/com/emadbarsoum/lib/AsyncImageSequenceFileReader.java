@@ -0,0 +1,390 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageDecoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * AsyncImageSequenceFileReader is a read ahead version of ImageSequenceFileReader, a reader thread
+ * read the next records while a pool of threads decode them, so the caller only wait when it is faster
+ * than both the disk and the decoding.
+ *
+ * The records are read into a fixed ring of buffers, each with its own reusable image, so the memory
+ * stays flat whatever the size of the file. A buffer is given back to the ring by the next call to
+ * next(), so image() and metadata() are only valid until then. In ordered mode the images are returned
+ * in file order, otherwise they are returned as soon as they are decoded.
+ */
+public class AsyncImageSequenceFileReader
+{
+    private Configuration conf = null;
+    private int threadCount;
+    private int bufferCount;
+    private boolean ordered = true;
+    private boolean decodeCompressed = true;
+
+    private SequenceFile.Reader reader = null;
+    private Thread readerThread = null;
+    private ExecutorService decoders = null;
+    private List<Slot> slots = null;
+    private BlockingQueue<Slot> free = null;
+    private volatile boolean closing = false;
+    private volatile Exception failure = null;
+
+    // Decoded records, guarded by this.lock.
+    private final Object lock = new Object();
+    private Map<Long, Slot> decoded = new HashMap<Long, Slot>();
+    private Deque<Slot> decodedQueue = new ArrayDeque<Slot>();
+    private long recordCount = -1;
+    private long nextSequence = 0;
+
+    private Slot current = null;
+
+    public AsyncImageSequenceFileReader(Configuration conf, int threadCount)
+    {
+        if (conf == null)
+        {
+            throw new IllegalArgumentException("conf can't be null");
+        }
+
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("threadCount must be greater than or equal to 1.");
+        }
+
+        this.conf = conf;
+        this.threadCount = threadCount;
+        this.bufferCount = 2 * threadCount + 2;
+    }
+
+    public boolean isOrdered()
+    {
+        return this.ordered;
+    }
+
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+
+    public int getBufferCount()
+    {
+        return this.bufferCount;
+    }
+
+    // Number of records that are read ahead, including the one returned by the last next().
+    public void setBufferCount(int bufferCount)
+    {
+        if (bufferCount < 2)
+        {
+            throw new IllegalArgumentException("bufferCount must be greater than or equal to 2.");
+        }
+
+        this.bufferCount = bufferCount;
+    }
+
+    public boolean isDecodeCompressed()
+    {
+        return this.decodeCompressed;
+    }
+
+    // If false, compressed images are not decoded and image() is null for them, which is useful
+    // for a caller that only need the compressed bytes.
+    public void setDecodeCompressed(boolean decodeCompressed)
+    {
+        this.decodeCompressed = decodeCompressed;
+    }
+
+    public String name()
+    {
+        return this.current.name;
+    }
+
+    public String originalExt()
+    {
+        return this.current.ext;
+    }
+
+    // The decoded image, null if it can't be decoded.
+    public IplImage image()
+    {
+        return this.current.image;
+    }
+
+    public ImageMetadata metadata()
+    {
+        return this.current.metadata;
+    }
+
+    // The record value, compressed or raw image data.
+    public BytesWritable value()
+    {
+        return this.current.value;
+    }
+
+    public void open(String inputPath) throws IOException
+    {
+        close();
+
+        this.reader = new SequenceFile.Reader(
+            this.conf,
+            SequenceFile.Reader.file(new Path(inputPath)));
+
+        this.slots = new ArrayList<Slot>();
+        this.free = new ArrayBlockingQueue<Slot>(this.bufferCount);
+        for (int i = 0; i < this.bufferCount; ++i)
+        {
+            // The key is either a Text or an ImageKeyWritable.
+            Slot slot = new Slot((Writable)ReflectionUtils.newInstance(this.reader.getKeyClass(), this.conf));
+            this.slots.add(slot);
+            this.free.add(slot);
+        }
+
+        this.closing = false;
+        this.failure = null;
+        this.recordCount = -1;
+        this.nextSequence = 0;
+
+        this.decoders = Executors.newFixedThreadPool(this.threadCount);
+        this.readerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                read();
+            }
+        }, "ImageSequenceFileReader");
+        this.readerThread.start();
+    }
+
+    public boolean next() throws Exception
+    {
+        if (this.readerThread == null)
+        {
+            throw new Exception("Invalid State: open() must be called before next().");
+        }
+
+        if (this.current != null)
+        {
+            this.free.put(this.current);
+            this.current = null;
+        }
+
+        synchronized (this.lock)
+        {
+            while (true)
+            {
+                if (this.failure != null)
+                {
+                    throw new Exception("Failed to read one or more images.", this.failure);
+                }
+
+                Slot slot = this.ordered ? this.decoded.remove(this.nextSequence) : this.decodedQueue.poll();
+                if (slot != null)
+                {
+                    this.nextSequence++;
+                    this.current = slot;
+                    return true;
+                }
+
+                if ((this.recordCount >= 0) && (this.nextSequence >= this.recordCount))
+                {
+                    return false;
+                }
+
+                this.lock.wait();
+            }
+        }
+    }
+
+    public void close() throws IOException
+    {
+        if (this.readerThread == null)
+        {
+            return;
+        }
+
+        this.closing = true;
+
+        try
+        {
+            this.readerThread.interrupt();
+            this.readerThread.join();
+
+            this.decoders.shutdown();
+            this.decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the pending images.", e);
+        }
+        finally
+        {
+            for (Slot slot : this.slots)
+            {
+                slot.decoder.release();
+                slot.image = null;
+            }
+
+            synchronized (this.lock)
+            {
+                this.decoded.clear();
+                this.decodedQueue.clear();
+            }
+
+            this.readerThread = null;
+            this.decoders = null;
+            this.slots = null;
+            this.free = null;
+            this.current = null;
+
+            this.reader.close();
+            this.reader = null;
+        }
+    }
+
+    // Reader thread: fill the free buffers with the next records and hand them to the decoders.
+    private void read()
+    {
+        long sequence = 0;
+
+        try
+        {
+            while (!this.closing)
+            {
+                final Slot slot = this.free.take();
+                if (!this.reader.next(slot.key, slot.value))
+                {
+                    break;
+                }
+
+                slot.sequence = sequence++;
+                this.decoders.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        decode(slot);
+                    }
+                });
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Closing.
+        }
+        catch (Exception e)
+        {
+            if (!this.closing)
+            {
+                fail(e);
+            }
+        }
+        finally
+        {
+            synchronized (this.lock)
+            {
+                this.recordCount = sequence;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    // Decoder side: parse the metadata and decode the image with the buffer decoder.
+    private void decode(Slot slot)
+    {
+        try
+        {
+            ImageMetadata metadata = ImageHelper.getMetadata(slot.key, slot.parser);
+
+            slot.metadata = metadata;
+            slot.name = metadata.get("name");
+            slot.ext = metadata.get("ext");
+
+            if (this.decodeCompressed || ImageHelper.isRawType(metadata))
+            {
+                slot.image = slot.decoder.decode(metadata, slot.value);
+            }
+            else
+            {
+                slot.decoder.release();
+                slot.image = null;
+            }
+        }
+        catch (Exception e)
+        {
+            fail(new Exception("Failed to decode record " + slot.sequence, e));
+        }
+
+        synchronized (this.lock)
+        {
+            if (this.ordered)
+            {
+                this.decoded.put(slot.sequence, slot);
+            }
+            else
+            {
+                this.decodedQueue.add(slot);
+            }
+
+            this.lock.notifyAll();
+        }
+    }
+
+    private void fail(Exception e)
+    {
+        synchronized (this.lock)
+        {
+            if (this.failure == null)
+            {
+                this.failure = e;
+            }
+
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * A buffer of the ring, with its own decoder so the native buffers are reused by the next record
+     * read into it.
+     */
+    private static class Slot
+    {
+        final Writable key;
+        final BytesWritable value = new BytesWritable();
+        final MetadataParser parser = new MetadataParser();
+        final ImageDecoder decoder = new ImageDecoder();
+        long sequence;
+        ImageMetadata metadata;
+        String name;
+        String ext;
+        IplImage image;
+
+        Slot(Writable key)
+        {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataFilter;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BalancedImageInputFormat is an ImageInputFormat whose splits have about the same estimated work,
+ * instead of the same number of bytes.
+ *
+ * The cost of a map task grows with the number of pixels of its images, and the compression ratio of
+ * JPEG images vary a lot, so splits of the same size in bytes can take very different times. Before
+ * the job is submitted, the keys of all the records are read and the size of each image is taken from
+ * its raw metadata, without reading its pixels, or from the header of the compressed image. The splits
+ * are then cut at the sync points of the files so that each has about total cost / number of splits,
+ * using an ImageCostFunction. Records rejected by the metadata filter cost nothing.
+ *
+ * The number of splits is the one of ImageInputFormat unless set with setSplitCount(). Reading the
+ * compressed records before the job takes about the time of reading them once, spread on a few threads.
+ */
+public class BalancedImageInputFormat extends ImageInputFormat
+{
+    public static final String COST_CLASS = "hvision.split.cost.class";
+    public static final String SPLIT_COUNT = "hvision.split.count";
+    public static final String SCAN_THREADS = "hvision.split.scan.threads";
+
+    // The sync marker in front of a record, as written by SequenceFile.Writer.
+    private static final int SYNC_ESCAPE = -1;
+    private static final int SYNC_HASH_SIZE = 16;
+
+    private static final Logger log = LoggerFactory.getLogger(BalancedImageInputFormat.class);
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException
+    {
+        final Configuration conf = job.getConfiguration();
+        int splitCount = conf.getInt(SPLIT_COUNT, 0);
+        if (splitCount <= 0)
+        {
+            splitCount = super.getSplits(job).size();
+        }
+
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        for (FileStatus file : listStatus(job))
+        {
+            if (file.getLen() > 0)
+            {
+                files.add(file);
+            }
+        }
+
+        // Read the cost of the records of each file.
+        final Class<? extends ImageCostFunction> costClass = conf.getClass(COST_CLASS, PixelCostFunction.class, ImageCostFunction.class);
+        int threadCount = Math.max(1, Math.min(files.size(), conf.getInt(SCAN_THREADS, 8)));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<List<Segment>>> scans = new ArrayList<Future<List<Segment>>>();
+        List<List<Segment>> fileSegments = new ArrayList<List<Segment>>();
+
+        try
+        {
+            for (final FileStatus file : files)
+            {
+                scans.add(executor.submit(new Callable<List<Segment>>()
+                {
+                    @Override
+                    public List<Segment> call() throws Exception
+                    {
+                        return scan(conf, file, ReflectionUtils.newInstance(costClass, conf));
+                    }
+                }));
+            }
+
+            for (Future<List<Segment>> scan : scans)
+            {
+                fileSegments.add(scan.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the cost of the input images.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Failed to read the cost of the input images.", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        double totalCost = 0;
+        for (List<Segment> segments : fileSegments)
+        {
+            for (Segment segment : segments)
+            {
+                totalCost += segment.cost;
+            }
+        }
+
+        double target = totalCost / splitCount;
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        double minCost = Double.MAX_VALUE;
+        double maxCost = 0;
+
+        for (int i = 0; i < files.size(); ++i)
+        {
+            FileStatus file = files.get(i);
+            Path path = file.getPath();
+            BlockLocation[] blocks = path.getFileSystem(conf).getFileBlockLocations(file, 0, file.getLen());
+
+            // Add segments to the current split as long as it brings it closer to the target.
+            long start = 0;
+            double cost = 0;
+            for (Segment segment : fileSegments.get(i))
+            {
+                if ((cost > 0) && ((cost + segment.cost - target) > (target - cost)))
+                {
+                    splits.add(makeSplit(path, start, segment.start - start, blocks[getBlockIndex(blocks, start)].getHosts()));
+                    minCost = Math.min(minCost, cost);
+                    maxCost = Math.max(maxCost, cost);
+
+                    start = segment.start;
+                    cost = 0;
+                }
+
+                cost += segment.cost;
+            }
+
+            splits.add(makeSplit(path, start, file.getLen() - start, blocks[getBlockIndex(blocks, start)].getHosts()));
+            minCost = Math.min(minCost, cost);
+            maxCost = Math.max(maxCost, cost);
+        }
+
+        if (!splits.isEmpty())
+        {
+            log.info(String.format("%d splits for %d requested, cost per split min %.0f, average %.0f, max %.0f.",
+                splits.size(), splitCount, minCost, totalCost / splits.size(), maxCost));
+        }
+
+        return splits;
+    }
+
+    // Use the given cost function instead of PixelCostFunction.
+    public static void setCostFunction(Job job, Class<? extends ImageCostFunction> costClass)
+    {
+        job.getConfiguration().setClass(COST_CLASS, costClass, ImageCostFunction.class);
+    }
+
+    // Number of splits to cut, by default the number of splits of ImageInputFormat.
+    public static void setSplitCount(Job job, int splitCount)
+    {
+        job.getConfiguration().setInt(SPLIT_COUNT, splitCount);
+    }
+
+    // Read the keys of a file and sum the cost of its records between sync points, which are the
+    // only places a split can start. The values are only read for the compressed images, whose size is
+    // in their header, the size of a raw image is in its key.
+    private static List<Segment> scan(Configuration conf, FileStatus file, ImageCostFunction costFunction) throws IOException
+    {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file.getPath()));
+        try
+        {
+            if (reader.isBlockCompressed())
+            {
+                return scanBlocks(conf, reader, costFunction);
+            }
+
+            return scanRecords(conf, file, reader, costFunction);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    // A block compressed file, the reader skip the value blocks unless a value is read.
+    private static List<Segment> scanBlocks(Configuration conf, SequenceFile.Reader reader, ImageCostFunction costFunction) throws IOException
+    {
+        List<Segment> segments = new ArrayList<Segment>();
+        MetadataFilter filter = ImageInputFormat.getFilter(conf);
+        MetadataParser parser = new MetadataParser();
+        BytesWritable value = new BytesWritable();
+
+        Writable key = (Writable)ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        long start = 0;
+        double cost = 0;
+
+        while (true)
+        {
+            long position = reader.getPosition();
+            if (!reader.next(key))
+            {
+                break;
+            }
+
+            if (reader.syncSeen() && (position > start))
+            {
+                segments.add(new Segment(start, cost));
+                start = position;
+                cost = 0;
+            }
+
+            ImageMetadata metadata = ImageHelper.getMetadata(key, parser);
+            if (ImageHelper.isRawType(metadata))
+            {
+                if ((filter == null) || filter.matches(metadata))
+                {
+                    cost += rawCost(costFunction, metadata, rawLength(metadata));
+                }
+            }
+            else if ((filter == null) || filter.needsImageSize(metadata) || filter.matches(metadata))
+            {
+                reader.getCurrentValue(value);
+
+                int[] size = ImageHelper.probeImageSize(value.getBytes(), value.getLength());
+                if ((filter == null) || filter.matches(metadata, size))
+                {
+                    cost += compressedCost(costFunction, metadata, value, size);
+                }
+            }
+        }
+
+        segments.add(new Segment(start, cost));
+        return segments;
+    }
+
+    // An uncompressed or record compressed file. SequenceFile.Reader read the whole record even for the
+    // key only, hence the records are walked here, and the value of a raw image is seeked over.
+    private static List<Segment> scanRecords(Configuration conf, FileStatus file, SequenceFile.Reader reader, ImageCostFunction costFunction) throws IOException
+    {
+        List<Segment> segments = new ArrayList<Segment>();
+        MetadataFilter filter = ImageInputFormat.getFilter(conf);
+        MetadataParser parser = new MetadataParser();
+        BytesWritable value = new BytesWritable();
+
+        Writable key = (Writable)ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        CompressionCodec codec = reader.isCompressed() ? reader.getCompressionCodec() : null;
+        DataInputBuffer buffer = new DataInputBuffer();
+        byte[] bytes = new byte[1024];
+
+        FSDataInputStream in = file.getPath().getFileSystem(conf).open(file.getPath());
+        try
+        {
+            // The first record is right after the header.
+            in.seek(reader.getPosition());
+
+            long start = 0;
+            double cost = 0;
+
+            while (in.getPos() < file.getLen())
+            {
+                long position = in.getPos();
+                int recordLength = in.readInt();
+                if (recordLength == SYNC_ESCAPE)
+                {
+                    in.seek(in.getPos() + SYNC_HASH_SIZE);
+                    if (in.getPos() >= file.getLen())
+                    {
+                        break;
+                    }
+
+                    recordLength = in.readInt();
+
+                    if (position > start)
+                    {
+                        segments.add(new Segment(start, cost));
+                        start = position;
+                        cost = 0;
+                    }
+                }
+
+                int keyLength = in.readInt();
+                int valueLength = recordLength - keyLength;
+                if (bytes.length < Math.max(keyLength, valueLength))
+                {
+                    bytes = new byte[Math.max(2 * bytes.length, Math.max(keyLength, valueLength))];
+                }
+
+                in.readFully(bytes, 0, keyLength);
+                buffer.reset(bytes, keyLength);
+                key.readFields(buffer);
+
+                // A filter on the size of a compressed image is checked once its value is read.
+                ImageMetadata metadata = ImageHelper.getMetadata(key, parser);
+                boolean raw = ImageHelper.isRawType(metadata);
+                boolean skip = (filter != null) && (raw || !filter.needsImageSize(metadata)) && !filter.matches(metadata);
+                if (skip || raw)
+                {
+                    in.seek(in.getPos() + valueLength);
+                    if (!skip)
+                    {
+                        // Less the length of the BytesWritable, for an uncompressed record.
+                        cost += rawCost(costFunction, metadata, (codec == null) ? valueLength - 4 : valueLength);
+                    }
+
+                    continue;
+                }
+
+                in.readFully(bytes, 0, valueLength);
+                buffer.reset(bytes, valueLength);
+                if (codec != null)
+                {
+                    readCompressedValue(codec, buffer, value);
+                }
+                else
+                {
+                    value.readFields(buffer);
+                }
+
+                int[] size = ImageHelper.probeImageSize(value.getBytes(), value.getLength());
+                if ((filter == null) || filter.matches(metadata, size))
+                {
+                    cost += compressedCost(costFunction, metadata, value, size);
+                }
+            }
+
+            segments.add(new Segment(start, cost));
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return segments;
+    }
+
+    private static void readCompressedValue(CompressionCodec codec, DataInputBuffer buffer, BytesWritable value) throws IOException
+    {
+        Decompressor decompressor = CodecPool.getDecompressor(codec);
+        try
+        {
+            value.readFields(new DataInputStream(codec.createInputStream(buffer, decompressor)));
+        }
+        finally
+        {
+            CodecPool.returnDecompressor(decompressor);
+        }
+    }
+
+    // The size in bytes of the pixels of a raw image.
+    private static int rawLength(ImageMetadata metadata)
+    {
+        long length = (long)metadata.getAsInt("width") *
+                      metadata.getAsInt("height") *
+                      metadata.getAsInt("channel_count") *
+                      ((metadata.getAsInt("depth") & 0x7FFFFFFF) / 8);
+
+        return (int)Math.min(length, Integer.MAX_VALUE);
+    }
+
+    private static double rawCost(ImageCostFunction costFunction, ImageMetadata metadata, int length)
+    {
+        return costFunction.cost(metadata, metadata.getAsInt("width"), metadata.getAsInt("height"), length);
+    }
+
+    // The cost of a compressed image, with the size probed from its header or null if unknown.
+    private static double compressedCost(ImageCostFunction costFunction, ImageMetadata metadata, BytesWritable value, int[] size)
+    {
+        int width = 0;
+        int height = 0;
+
+        if (size != null)
+        {
+            width = size[0];
+            height = size[1];
+        }
+
+        return costFunction.cost(metadata, width, height, value.getLength());
+    }
+
+    /**
+     * The records between two sync points of a file.
+     */
+    private static class Segment
+    {
+        final long start;
+        final double cost;
+
+        Segment(long start, double cost)
+        {
+            this.start = start;
+            this.cost = cost;
+        }
+    }
+}
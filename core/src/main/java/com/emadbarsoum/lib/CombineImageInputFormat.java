@@ -0,0 +1,51 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+
+/**
+ * CombineImageInputFormat read image sequence files like ImageInputFormat, but pack many small files
+ * in the same split, so a folder of thousands of part files (such as the output of a map only job)
+ * doesn't start thousands of map tasks.
+ *
+ * Files are grouped by node then by rack up to the maximum split size, and each file of a split is
+ * read in turn with ImageRecordReader, so the metadata filter and the counters work the same.
+ */
+public class CombineImageInputFormat extends CombineFileInputFormat<Writable, ImageWritable>
+{
+    public static final long DEFAULT_SPLIT_SIZE = 256L * 1024 * 1024;
+
+    @Override
+    public RecordReader<Writable, ImageWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+    {
+        return new CombineFileRecordReader<Writable, ImageWritable>((CombineFileSplit)split, context, ImageRecordReaderWrapper.class);
+    }
+
+    // Read the input of the job with CombineImageInputFormat, with splits of up to the given size in bytes.
+    public static void setCombine(Job job, long maxSplitSize)
+    {
+        job.setInputFormatClass(CombineImageInputFormat.class);
+        FileInputFormat.setMaxInputSplitSize(job, maxSplitSize);
+    }
+
+    /**
+     * Read one file of a combined split with ImageRecordReader.
+     */
+    private static class ImageRecordReaderWrapper extends CombineFileRecordReaderWrapper<Writable, ImageWritable>
+    {
+        public ImageRecordReaderWrapper(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException, InterruptedException
+        {
+            super(new ImageInputFormat(), split, context, index);
+        }
+    }
+}
@@ -21,6 +21,10 @@ public class FaceDetection
     private IplImage resultImage;
     private int faceCount;
     private ArrayList<Rectangle> faceLocations = new ArrayList<Rectangle>();
+    private ImagePool pool = null;
+    private String loadedModel = null;
+    private CvHaarClassifierCascade cascade = null;
+    private CvMemStorage storage = null;
 
     public String getModel()
     {
@@ -37,11 +41,18 @@ public class FaceDetection
         return this.faceCount;
     }
 
+    // The result image is only valid until the next call to Detect().
     public IplImage getResultImage()
     {
         return this.resultImage;
     }
 
+    // The result and gray images are taken from the given pool rather than allocated for each image.
+    public void setImagePool(ImagePool pool)
+    {
+        this.pool = pool;
+    }
+
     public ArrayList<Rectangle> getFaceLocations()
     {
         return this.faceLocations;
@@ -54,8 +65,11 @@ public class FaceDetection
             throw new Exception("Model must be set before calling Detect.");
         }
 
-        this.resultImage = image.clone();
-        IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+        releaseResultImage();
+        this.resultImage = acquire(image.width(), image.height(), image.depth(), image.nChannels());
+        cvCopy(image, this.resultImage);
+
+        IplImage grayImage = acquire(image.width(), image.height(), IPL_DEPTH_8U, 1);
 
         // Convert the input image into a gray image.
         cvCvtColor(image, grayImage, CV_BGR2GRAY);
@@ -65,13 +79,25 @@ public class FaceDetection
             context.progress();
         }
 
-        CvMemStorage storage = CvMemStorage.create();
+        // The classifier and the storage are kept across images.
+        if (!this.model.equals(this.loadedModel))
+        {
+            releaseCascade();
+
+            this.cascade = new CvHaarClassifierCascade(cvLoad(this.model));
+            this.loadedModel = this.model;
+        }
+
+        if (this.storage == null)
+        {
+            this.storage = CvMemStorage.create();
+        }
 
-        // Load the classifier.
-        CvHaarClassifierCascade cascade = new CvHaarClassifierCascade(cvLoad(this.model));
+        cvClearMemStorage(this.storage);
 
         // Detect all faces in the image.
-        CvSeq faces = cvHaarDetectObjects(grayImage, cascade, storage, 1.1, 1, 0);
+        CvSeq faces = cvHaarDetectObjects(grayImage, this.cascade, this.storage, 1.1, 1, 0);
+        releaseImage(grayImage);
 
         if (context != null)
         {
@@ -94,4 +120,55 @@ public class FaceDetection
             context.progress();
         }
     }
+
+    // Release the result image, the classifier and the storage.
+    public void release()
+    {
+        releaseResultImage();
+        releaseCascade();
+
+        if (this.storage != null)
+        {
+            this.storage.release();
+            this.storage = null;
+        }
+    }
+
+    private IplImage acquire(int width, int height, int depth, int channelCount)
+    {
+        return (this.pool != null) ?
+            this.pool.acquire(width, height, depth, channelCount) :
+            IplImage.create(width, height, depth, channelCount);
+    }
+
+    private void releaseImage(IplImage image)
+    {
+        if (this.pool != null)
+        {
+            this.pool.release(image);
+        }
+        else
+        {
+            image.release();
+        }
+    }
+
+    private void releaseResultImage()
+    {
+        if (this.resultImage != null)
+        {
+            releaseImage(this.resultImage);
+            this.resultImage = null;
+        }
+    }
+
+    private void releaseCascade()
+    {
+        if (this.cascade != null)
+        {
+            cvReleaseHaarClassifierCascade(this.cascade);
+            this.cascade = null;
+            this.loadedModel = null;
+        }
+    }
 }
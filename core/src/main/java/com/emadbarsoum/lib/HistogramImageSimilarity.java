@@ -13,6 +13,7 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
 public class HistogramImageSimilarity implements ImageSimilarity
 {
     private int numberOfBins = 128;
+    private ImagePool pool = null;
 
     public int getNumberOfBins()
     {
@@ -27,6 +28,12 @@ public class HistogramImageSimilarity implements ImageSimilarity
     public HistogramImageSimilarity()
     {}
 
+    // The channel images are taken from the given pool rather than allocated for each call.
+    public HistogramImageSimilarity(ImagePool pool)
+    {
+        this.pool = pool;
+    }
+
     public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context)
     {
         float minRange = 0.0f;
@@ -37,40 +44,60 @@ public class HistogramImageSimilarity implements ImageSimilarity
         float[] minMax = new float[]{minRange, maxRange};
         float[][] ranges = new float[][]{minMax};
 
-        IplImageArray image1Split = splitChannels(image1);
         CvHistogram hist1 = cvCreateHist(dims, sizes, histType, ranges, 1);
-        cvCalcHist(image1Split, hist1, 0, null);
-        cvNormalizeHist(hist1, 1.0);
+        calcHist(image1, hist1);
 
         if (context != null)
         {
             context.progress();
         }
 
-        IplImageArray image2Split = splitChannels(image2);
         CvHistogram hist2 = cvCreateHist(dims, sizes, histType, ranges, 1);
-        cvCalcHist(image2Split, hist2, 0, null);
-        cvNormalizeHist(hist2, 1.0);
+        calcHist(image2, hist2);
 
         if (context != null)
         {
             context.progress();
         }
 
-        return Math.max(1.0 - cvCompareHist(hist1, hist2, CV_COMP_INTERSECT), 0.0);
-    }
+        double distance = Math.max(1.0 - cvCompareHist(hist1, hist2, CV_COMP_INTERSECT), 0.0);
 
-    private IplImageArray splitChannels(IplImage image)
-    {
-        CvSize size = image.cvSize();
-        int depth = image.depth();
+        cvReleaseHist(hist1);
+        cvReleaseHist(hist2);
 
-        IplImage channel0 = IplImage.create(size, depth, 1);
-        IplImage channel1 = IplImage.create(size, depth, 1);
-        IplImage channel2 = IplImage.create(size, depth, 1);
+        return distance;
+    }
 
-        cvSplit(image, channel0, channel1, channel2, null);
+    // Split the image channels and compute their normalized histogram, the channels are released after.
+    private void calcHist(IplImage image, CvHistogram hist)
+    {
+        IplImage[] channels = new IplImage[3];
+        for (int i = 0; i < channels.length; ++i)
+        {
+            channels[i] = (this.pool != null) ?
+                this.pool.acquire(image.width(), image.height(), image.depth(), 1) :
+                IplImage.create(image.width(), image.height(), image.depth(), 1);
+        }
 
-        return new IplImageArray(channel0, channel1, channel2);
+        try
+        {
+            cvSplit(image, channels[0], channels[1], channels[2], null);
+            cvCalcHist(new IplImageArray(channels[0], channels[1], channels[2]), hist, 0, null);
+            cvNormalizeHist(hist, 1.0);
+        }
+        finally
+        {
+            for (IplImage channel : channels)
+            {
+                if (this.pool != null)
+                {
+                    this.pool.release(channel);
+                }
+                else
+                {
+                    channel.release();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,19 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+
+/**
+ * ImageCostFunction estimate the work of a map task for one image, BalancedImageInputFormat use it to
+ * cut splits of about the same total cost.
+ *
+ * The default is PixelCostFunction, a job can set its own with BalancedImageInputFormat.setCostFunction()
+ * or -Dhvision.split.cost.class=<class name>. An implementation that also implements Configurable is
+ * given the job configuration.
+ */
+public interface ImageCostFunction
+{
+    // The estimated cost of an image record, width and height are 0 if they are unknown and length
+    // is the size in bytes of the record value. The value of a raw image isn't read, its length is the
+    // one stored in the file, or the size of its pixels in a block compressed file.
+    public double cost(ImageMetadata metadata, int width, int height, int length);
+}
@@ -0,0 +1,460 @@
+package com.emadbarsoum.lib;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * ImageDeduplicator keep track of the content hash of the ingested images, so that the same payload
+ * is only written once.
+ *
+ * Without a store folder, the hashes of the current run are kept in memory, about 100 bytes per image.
+ * With a store folder, the hashes of the previous runs are kept on disk as a sorted MapFile "hashes"
+ * and summarized by a Bloom filter "bloom", so only the hashes that the Bloom filter can't rule out are
+ * looked up on disk. The new hashes are also added to the Bloom filter, and only up to a fixed number
+ * of them are kept in memory, after which they are written as a sorted "hashes.run-N" MapFile next to
+ * the store. On close() the store and the runs are merged into a new "hashes". This class is thread safe.
+ *
+ * Both files live in a "store-N" generation folder, named by the "current" file. close() writes the
+ * whole next generation, then points "current" to it in a single rename, so a crash at any point leaves
+ * a complete store with a Bloom filter that matches its hashes. The Bloom filter is rebuilt twice as
+ * large when the store outgrows the number of hashes it was sized for.
+ */
+public class ImageDeduplicator
+{
+    private static final String BLOOM_FILE = "bloom";
+    private static final String HASHES_FILE = "hashes";
+    private static final String RUN_PREFIX = HASHES_FILE + ".run-";
+    private static final String CURRENT_FILE = "current";
+    private static final String GENERATION_PREFIX = "store-";
+
+    // New hashes kept in memory with a store, about 100 MB.
+    private static final int MAX_NEW_HASHES = 1000000;
+
+    private Configuration conf = null;
+    private Path storePath = null;
+    private int expectedImages;
+    private BloomFilter<byte[]> bloom = null;
+    private long bloomCapacity = 0;
+    private long storeCount = 0;
+    private long newCount = 0;
+    private int generation = -1;
+    private MapFile.Reader hashes = null;
+    private List<MapFile.Reader> runs = new ArrayList<MapFile.Reader>();
+    private Set<String> newHashes = new HashSet<String>();
+    private Text lookupKey = new Text();
+    private long duplicateCount = 0;
+
+    // In memory only, duplicates are detected within a single run.
+    public ImageDeduplicator(Configuration conf)
+    {
+        this(conf, null, 0);
+    }
+
+    // Duplicates are also detected against the previous runs that used the same store folder, the
+    // expected number of images is only used to size the Bloom filter of a new store.
+    public ImageDeduplicator(Configuration conf, String storePath, int expectedImages)
+    {
+        if (conf == null)
+        {
+            throw new IllegalArgumentException("conf can't be null");
+        }
+
+        this.conf = conf;
+        this.storePath = (storePath == null) ? null : new Path(storePath);
+        this.expectedImages = Math.max(expectedImages, 1000);
+    }
+
+    // Content hash of an image payload as a hex string, this is what is stored in the "hash" metadata.
+    public static String hash(byte[] data, int length)
+    {
+        return Hashing.sha1().hashBytes(data, 0, length).toString();
+    }
+
+    public void open() throws IOException
+    {
+        if (this.storePath == null)
+        {
+            return;
+        }
+
+        FileSystem fs = this.storePath.getFileSystem(this.conf);
+        this.generation = readCurrent(fs);
+
+        if (this.generation >= 0)
+        {
+            Path generationPath = new Path(this.storePath, GENERATION_PREFIX + this.generation);
+            readBloom(fs, new Path(generationPath, BLOOM_FILE));
+            this.hashes = new MapFile.Reader(new Path(generationPath, HASHES_FILE), this.conf);
+        }
+        else
+        {
+            this.bloom = BloomFilter.create(Funnels.byteArrayFunnel(), this.expectedImages);
+            this.bloomCapacity = this.expectedImages;
+        }
+
+        // Runs left by an interrupted run, their hashes were never merged nor added to the Bloom filter.
+        deleteAll(fs, RUN_PREFIX + "*");
+
+        // Generations left by an interrupted close(), "current" never pointed to them.
+        FileStatus[] generations = fs.globStatus(new Path(this.storePath, GENERATION_PREFIX + "*"));
+        if (generations != null)
+        {
+            for (FileStatus status : generations)
+            {
+                if (!status.getPath().getName().equals(GENERATION_PREFIX + this.generation))
+                {
+                    fs.delete(status.getPath(), true);
+                }
+            }
+        }
+    }
+
+    // Return true if the hash wasn't seen before and record it, false for a duplicate.
+    public synchronized boolean add(String hash) throws IOException
+    {
+        if (this.newHashes.contains(hash) || isInStore(hash))
+        {
+            this.duplicateCount++;
+            return false;
+        }
+
+        this.newHashes.add(hash);
+        if (this.bloom != null)
+        {
+            this.bloom.put(BaseEncoding.base16().lowerCase().decode(hash));
+            this.newCount++;
+
+            if (this.newHashes.size() >= MAX_NEW_HASHES)
+            {
+                writeRun();
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized long duplicateCount()
+    {
+        return this.duplicateCount;
+    }
+
+    // Merge the new hashes into the store.
+    public synchronized void close() throws IOException
+    {
+        if (this.storePath == null)
+        {
+            this.newHashes.clear();
+            return;
+        }
+
+        if (this.bloom == null)
+        {
+            return;
+        }
+
+        FileSystem fs = this.storePath.getFileSystem(this.conf);
+        fs.mkdirs(this.storePath);
+
+        writeRun();
+
+        int next = this.generation + 1;
+        Path nextPath = new Path(this.storePath, GENERATION_PREFIX + next);
+        fs.delete(nextPath, true);
+        fs.mkdirs(nextPath);
+
+        // Rebuild a larger Bloom filter while merging if the store outgrew the current one.
+        BloomFilter<byte[]> largerBloom = null;
+        if (this.storeCount + this.newCount > this.bloomCapacity)
+        {
+            this.bloomCapacity = Math.max(2 * (this.storeCount + this.newCount), this.expectedImages);
+            largerBloom = BloomFilter.create(Funnels.byteArrayFunnel(), (int)Math.min(this.bloomCapacity, Integer.MAX_VALUE));
+        }
+
+        long count = writeHashes(new Path(nextPath, HASHES_FILE), largerBloom);
+        if (largerBloom != null)
+        {
+            this.bloom = largerBloom;
+        }
+
+        writeBloom(fs, new Path(nextPath, BLOOM_FILE), count);
+        writeCurrent(fs, next);
+
+        // The new generation is the store now, the previous one and the runs can go.
+        if (this.generation >= 0)
+        {
+            fs.delete(new Path(this.storePath, GENERATION_PREFIX + this.generation), true);
+        }
+
+        deleteAll(fs, RUN_PREFIX + "*");
+
+        this.generation = next;
+        this.storeCount = count;
+        this.newCount = 0;
+        this.bloom = null;
+        this.newHashes.clear();
+    }
+
+    private boolean isInStore(String hash) throws IOException
+    {
+        if ((this.bloom == null) || ((this.hashes == null) && this.runs.isEmpty()))
+        {
+            return false;
+        }
+
+        if (!this.bloom.mightContain(BaseEncoding.base16().lowerCase().decode(hash)))
+        {
+            return false;
+        }
+
+        this.lookupKey.set(hash);
+        if ((this.hashes != null) && (this.hashes.get(this.lookupKey, NullWritable.get()) != null))
+        {
+            return true;
+        }
+
+        for (MapFile.Reader run : this.runs)
+        {
+            if (run.get(this.lookupKey, NullWritable.get()) != null)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Write the new hashes kept in memory, sorted, into the next run.
+    private void writeRun() throws IOException
+    {
+        if (this.newHashes.isEmpty())
+        {
+            return;
+        }
+
+        List<String> sorted = new ArrayList<String>(this.newHashes);
+        Collections.sort(sorted);
+
+        Path runPath = new Path(this.storePath, RUN_PREFIX + this.runs.size());
+        MapFile.Writer writer = createWriter(runPath);
+
+        Text key = new Text();
+        try
+        {
+            for (String hash : sorted)
+            {
+                key.set(hash);
+                writer.append(key, NullWritable.get());
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        this.runs.add(new MapFile.Reader(runPath, this.conf));
+        this.newHashes.clear();
+    }
+
+    // Merge the sorted previous hashes with the sorted runs into a new MapFile, and into the given Bloom
+    // filter if any. Return the number of hashes written.
+    private long writeHashes(Path hashesPath, BloomFilter<byte[]> bloom) throws IOException
+    {
+        List<MapFile.Reader> readers = new ArrayList<MapFile.Reader>(this.runs);
+        if (this.hashes != null)
+        {
+            readers.add(this.hashes);
+        }
+
+        // The smallest current hash of all the readers first.
+        PriorityQueue<MergeSource> queue = new PriorityQueue<MergeSource>(Math.max(1, readers.size()), new Comparator<MergeSource>()
+        {
+            @Override
+            public int compare(MergeSource a, MergeSource b)
+            {
+                return a.key.compareTo(b.key);
+            }
+        });
+
+        MapFile.Writer writer = createWriter(hashesPath);
+        long count = 0;
+
+        try
+        {
+            for (MapFile.Reader reader : readers)
+            {
+                MergeSource source = new MergeSource(reader);
+                if (source.next())
+                {
+                    queue.add(source);
+                }
+            }
+
+            Text previous = null;
+            while (!queue.isEmpty())
+            {
+                MergeSource source = queue.poll();
+                if ((previous == null) || !previous.equals(source.key))
+                {
+                    writer.append(source.key, NullWritable.get());
+                    previous = new Text(source.key);
+                    count++;
+
+                    if (bloom != null)
+                    {
+                        bloom.put(BaseEncoding.base16().lowerCase().decode(source.key.toString()));
+                    }
+                }
+
+                if (source.next())
+                {
+                    queue.add(source);
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+
+            for (MapFile.Reader reader : readers)
+            {
+                reader.close();
+            }
+
+            this.hashes = null;
+            this.runs.clear();
+        }
+
+        return count;
+    }
+
+    private MapFile.Writer createWriter(Path path) throws IOException
+    {
+        return new MapFile.Writer(
+                this.conf,
+                path,
+                MapFile.Writer.keyClass(Text.class),
+                MapFile.Writer.valueClass(NullWritable.class));
+    }
+
+    // The Bloom filter, after the number of hashes in the store and the number it was sized for.
+    private void readBloom(FileSystem fs, Path path) throws IOException
+    {
+        FSDataInputStream in = fs.open(path);
+        try
+        {
+            this.storeCount = in.readLong();
+            this.bloomCapacity = in.readLong();
+            this.bloom = BloomFilter.readFrom(in, Funnels.byteArrayFunnel());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void writeBloom(FileSystem fs, Path path, long count) throws IOException
+    {
+        FSDataOutputStream out = fs.create(path, true);
+        try
+        {
+            out.writeLong(count);
+            out.writeLong(this.bloomCapacity);
+            this.bloom.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    // The generation that "current" points to, -1 for a new store.
+    private int readCurrent(FileSystem fs) throws IOException
+    {
+        Path currentPath = new Path(this.storePath, CURRENT_FILE);
+        if (!fs.exists(currentPath))
+        {
+            return -1;
+        }
+
+        FSDataInputStream in = fs.open(currentPath);
+        try
+        {
+            return in.readInt();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Point "current" to the given generation in a single rename.
+    private void writeCurrent(FileSystem fs, int generation) throws IOException
+    {
+        Path currentPath = new Path(this.storePath, CURRENT_FILE);
+        Path tempPath = new Path(this.storePath, CURRENT_FILE + ".tmp");
+
+        FSDataOutputStream out = fs.create(tempPath, true);
+        try
+        {
+            out.writeInt(generation);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        ImageManifest.replace(fs, tempPath, currentPath);
+    }
+
+    private void deleteAll(FileSystem fs, String pattern) throws IOException
+    {
+        FileStatus[] files = fs.globStatus(new Path(this.storePath, pattern));
+        if (files != null)
+        {
+            for (FileStatus file : files)
+            {
+                fs.delete(file.getPath(), true);
+            }
+        }
+    }
+
+    /**
+     * A sorted MapFile read from its start, with its current hash.
+     */
+    private static class MergeSource
+    {
+        private MapFile.Reader reader;
+        private Text key = new Text();
+
+        public MergeSource(MapFile.Reader reader) throws IOException
+        {
+            this.reader = reader;
+            this.reader.reset();
+        }
+
+        public boolean next() throws IOException
+        {
+            return this.reader.next(this.key, NullWritable.get());
+        }
+    }
+}
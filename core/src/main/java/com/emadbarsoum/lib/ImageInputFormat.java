@@ -0,0 +1,89 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.MetadataFilter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+import java.io.IOException;
+
+/**
+ * ImageInputFormat read image sequence files and hand the mappers the record key, Text or
+ * ImageKeyWritable, with the decoded image as an ImageWritable.
+ *
+ * Splits are the same as SequenceFileInputFormat, the decoding is done by ImageRecordReader. An
+ * optional metadata filter, such as "label=cat;width>=640", keep only the matching records without
+ * reading the images of the others.
+ */
+public class ImageInputFormat extends SequenceFileInputFormat<Writable, ImageWritable>
+{
+    public static final String FILTER = "hvision.input.where";
+
+    @Override
+    public RecordReader<Writable, ImageWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+    {
+        return new ImageRecordReader();
+    }
+
+    // Read the given image sequence file or folder of image sequence files with ImageInputFormat.
+    public static void setInput(Job job, Path inputPath) throws IOException
+    {
+        job.setInputFormatClass(ImageInputFormat.class);
+        FileInputFormat.addInputPath(job, inputPath);
+    }
+
+    // Same as above from the -i command line option. With the optional -where option, only the
+    // matching records are read. With -combine [<split size in MB>] small files are packed together
+    // by CombineImageInputFormat, otherwise with -balance [<number of splits>] the splits are cut by
+    // BalancedImageInputFormat.
+    public static void setInput(Job job, CommandParser parser) throws IOException
+    {
+        setInput(job, new Path(parser.get("i")));
+
+        if (parser.has("where"))
+        {
+            setFilter(job, parser.get("where"));
+        }
+
+        if (parser.has("combine"))
+        {
+            long splitSize = CombineImageInputFormat.DEFAULT_SPLIT_SIZE;
+            if (parser.get("combine") != null)
+            {
+                splitSize = parser.getAsInt("combine") * 1024L * 1024L;
+            }
+
+            CombineImageInputFormat.setCombine(job, splitSize);
+        }
+        else if (parser.has("balance"))
+        {
+            job.setInputFormatClass(BalancedImageInputFormat.class);
+            if (parser.get("balance") != null)
+            {
+                BalancedImageInputFormat.setSplitCount(job, parser.getAsInt("balance"));
+            }
+        }
+    }
+
+    // Only read the records whose metadata match the given filter, see MetadataFilter.
+    public static void setFilter(Job job, String filter) throws IOException
+    {
+        // Fail at submission instead of in every task.
+        new MetadataFilter(filter);
+        job.getConfiguration().set(FILTER, filter);
+    }
+
+    // The filter of the job, null if all records are read.
+    public static MetadataFilter getFilter(Configuration conf) throws IOException
+    {
+        String filter = conf.get(FILTER);
+        return (filter != null) ? new MetadataFilter(filter) : null;
+    }
+}
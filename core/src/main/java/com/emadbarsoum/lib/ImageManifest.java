@@ -0,0 +1,338 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * ImageManifest is the "_manifest" file of a rolling image sequence file output, it lists the parts
+ * in order with their number of records, their size and the smallest and largest image name in each.
+ *
+ * The manifest is a tab separated text file with one line per part, ended by an "# end" line. It is
+ * written to a temporary file then renamed over the previous one, so a reader never see a partially
+ * written manifest. If the manifest is missing but the temporary file is complete, such as after a
+ * crash of a file system whose rename can't overwrite, the temporary file is read instead. A part is
+ * committed once it is in the manifest, any other part in the folder is left over from an interrupted run.
+ *
+ * Each part also has a checkpoint "_checkpoint/part-XXXXX" listing the input files written to it (or
+ * skipped as duplicates), which is what a resumed run use to skip the already ingested files.
+ */
+public class ImageManifest
+{
+    public static final String FILE_NAME = "_manifest";
+    public static final String CHECKPOINT_FOLDER = "_checkpoint";
+
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    private static final String END_LINE = "# end";
+
+    private List<Part> parts = new ArrayList<Part>();
+
+    public List<Part> parts()
+    {
+        return this.parts;
+    }
+
+    public void add(Part part)
+    {
+        this.parts.add(part);
+    }
+
+    public static boolean exists(FileSystem fs, Path folder) throws IOException
+    {
+        return find(fs, folder) != null;
+    }
+
+    public static ImageManifest read(FileSystem fs, Path folder) throws IOException
+    {
+        Path path = find(fs, folder);
+        if (path == null)
+        {
+            throw new FileNotFoundException("No manifest in " + folder);
+        }
+
+        return read(fs, path, false);
+    }
+
+    // The manifest, or the temporary manifest if the manifest is missing and the temporary one is
+    // complete, null if there is neither.
+    private static Path find(FileSystem fs, Path folder) throws IOException
+    {
+        Path path = new Path(folder, FILE_NAME);
+        if (fs.exists(path))
+        {
+            return path;
+        }
+
+        Path tempPath = new Path(folder, TEMP_FILE_NAME);
+        if (fs.exists(tempPath) && (read(fs, tempPath, true) != null))
+        {
+            return tempPath;
+        }
+
+        return null;
+    }
+
+    // Return null if the end line is required and missing. Manifests written before the end line was
+    // added don't have it, hence it is only required for the temporary manifest.
+    private static ImageManifest read(FileSystem fs, Path path, boolean requireEnd) throws IOException
+    {
+        ImageManifest manifest = new ImageManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+        boolean ended = false;
+
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.equals(END_LINE))
+                {
+                    ended = true;
+                    continue;
+                }
+
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                // The last line of an incomplete temporary manifest can be cut anywhere.
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5)
+                {
+                    if (requireEnd)
+                    {
+                        return null;
+                    }
+
+                    throw new IOException("Invalid manifest line: " + line);
+                }
+
+                try
+                {
+                    manifest.add(new Part(
+                            fields[0],
+                            Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]),
+                            fields[3].isEmpty() ? null : fields[3],
+                            fields[4].isEmpty() ? null : fields[4]));
+                }
+                catch (NumberFormatException e)
+                {
+                    if (requireEnd)
+                    {
+                        return null;
+                    }
+
+                    throw new IOException("Invalid manifest line: " + line, e);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return (requireEnd && !ended) ? null : manifest;
+    }
+
+    public void write(FileSystem fs, Path folder) throws IOException
+    {
+        Path path = new Path(folder, FILE_NAME);
+        Path tempPath = new Path(folder, TEMP_FILE_NAME);
+
+        FSDataOutputStream out = fs.create(tempPath, true);
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        try
+        {
+            writer.write("# part\trecords\tbytes\tfirst name\tlast name\n");
+            for (Part part : this.parts)
+            {
+                writer.write(part.name + "\t" +
+                             part.records + "\t" +
+                             part.bytes + "\t" +
+                             (part.firstName == null ? "" : part.firstName) + "\t" +
+                             (part.lastName == null ? "" : part.lastName) + "\n");
+            }
+
+            writer.write(END_LINE + "\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        replace(fs, tempPath, path);
+    }
+
+    // Rename from over to in a single step, FileSystem.rename() doesn't overwrite on HDFS. Files only,
+    // a non empty folder can't be replaced.
+    static void replace(FileSystem fs, Path from, Path to) throws IOException
+    {
+        FileContext context = FileContext.getFileContext(fs.getUri(), fs.getConf());
+        context.rename(fs.makeQualified(from), fs.makeQualified(to), Options.Rename.OVERWRITE);
+    }
+
+    // Return the name of the part that the given file of the output folder belongs to, such as the part
+    // itself, its index or its checksum, or null if the file isn't part related.
+    public static String partOf(String fileName)
+    {
+        int start = 0;
+        while ((start < fileName.length()) && ((fileName.charAt(start) == '_') || (fileName.charAt(start) == '.')))
+        {
+            ++start;
+        }
+
+        String name = fileName.substring(start);
+        int pos = name.indexOf('.');
+        if (pos > 0)
+        {
+            name = name.substring(0, pos);
+        }
+
+        return name.startsWith("part-") ? name : null;
+    }
+
+    public static void writeCheckpoint(FileSystem fs, Path folder, String partName, Collection<String> inputs) throws IOException
+    {
+        Path checkpointFolder = new Path(folder, CHECKPOINT_FOLDER);
+        Path path = new Path(checkpointFolder, partName);
+        Path tempPath = new Path(checkpointFolder, partName + ".tmp");
+
+        fs.mkdirs(checkpointFolder);
+
+        Writer writer = new OutputStreamWriter(fs.create(tempPath, true), StandardCharsets.UTF_8);
+        try
+        {
+            for (String input : inputs)
+            {
+                writer.write(input);
+                writer.write('\n');
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        replace(fs, tempPath, path);
+    }
+
+    // Add the inputs of the given part to the given collection, a part without checkpoint has no input.
+    public static void readCheckpoint(FileSystem fs, Path folder, String partName, Collection<String> inputs) throws IOException
+    {
+        Path path = new Path(new Path(folder, CHECKPOINT_FOLDER), partName);
+        if (!fs.exists(path))
+        {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!line.isEmpty())
+                {
+                    inputs.add(line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * A single part of the output, the names are null if the part has no named image.
+     */
+    public static class Part
+    {
+        private String name;
+        private long records;
+        private long bytes;
+        private String firstName;
+        private String lastName;
+
+        public Part(String name, long records, long bytes, String firstName, String lastName)
+        {
+            this.name = name;
+            this.records = records;
+            this.bytes = bytes;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public long getRecords()
+        {
+            return this.records;
+        }
+
+        public long getBytes()
+        {
+            return this.bytes;
+        }
+
+        public String getFirstName()
+        {
+            return this.firstName;
+        }
+
+        public String getLastName()
+        {
+            return this.lastName;
+        }
+
+        // Whether an image with the given name can be in this part, based on its key range.
+        public boolean mayContain(String imageName)
+        {
+            if ((this.firstName == null) || (this.lastName == null))
+            {
+                return this.records > 0;
+            }
+
+            return (compare(imageName, this.firstName) >= 0) && (compare(imageName, this.lastName) <= 0);
+        }
+    }
+
+    // Names are ordered the same way as the index, that is by their UTF-8 bytes.
+    public static int compare(String name1, String name2)
+    {
+        byte[] bytes1 = name1.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes2 = name2.getBytes(StandardCharsets.UTF_8);
+
+        int length = Math.min(bytes1.length, bytes2.length);
+        for (int i = 0; i < length; ++i)
+        {
+            int b1 = bytes1[i] & 0xff;
+            int b2 = bytes2[i] & 0xff;
+            if (b1 != b2)
+            {
+                return b1 - b2;
+            }
+        }
+
+        return bytes1.length - bytes2.length;
+    }
+}
@@ -0,0 +1,45 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageEncoder;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import java.io.IOException;
+
+/**
+ * ImageMapper is the base class of the mappers that read their input with ImageInputFormat.
+ *
+ * It provides a per task ImagePool for the intermediate images of map(), so images of the same size
+ * reuse their native buffers across records. The pool is freed, and its hit and miss counts added to
+ * the task counters, when the task ends. It also provides the ImageEncoder for the output format of
+ * the job, set with ImageEncoder.setFormat(). Subclasses overriding setup() or cleanup() must call super.
+ */
+public class ImageMapper<KEYOUT, VALUEOUT> extends Mapper<Writable, ImageWritable, KEYOUT, VALUEOUT>
+{
+    protected ImagePool pool = null;
+    protected ImageEncoder encoder = null;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+        this.pool = new ImagePool();
+        this.encoder = ImageEncoder.create(context.getConfiguration());
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException
+    {
+        if (this.pool != null)
+        {
+            this.pool.addCounters(context);
+            this.pool.clear();
+            this.pool = null;
+        }
+
+        if (this.encoder != null)
+        {
+            this.encoder.release();
+            this.encoder = null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageOperator is a single image processing step of an ImageOperatorChain.
+ *
+ * An operator either modify the image in place and return it, or return a new image acquired from
+ * the pool, such as a resized image, in which case the chain release the input image when it no
+ * longer need it. Operators that change the size or the number of channels update the metadata.
+ */
+public interface ImageOperator
+{
+    public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool);
+}
@@ -0,0 +1,102 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.InvalidPropertiesFormatException;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageOperatorChain apply a sequence of operators to an image, in the following format:
+ * "gaussian:size=5,sigma=1.2|color2gray|thumbnail:size=160".
+ *
+ * Operators are separated by '|', each one is a name from ImageOperators optionally followed by ':' and
+ * its parameters as comma separated name=value pairs. The image is decoded once and passed from one
+ * operator to the next in memory; operators work in place when they can, the other intermediate
+ * images come from the pool and are released back as soon as the next operator is done with them.
+ */
+public class ImageOperatorChain
+{
+    private List<String> names = new ArrayList<String>();
+    private List<ImageOperator> operators = new ArrayList<ImageOperator>();
+
+    public ImageOperatorChain(String expression) throws InvalidPropertiesFormatException
+    {
+        for (String operator : expression.split("\\|"))
+        {
+            if (!operator.trim().isEmpty())
+            {
+                parseOperator(operator.trim());
+            }
+        }
+
+        if (this.operators.isEmpty())
+        {
+            throw new InvalidPropertiesFormatException("Empty operator chain.");
+        }
+    }
+
+    public int size()
+    {
+        return this.operators.size();
+    }
+
+    // The names of the operators, in order.
+    public List<String> names()
+    {
+        return this.names;
+    }
+
+    // Apply all the operators to the image. The input image is never released, if the result is another
+    // image, it was acquired from the pool and the caller must release it to the pool.
+    public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+    {
+        IplImage current = image;
+        for (ImageOperator operator : this.operators)
+        {
+            IplImage result = operator.apply(current, metadata, pool);
+            if ((result != current) && (current != image))
+            {
+                pool.release(current);
+            }
+
+            current = result;
+        }
+
+        return current;
+    }
+
+    private void parseOperator(String operator) throws InvalidPropertiesFormatException
+    {
+        String name = operator;
+        Map<String, String> params = new HashMap<String, String>();
+
+        int pos = operator.indexOf(':');
+        if (pos >= 0)
+        {
+            name = operator.substring(0, pos).trim();
+            for (String param : operator.substring(pos + 1).split(","))
+            {
+                if (param.trim().isEmpty())
+                {
+                    continue;
+                }
+
+                int equal = param.indexOf('=');
+                if (equal <= 0)
+                {
+                    throw new InvalidPropertiesFormatException("Invalid parameter of " + name + ": " + param);
+                }
+
+                params.put(param.substring(0, equal).trim(), param.substring(equal + 1).trim());
+            }
+        }
+
+        this.names.add(name);
+        this.operators.add(ImageOperators.create(name, params));
+    }
+}
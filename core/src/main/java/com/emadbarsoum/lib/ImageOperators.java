@@ -0,0 +1,271 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+
+import java.util.HashMap;
+import java.util.InvalidPropertiesFormatException;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * ImageOperators create the built-in operators of an ImageOperatorChain by name, with the same
+ * parameters and defaults as the map only job of the same name:
+ *
+ *     gaussian:size=3,sigma=1.0
+ *     median:size=3
+ *     color2gray
+ *     thumbnail:size=120
+ *     erode:shape=rect,size=3,iterations=1
+ *     dilate:shape=rect,size=3,iterations=1
+ *     morph:op=open,shape=rect,size=3,iterations=1
+ *
+ * where the morph operation is one of Morphology.OPERATIONS.
+ */
+public class ImageOperators
+{
+    private ImageOperators()
+    {
+    }
+
+    public static ImageOperator create(String name, Map<String, String> params) throws InvalidPropertiesFormatException
+    {
+        Params p = new Params(name, params);
+        ImageOperator operator;
+
+        try
+        {
+            switch (name)
+            {
+                case "gaussian":
+                    operator = new Gaussian(p.getInt("size", 3), p.getDouble("sigma", 1.0));
+                    break;
+                case "median":
+                    operator = new Median(p.getInt("size", 3));
+                    break;
+                case "color2gray":
+                    operator = new Color2Gray();
+                    break;
+                case "thumbnail":
+                    operator = new Thumbnail(p.getInt("size", 120));
+                    break;
+                case "erode":
+                case "dilate":
+                    operator = new Morph(new Morphology(name, p.getString("shape", "rect"), p.getInt("size", 3), p.getInt("iterations", 1)));
+                    break;
+                case "morph":
+                    operator = new Morph(new Morphology(p.getString("op", "open"), p.getString("shape", "rect"), p.getInt("size", 3), p.getInt("iterations", 1)));
+                    break;
+                default:
+                    throw new InvalidPropertiesFormatException("Unknown operator: " + name);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new InvalidPropertiesFormatException(e.getMessage());
+        }
+
+        p.checkUnused();
+        return operator;
+    }
+
+    /**
+     * Gaussian blur, in place.
+     */
+    public static class Gaussian implements ImageOperator
+    {
+        private int size;
+        private double sigma;
+
+        public Gaussian(int size, double sigma)
+        {
+            if ((size < 3) || (size % 2 == 0))
+            {
+                throw new IllegalArgumentException("The gaussian size must be an odd number >= 3.");
+            }
+
+            this.size = size;
+            this.sigma = sigma;
+        }
+
+        @Override
+        public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+        {
+            cvSmooth(image, image, CV_GAUSSIAN, this.size, this.size, this.sigma, this.sigma);
+            return image;
+        }
+    }
+
+    /**
+     * Median blur, into a new image since the median filter can't work in place.
+     */
+    public static class Median implements ImageOperator
+    {
+        private int size;
+
+        public Median(int size)
+        {
+            if ((size < 3) || (size % 2 == 0))
+            {
+                throw new IllegalArgumentException("The median size must be an odd number >= 3.");
+            }
+
+            this.size = size;
+        }
+
+        @Override
+        public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+        {
+            IplImage result = pool.acquire(image.width(), image.height(), image.depth(), image.nChannels());
+            cvSmooth(image, result, CV_MEDIAN, this.size, 0, 0.0, 0.0);
+
+            return result;
+        }
+    }
+
+    /**
+     * Convert a BGR image to a gray level image, gray images are left as is.
+     */
+    public static class Color2Gray implements ImageOperator
+    {
+        @Override
+        public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+        {
+            if (image.nChannels() == 1)
+            {
+                return image;
+            }
+
+            IplImage result = pool.acquire(image.width(), image.height(), image.depth(), 1);
+            cvCvtColor(image, result, (image.nChannels() == 4) ? CV_BGRA2GRAY : CV_BGR2GRAY);
+
+            if (metadata.has("channel_count"))
+            {
+                metadata.put("channel_count", 1);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Resize the image so that its largest side is the given size, keeping its aspect ratio.
+     */
+    public static class Thumbnail implements ImageOperator
+    {
+        private int size;
+
+        public Thumbnail(int size)
+        {
+            if (size < 1)
+            {
+                throw new IllegalArgumentException("The thumbnail size must be positive.");
+            }
+
+            this.size = size;
+        }
+
+        @Override
+        public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+        {
+            int w = this.size;
+            int h = this.size;
+
+            if (image.width() > image.height())
+            {
+                h = Math.max(1, (w * image.height()) / image.width());
+            }
+            else
+            {
+                w = Math.max(1, (h * image.width()) / image.height());
+            }
+
+            IplImage result = pool.acquire(w, h, image.depth(), image.nChannels());
+            cvResize(image, result);
+
+            if (metadata.has("width"))
+            {
+                metadata.put("width", w);
+                metadata.put("height", h);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A morphological operation, see Morphology, in place.
+     */
+    public static class Morph implements ImageOperator
+    {
+        private Morphology morphology;
+
+        public Morph(Morphology morphology)
+        {
+            this.morphology = morphology;
+        }
+
+        @Override
+        public IplImage apply(IplImage image, ImageMetadata metadata, ImagePool pool)
+        {
+            this.morphology.apply(image, image);
+            return image;
+        }
+    }
+
+    /**
+     * The parameters of an operator, each one must be used.
+     */
+    private static class Params
+    {
+        private String operator;
+        private Map<String, String> values;
+
+        public Params(String operator, Map<String, String> values)
+        {
+            this.operator = operator;
+            this.values = new HashMap<String, String>(values);
+        }
+
+        public String getString(String name, String defaultValue)
+        {
+            String value = this.values.remove(name);
+            return (value == null) ? defaultValue : value;
+        }
+
+        public int getInt(String name, int defaultValue) throws InvalidPropertiesFormatException
+        {
+            String value = this.values.remove(name);
+            try
+            {
+                return (value == null) ? defaultValue : Integer.parseInt(value);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new InvalidPropertiesFormatException("Invalid " + name + " of " + this.operator + ": " + value);
+            }
+        }
+
+        public double getDouble(String name, double defaultValue) throws InvalidPropertiesFormatException
+        {
+            String value = this.values.remove(name);
+            try
+            {
+                return (value == null) ? defaultValue : Double.parseDouble(value);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new InvalidPropertiesFormatException("Invalid " + name + " of " + this.operator + ": " + value);
+            }
+        }
+
+        public void checkUnused() throws InvalidPropertiesFormatException
+        {
+            if (!this.values.isEmpty())
+            {
+                throw new InvalidPropertiesFormatException("Unknown parameter of " + this.operator + ": " + this.values.keySet());
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImagePool keep the released images by size and type, so that the next image of the same size and
+ * type reuse their native buffer instead of allocating a new one.
+ *
+ * Images are either acquired and released explicitly, or leased in a try-with-resources block:
+ *
+ *     try (ImagePool.Lease gray = pool.lease(width, height, IPL_DEPTH_8U, 1))
+ *     {
+ *         cvCvtColor(image, gray.image(), CV_BGR2GRAY);
+ *     }
+ *
+ * Only images created by the pool should be released to it. At most maxPerSize images are kept for
+ * each size and type, any other released image is freed. The hit and miss counts tell how many
+ * acquired images were reused or allocated. This class is thread safe.
+ */
+public class ImagePool
+{
+    private int maxPerSize;
+    private Map<Key, Deque<IplImage>> images = new HashMap<Key, Deque<IplImage>>();
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public ImagePool()
+    {
+        this(2);
+    }
+
+    public ImagePool(int maxPerSize)
+    {
+        this.maxPerSize = maxPerSize;
+    }
+
+    // Return an image of the given size and type, its content is undefined.
+    public synchronized IplImage acquire(int width, int height, int depth, int channelCount)
+    {
+        Deque<IplImage> free = this.images.get(new Key(width, height, depth, channelCount));
+        if ((free != null) && !free.isEmpty())
+        {
+            this.hitCount++;
+            return free.pop();
+        }
+
+        this.missCount++;
+        return IplImage.create(width, height, depth, channelCount);
+    }
+
+    // Same as acquire(), the image is released when the lease is closed.
+    public Lease lease(int width, int height, int depth, int channelCount)
+    {
+        return new Lease(this, acquire(width, height, depth, channelCount));
+    }
+
+    public synchronized void release(IplImage image)
+    {
+        Key key = new Key(image.width(), image.height(), image.depth(), image.nChannels());
+        Deque<IplImage> free = this.images.get(key);
+        if (free == null)
+        {
+            free = new ArrayDeque<IplImage>();
+            this.images.put(key, free);
+        }
+
+        if (free.size() < this.maxPerSize)
+        {
+            free.push(image);
+        }
+        else
+        {
+            image.release();
+        }
+    }
+
+    // Number of acquired images that reused a pooled image.
+    public synchronized long hitCount()
+    {
+        return this.hitCount;
+    }
+
+    // Number of acquired images that had to be allocated.
+    public synchronized long missCount()
+    {
+        return this.missCount;
+    }
+
+    // Add the hit and miss counts to the "HVision" counters of the task.
+    public void addCounters(TaskAttemptContext context)
+    {
+        context.getCounter("HVision", "Image pool hits").increment(hitCount());
+        context.getCounter("HVision", "Image pool misses").increment(missCount());
+    }
+
+    // Free all the pooled images.
+    public synchronized void clear()
+    {
+        for (Deque<IplImage> free : this.images.values())
+        {
+            for (IplImage image : free)
+            {
+                image.release();
+            }
+        }
+
+        this.images.clear();
+    }
+
+    /**
+     * An image acquired from the pool, released back to it on close().
+     */
+    public static class Lease implements AutoCloseable
+    {
+        private ImagePool pool;
+        private IplImage image;
+
+        Lease(ImagePool pool, IplImage image)
+        {
+            this.pool = pool;
+            this.image = image;
+        }
+
+        public IplImage image()
+        {
+            return this.image;
+        }
+
+        @Override
+        public void close()
+        {
+            if (this.image != null)
+            {
+                this.pool.release(this.image);
+                this.image = null;
+            }
+        }
+    }
+
+    private static class Key
+    {
+        final int width;
+        final int height;
+        final int depth;
+        final int channelCount;
+
+        Key(int width, int height, int depth, int channelCount)
+        {
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.channelCount = channelCount;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+
+            Key key = (Key)other;
+            return (this.width == key.width)   &&
+                   (this.height == key.height) &&
+                   (this.depth == key.depth)   &&
+                   (this.channelCount == key.channelCount);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((this.width * 31 + this.height) * 31 + this.depth) * 31 + this.channelCount;
+        }
+    }
+}
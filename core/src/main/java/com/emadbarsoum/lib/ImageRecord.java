@@ -0,0 +1,30 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * ImageRecord is a single key value pair of an image sequence file, the key holds the image
+ * metadata (Text or ImageKeyWritable) and the value holds the image data (compressed or raw).
+ */
+public class ImageRecord
+{
+    private Writable key;
+    private BytesWritable value;
+
+    public ImageRecord(Writable key, BytesWritable value)
+    {
+        this.key = key;
+        this.value = value;
+    }
+
+    public Writable key()
+    {
+        return this.key;
+    }
+
+    public BytesWritable value()
+    {
+        return this.value;
+    }
+}
@@ -0,0 +1,79 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageDecoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageRecordDecoder turn the value of an image record into the ImageWritable handed to a mapper.
+ *
+ * Raw and rawz images are copied into an image from its pool, so images of the same size share a
+ * single native buffer, compressed images are decoded by OpenCV. Images that can't be decoded are
+ * counted as "Failed images". ImageRecordReader use one per task, MultithreadedImageMapper one per
+ * thread. This class isn't thread safe.
+ */
+class ImageRecordDecoder
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageRecordDecoder.class);
+
+    private ImagePool pool = new ImagePool();
+    private ImageDecoder decoder = new ImageDecoder();
+    private Counter failedImages = null;
+
+    ImageRecordDecoder(TaskAttemptContext context)
+    {
+        this.failedImages = context.getCounter("HVision", "Failed images");
+    }
+
+    // Decode the value of a record, return null if it can't be decoded.
+    ImageWritable decode(ImageMetadata metadata, BytesWritable bytes)
+    {
+        if (ImageHelper.isRawType(metadata))
+        {
+            IplImage image = this.pool.acquire(
+                metadata.getAsInt("width"),
+                metadata.getAsInt("height"),
+                metadata.getAsInt("depth"),
+                metadata.getAsInt("channel_count"));
+
+            try
+            {
+                this.decoder.copyRaw(metadata, bytes, image);
+                return new ImageWritable(image, metadata, this.pool);
+            }
+            catch (IllegalArgumentException e)
+            {
+                this.pool.release(image);
+                log.warn("Failed to decode " + metadata.get("name"), e);
+            }
+        }
+        else
+        {
+            IplImage image = this.decoder.decodeCompressed(bytes);
+            if (image != null)
+            {
+                return new ImageWritable(image, metadata, null);
+            }
+
+            log.warn("Failed to decode " + metadata.get("name"));
+        }
+
+        this.failedImages.increment(1);
+        return null;
+    }
+
+    // Add the pool counters to the task and free the pooled images and the native buffers.
+    void close(TaskAttemptContext context)
+    {
+        this.pool.addCounters(context);
+        this.pool.clear();
+        this.decoder.release();
+    }
+}
@@ -0,0 +1,208 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataFilter;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * ImageRecordReader read the records of an image sequence file and decode each image once, before it
+ * is handed to the mapper.
+ *
+ * Raw and rawz images are copied into an image from a per task pool, so a task reading images of the same size
+ * allocate a single native buffer. The image of a record is released back to the pool when the next
+ * record is read, that is after map() returned. Records that can't be decoded are skipped and counted
+ * as "Failed images".
+ *
+ * With MultithreadedImageMapper the records aren't decoded here, each value holds the undecoded bytes
+ * of its record (see ImageWritable.data()), which each map thread copy and decode on its own.
+ *
+ * If a metadata filter is set with ImageInputFormat.setFilter(), the key of each record is checked
+ * before its value is read, the value of a rejected record is skipped in the file without being
+ * deserialized or decoded, and the record is counted as "Skipped images". A condition on the width or
+ * height of a compressed image needs its value, whose header gives the size, but it isn't decoded.
+ */
+public class ImageRecordReader extends RecordReader<Writable, ImageWritable>
+{
+    private SequenceFile.Reader in = null;
+    private long start;
+    private long end;
+    private boolean more = true;
+    private Writable key = null;
+    private BytesWritable bytes = new BytesWritable();
+    private MetadataFilter filter = null;
+    private MetadataParser parser = new MetadataParser();
+    private ImageRecordDecoder decoder = null;
+    private ImageWritable value = null;
+    private Counter skippedImages = null;
+    private TaskAttemptContext context = null;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException
+    {
+        FileSplit fileSplit = (FileSplit)split;
+        Configuration conf = context.getConfiguration();
+        Path path = fileSplit.getPath();
+
+        this.in = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+        this.start = fileSplit.getStart();
+        this.end = this.start + fileSplit.getLength();
+
+        // Same split boundaries as SequenceFileRecordReader.
+        if (this.start > this.in.getPosition())
+        {
+            this.in.sync(this.start);
+        }
+
+        this.start = this.in.getPosition();
+        this.more = this.start < this.end;
+
+        // The key is either a Text or an ImageKeyWritable.
+        this.key = (Writable)ReflectionUtils.newInstance(this.in.getKeyClass(), conf);
+
+        // The map threads of MultithreadedImageMapper decode the records themselves.
+        if (!MultithreadedImageMapper.isMultithreaded(conf))
+        {
+            this.decoder = new ImageRecordDecoder(context);
+        }
+
+        this.filter = ImageInputFormat.getFilter(conf);
+        this.skippedImages = context.getCounter("HVision", "Skipped images");
+        this.context = context;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException
+    {
+        releaseValue();
+
+        while (nextKey())
+        {
+            ImageMetadata metadata = ImageHelper.getMetadata(this.key, this.parser);
+
+            // The value isn't read until the next key for rejected records, so it is only skipped. Unless
+            // the filter is on the size of a compressed image, which is then read from its header.
+            boolean valueRead = false;
+            if (this.filter != null)
+            {
+                boolean match;
+                if (this.filter.needsImageSize(metadata) && !ImageHelper.isRawType(metadata))
+                {
+                    this.in.getCurrentValue(this.bytes);
+                    valueRead = true;
+
+                    match = this.filter.matches(metadata, ImageHelper.probeImageSize(this.bytes.getBytes(), this.bytes.getLength()));
+                }
+                else
+                {
+                    match = this.filter.matches(metadata);
+                }
+
+                if (!match)
+                {
+                    this.skippedImages.increment(1);
+                    continue;
+                }
+            }
+
+            if (!valueRead)
+            {
+                this.in.getCurrentValue(this.bytes);
+            }
+
+            if (this.decoder == null)
+            {
+                this.value = new ImageWritable(this.bytes, metadata);
+                return true;
+            }
+
+            this.value = this.decoder.decode(metadata, this.bytes);
+            if (this.value != null)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Writable getCurrentKey()
+    {
+        return this.key;
+    }
+
+    @Override
+    public ImageWritable getCurrentValue()
+    {
+        return this.value;
+    }
+
+    @Override
+    public float getProgress() throws IOException
+    {
+        if (this.end == this.start)
+        {
+            return 0.0f;
+        }
+
+        return Math.min(1.0f, (this.in.getPosition() - this.start) / (float)(this.end - this.start));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        releaseValue();
+
+        if (this.in != null)
+        {
+            this.in.close();
+            this.in = null;
+        }
+
+        if (this.decoder != null)
+        {
+            this.decoder.close(this.context);
+            this.decoder = null;
+        }
+    }
+
+    // Read the next key of the split, the value is left in the file until getCurrentValue().
+    private boolean nextKey() throws IOException
+    {
+        if (!this.more)
+        {
+            return false;
+        }
+
+        long pos = this.in.getPosition();
+        if (!this.in.next(this.key) || ((pos >= this.end) && this.in.syncSeen()))
+        {
+            this.more = false;
+        }
+
+        return this.more;
+    }
+
+    private void releaseValue()
+    {
+        if (this.value != null)
+        {
+            this.value.release();
+            this.value = null;
+        }
+    }
+}
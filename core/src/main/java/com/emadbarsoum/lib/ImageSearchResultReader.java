@@ -15,12 +15,20 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * ImageSearchResultReader provide a simple interface to read images from the result sequence
  * file of image search MapReduce.
+ *
+ * Images are loaded on the first call to image(), either from their original path or, if an
+ * ImageStore is set, from the indexed image sequence file that was searched.
  */
 public class ImageSearchResultReader
 {
     private Configuration conf = null;
     private SequenceFile.Reader reader = null;
+    private DoubleWritable key = new DoubleWritable();
+    private Text value = new Text();
+    private MetadataParser parser = new MetadataParser();
+    private ImageStore store = null;
     private IplImage image = null;
+    private boolean loaded = false;
     private String name;
     private String ext;
     private String path;
@@ -40,11 +48,38 @@ public class ImageSearchResultReader
         return this.path;
     }
 
-    public IplImage image()
+    // The image is owned by the reader, or by the store if any, and is valid until the next call to next().
+    public IplImage image() throws Exception
     {
+        if (!this.loaded)
+        {
+            if (this.store != null)
+            {
+                this.image = this.store.get(this.name) ? this.store.image() : null;
+            }
+            else
+            {
+                this.image = cvLoadImage(this.path);
+            }
+
+            this.loaded = true;
+        }
+
         return this.image;
     }
 
+    public ImageStore getImageStore()
+    {
+        return this.store;
+    }
+
+    // Fetch the images from the given store by name instead of loading them from their original path.
+    public void setImageStore(ImageStore store)
+    {
+        releaseImage();
+        this.store = store;
+    }
+
     public ImageSearchResultReader(Configuration conf)
     {
         if (conf == null)
@@ -62,24 +97,20 @@ public class ImageSearchResultReader
             throw new Exception("Invalid State: open() must be called before next().");
         }
 
-        DoubleWritable key = new DoubleWritable();
-        Text value = new Text();
+        DoubleWritable key = this.key;
+        Text value = this.value;
 
         if (this.reader.next(key, value))
         {
-            MetadataParser metadata = new MetadataParser(value.toString());
+            MetadataParser metadata = this.parser;
+            metadata.reset(value);
             metadata.parse();
 
             this.name = metadata.get("name");
             this.ext = metadata.get("ext");
             this.path = metadata.get("path");
 
-            if (this.image != null)
-            {
-                cvReleaseImage(this.image);
-            }
-
-            this.image = cvLoadImage(this.path);
+            releaseImage();
 
             return true;
         }
@@ -98,11 +129,7 @@ public class ImageSearchResultReader
 
     public void close() throws IOException
     {
-        if (this.image != null)
-        {
-            cvReleaseImage(this.image);
-            this.image = null;
-        }
+        releaseImage();
 
         if (this.reader != null)
         {
@@ -110,4 +137,15 @@ public class ImageSearchResultReader
             this.reader = null;
         }
     }
+
+    private void releaseImage()
+    {
+        if ((this.image != null) && (this.store == null))
+        {
+            cvReleaseImage(this.image);
+        }
+
+        this.image = null;
+        this.loaded = false;
+    }
 }
@@ -1,45 +1,63 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImageDecoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
 import com.emadbarsoum.common.MetadataParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
-import org.bytedeco.javacpp.BytePointer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * ImageSequenceFileReader provide a simple interface to read images from an image
  * sequence file.
+ *
+ * Uncompressed sequence files on the local file system are read with MappedImageSequenceFileReader,
+ * unless "hvision.local.mmap" is set to false. Their .crc file is only checked if
+ * "hvision.local.mmap.verify" is set to true.
  */
 public class ImageSequenceFileReader
 {
+    public static final String MMAP = "hvision.local.mmap";
+    public static final String MMAP_VERIFY = "hvision.local.mmap.verify";
+
     private Configuration conf = null;
     private SequenceFile.Reader reader = null;
+    private MappedImageSequenceFileReader mappedReader = null;
+    private Writable key = null;
+    private BytesWritable value = new BytesWritable();
+    private ImageMetadata metadata = null;
+    private MetadataParser parser = new MetadataParser();
+    private ImageDecoder decoder = new ImageDecoder();
     private IplImage image = null;
     private String name;
     private String ext;
 
     public String name()
     {
-        return this.name;
+        return (this.mappedReader != null) ? this.mappedReader.name() : this.name;
     }
 
     public String originalExt()
     {
-        return this.ext;
+        return (this.mappedReader != null) ? this.mappedReader.originalExt() : this.ext;
     }
 
     public IplImage image()
     {
-        return this.image;
+        return (this.mappedReader != null) ? this.mappedReader.image() : this.image;
+    }
+
+    public ImageMetadata metadata()
+    {
+        return (this.mappedReader != null) ? this.mappedReader.metadata() : this.metadata;
     }
 
     public ImageSequenceFileReader(Configuration conf)
@@ -54,55 +72,27 @@ public class ImageSequenceFileReader
 
     public boolean next() throws Exception
     {
+        if (this.mappedReader != null)
+        {
+            return this.mappedReader.next();
+        }
+
         if (this.reader == null)
         {
             throw new Exception("Invalid State: open() must be called before next().");
         }
 
-        Text key = new Text();
-        BytesWritable value = new BytesWritable();
+        BytesWritable value = this.value;
 
-        if (this.reader.next(key, value))
+        if (this.reader.next(this.key, value))
         {
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            ImageMetadata metadata = ImageHelper.getMetadata(this.key, this.parser);
+            this.metadata = metadata;
 
             this.name = metadata.get("name");
             this.ext = metadata.get("ext");
 
-            if (metadata.has("type") && metadata.get("type").equals("raw"))
-            {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                if (this.image == null)
-                {
-                    this.image = IplImage.create(width, height, depth, channelCount);
-                }
-                else if (!((this.image.width() == width)   &&
-                           (this.image.height() == height) &&
-                           (this.image.depth() == depth)   &&
-                           (this.image.nChannels() == channelCount)))
-                {
-                    this.image.release();
-                    this.image = IplImage.create(width, height, depth, channelCount);
-                }
-
-                ByteBuffer buffer = this.image.getByteBuffer();
-                byte[] rawBuffer = Arrays.copyOf(value.getBytes(), value.getLength());
-                buffer.put(rawBuffer);
-            }
-            else
-            {
-                if (this.image != null)
-                {
-                    this.image.release();
-                }
-
-                this.image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-            }
+            this.image = this.decoder.decode(metadata, value);
 
             return true;
         }
@@ -114,17 +104,34 @@ public class ImageSequenceFileReader
     {
         close();
 
+        Path path = new Path(inputPath);
+        if (this.conf.getBoolean(MMAP, true) && MappedImageSequenceFileReader.isSupported(this.conf, path))
+        {
+            // The image may be modified by the caller, so raw pixels are copied out of the mapping.
+            this.mappedReader = new MappedImageSequenceFileReader(this.conf);
+            this.mappedReader.setZeroCopy(false);
+            this.mappedReader.setVerifyChecksum(this.conf.getBoolean(MMAP_VERIFY, false));
+            this.mappedReader.open(inputPath);
+            return;
+        }
+
         this.reader = new SequenceFile.Reader(
             this.conf,
-            SequenceFile.Reader.file(new Path(inputPath)));
+            SequenceFile.Reader.file(path));
+
+        // The key is either a Text or an ImageKeyWritable.
+        this.key = (Writable)ReflectionUtils.newInstance(this.reader.getKeyClass(), this.conf);
     }
 
     public void close() throws IOException
     {
-        if (this.image != null)
+        this.decoder.release();
+        this.image = null;
+
+        if (this.mappedReader != null)
         {
-            this.image.release();
-            this.image = null;
+            this.mappedReader.close();
+            this.mappedReader = null;
         }
 
         if (this.reader != null)
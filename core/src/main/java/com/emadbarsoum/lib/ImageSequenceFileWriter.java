@@ -1,15 +1,35 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.RawImageCodec;
 import com.google.common.io.Files;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.bytedeco.javacpp.BytePointer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
@@ -17,13 +37,82 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * ImageSequenceFileWriter provide a simple interface to create an image sequence file,
  * write images to a sequence file and append an existing image sequence file.
+ *
+ * If indexed, the offset of each record is recorded by image name and written on close() as a
+ * MapFile next to the sequence file, which is what ImageStore use to fetch images by name.
+ *
+ * In rolling mode, the output path is a folder and a new "part-XXXXX" file is started whenever the
+ * current one reach its byte or record budget. The byte budget is a whole number of file system blocks,
+ * and an "_manifest" file (see ImageManifest) list the parts as they are closed.
+ *
+ * A rolling output can be resumed: the parts left over from an interrupted run are removed, new parts
+ * are added after the committed ones and the input files that are already in a committed part are
+ * skipped. Hadoop 2.5 SequenceFile can't append to an existing file, hence resuming is done by parts.
+ *
+ * With an ImageDeduplicator, the content hash of each image is stored in its "hash" metadata and an
+ * image whose payload was already written is skipped.
+ *
+ * The sequence files are uncompressed by default. With RECORD compression each image is compressed on
+ * its own, with BLOCK compression the records are buffered up to the compression block size and
+ * compressed together, and a sync marker is only written between blocks. Raw images compress well,
+ * already compressed images (JPEG, PNG) don't, and are better left uncompressed.
  */
 public class ImageSequenceFileWriter
 {
+    // Bytes written around the key and value of a record: the record and key lengths, the length of
+    // the BytesWritable value, and a sync marker (escape and 16 bytes hash) that SequenceFile write in
+    // front of a record about every 2000 bytes, so in front of nearly every image.
+    private static final int RECORD_OVERHEAD = 4 + 4 + 4 + (4 + 16);
+
+    // A codec per thread, as records are created on multiple threads, so that its buffers and zlib
+    // state are reused from one image to the next.
+    private static final ThreadLocal<RawImageCodec> RAWZ_CODEC = new ThreadLocal<RawImageCodec>()
+    {
+        @Override
+        protected RawImageCodec initialValue()
+        {
+            return new RawImageCodec();
+        }
+    };
+
     private boolean compressed = false;
+    private boolean rawz = false;
+    private boolean binaryKey = false;
+    private boolean indexed = false;
+    private boolean rolling = false;
+    private long maxPartBytes = 0;
+    private long maxPartRecords = 0;
+    private boolean resume = false;
+    private ImageDeduplicator deduplicator = null;
+    private SequenceFile.CompressionType compressionType = SequenceFile.CompressionType.NONE;
+    private CompressionCodec codec = null;
+    private int compressionBlockSize = 0;
     private Configuration conf = null;
     private SequenceFile.Writer writer = null;
 
+    // The output path is the sequence file, or the folder of parts in rolling mode.
+    private Path outputPath = null;
+    private Path filePath = null;
+    private ImageManifest manifest = null;
+    private int partIndex = 0;
+    // The byte budget of each part, maxPartBytes aligned to the block size, Long.MAX_VALUE if unlimited.
+    private long maxPartBytesAligned = 0;
+    private long partRecords = 0;
+    private DataOutputBuffer keyBuffer = new DataOutputBuffer();
+    private String firstName = null;
+    private String lastName = null;
+
+    // Input files of the committed parts, used when resuming, and of the current part.
+    private Set<String> committedInputs = new HashSet<String>();
+    private List<String> partInputs = new ArrayList<String>();
+    private long skippedCount = 0;
+
+    // Unsorted (name, offset) pairs, sorted into the index when the file is closed.
+    private SequenceFile.Writer indexWriter = null;
+    private Text indexName = new Text();
+    private LongWritable indexOffset = new LongWritable();
+    private MetadataParser parser = new MetadataParser();
+
     public ImageSequenceFileWriter(Configuration conf, boolean compressed)
     {
         if (conf == null)
@@ -35,6 +124,166 @@ public class ImageSequenceFileWriter
         this.compressed = compressed;
     }
 
+    public boolean isRawz()
+    {
+        return this.rawz;
+    }
+
+    // Store the uncompressed images as "rawz", compressed with the lossless RawImageCodec, instead of
+    // "raw". Only used if the writer isn't compressed.
+    public void setRawz(boolean rawz)
+    {
+        this.rawz = rawz;
+    }
+
+    public boolean isBinaryKey()
+    {
+        return this.binaryKey;
+    }
+
+    // Write ImageKeyWritable keys instead of "name=value;..." Text keys, must be set before create().
+    public void setBinaryKey(boolean binaryKey)
+    {
+        this.binaryKey = binaryKey;
+    }
+
+    public boolean isIndexed()
+    {
+        return this.indexed;
+    }
+
+    // Write an index of the record offsets by image name, must be set before create().
+    public void setIndexed(boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    public boolean isRolling()
+    {
+        return this.rolling;
+    }
+
+    // Start a new part after maxBytes (rounded down to a multiple of the block size, 0 for a single block,
+    // negative for no limit) or maxRecords (0 for no limit), must be set before create().
+    public void setRolling(long maxBytes, long maxRecords)
+    {
+        this.rolling = true;
+        this.maxPartBytes = maxBytes;
+        this.maxPartRecords = maxRecords;
+    }
+
+    public boolean isResume()
+    {
+        return this.resume;
+    }
+
+    // Resume a previous rolling output instead of overwriting it, must be set before create().
+    public void setResume(boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    // Number of input files skipped because they are already in the resumed output.
+    public long skippedCount()
+    {
+        return this.skippedCount;
+    }
+
+    public ImageDeduplicator getDeduplicator()
+    {
+        return this.deduplicator;
+    }
+
+    // Skip the images with the same content as an already written one, the deduplicator can be shared
+    // across writers and is opened and closed by the caller.
+    public void setDeduplicator(ImageDeduplicator deduplicator)
+    {
+        this.deduplicator = deduplicator;
+    }
+
+    // Number of images skipped as duplicates.
+    public long duplicateCount()
+    {
+        return (this.deduplicator == null) ? 0 : this.deduplicator.duplicateCount();
+    }
+
+    public SequenceFile.CompressionType getCompressionType()
+    {
+        return this.compressionType;
+    }
+
+    public CompressionCodec getCodec()
+    {
+        return this.codec;
+    }
+
+    // Compress the sequence file records or blocks of records with the given codec, null for the
+    // default (zlib) codec, must be set before create().
+    public void setCompression(SequenceFile.CompressionType compressionType, CompressionCodec codec)
+    {
+        this.compressionType = compressionType;
+        this.codec = codec;
+    }
+
+    public int getCompressionBlockSize()
+    {
+        return this.compressionBlockSize;
+    }
+
+    // Size in bytes of the records buffered before a block is compressed, 0 for the Hadoop default
+    // (io.seqfile.compress.blocksize, 1 MB), must be set before create().
+    public void setCompressionBlockSize(int compressionBlockSize)
+    {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    // Configure the compression from the common command line options: -compress <none, record or block>,
+    // -codec <default, deflate, gzip, bzip2, snappy, lz4 or a codec class> and -blocksize <KB>.
+    public void configureCompression(CommandParser parser) throws IOException
+    {
+        if (parser.has("compress"))
+        {
+            setCompression(
+                getCompressionType(parser.get("compress")),
+                parser.has("codec") ? getCodec(this.conf, parser.get("codec")) : null);
+        }
+
+        if (parser.has("blocksize"))
+        {
+            setCompressionBlockSize(parser.getAsInt("blocksize") * 1024);
+        }
+    }
+
+    // Return the compression type by name ("none", "record" or "block"), BLOCK if the name is null.
+    public static SequenceFile.CompressionType getCompressionType(String name) throws IOException
+    {
+        if (name == null)
+        {
+            return SequenceFile.CompressionType.BLOCK;
+        }
+
+        try
+        {
+            return SequenceFile.CompressionType.valueOf(name.toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Unknown compression type: " + name);
+        }
+    }
+
+    // Return a Hadoop codec by name (such as "snappy", "lz4", "deflate", "bzip2" or "gzip") or by class name.
+    public static CompressionCodec getCodec(Configuration conf, String name) throws IOException
+    {
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(name);
+        if (codec == null)
+        {
+            throw new IOException("Unknown compression codec: " + name);
+        }
+
+        return codec;
+    }
+
     public void append(String imageFilePath) throws Exception
     {
         append(imageFilePath, null);
@@ -57,76 +306,503 @@ public class ImageSequenceFileWriter
             throw new Exception("Invalid State: create() must be called before append().");
         }
 
+        if (skipCommitted(imageFile.getAbsolutePath()))
+        {
+            return;
+        }
+
+        ImageRecord record = createRecord(imageFile, additionMetadata);
+        if (record != null)
+        {
+            append(record);
+        }
+    }
+
+    // Append an image that is already in memory, such as an archive entry, see createRecord().
+    public void append(String fileName, String path, byte[] fileData, String additionMetadata) throws Exception
+    {
+        if (this.writer == null)
+        {
+            throw new Exception("Invalid State: create() must be called before append().");
+        }
+
+        if (skipCommitted(path))
+        {
+            return;
+        }
+
+        ImageRecord record = createRecord(fileName, path, fileData, additionMetadata);
+        if (record != null)
+        {
+            append(record);
+        }
+    }
+
+    public void append(ImageRecord record) throws Exception
+    {
+        if (this.writer == null)
+        {
+            throw new Exception("Invalid State: create() must be called before append().");
+        }
+
+        // The metadata is only needed for the index, the manifest, the checkpoint and the deduplication.
+        String name = null;
+        String path = null;
+        if (this.indexed || this.rolling || (this.deduplicator != null))
+        {
+            ImageMetadata metadata = ImageHelper.getMetadata(record.key(), this.parser);
+            name = metadata.get("name");
+            path = this.rolling ? metadata.get("path") : null;
+
+            if (this.deduplicator != null)
+            {
+                String hash = metadata.get("hash");
+                if (hash == null)
+                {
+                    hash = ImageDeduplicator.hash(record.value().getBytes(), record.value().getLength());
+                }
+
+                if (!this.deduplicator.add(hash))
+                {
+                    // Still checkpointed, so that a resumed run doesn't read it again.
+                    addPartInput(path);
+                    return;
+                }
+            }
+        }
+
+        if (this.rolling && isPartFull(record))
+        {
+            closeFile();
+            openFile(partPath(++this.partIndex));
+        }
+
+        addPartInput(path);
+
+        if (this.indexWriter != null)
+        {
+            if (name != null)
+            {
+                // The position before append() is where the reader should seek to, a sync marker
+                // written in front of the record is skipped by the reader.
+                this.indexName.set(name);
+                this.indexOffset.set(this.writer.getLength());
+                this.indexWriter.append(this.indexName, this.indexOffset);
+            }
+        }
+
+        this.writer.append(record.key(), record.value());
+
+        this.partRecords++;
+        if (name != null)
+        {
+            if ((this.firstName == null) || (ImageManifest.compare(name, this.firstName) < 0))
+            {
+                this.firstName = name;
+            }
+
+            if ((this.lastName == null) || (ImageManifest.compare(name, this.lastName) > 0))
+            {
+                this.lastName = name;
+            }
+        }
+    }
+
+    // Read the image file and build its key and value, without touching the underlying sequence file.
+    // This is the expensive part of append() and it is safe to call from multiple threads.
+    // Return null for files without an extension, those are skipped.
+    public ImageRecord createRecord(File imageFile, String additionMetadata) throws Exception
+    {
+        if (imageFile.getName().lastIndexOf(".") <= 0)
+        {
+            return null;
+        }
+
+        return createRecord(imageFile.getName(), imageFile.getAbsolutePath(), Files.toByteArray(imageFile), additionMetadata);
+    }
+
+    // Same as above for an image that is already in memory, such as an image read from HDFS or from an
+    // archive. The name and extension come from fileName and path is stored as is in the metadata.
+    public ImageRecord createRecord(String fileName, String path, byte[] fileData, String additionMetadata) throws Exception
+    {
         int width = 0;
         int height = 0;
         int channelCount = 0;
         int depth = 0;
-        byte[] fileData;
 
-        if (this.compressed)
+        String name;
+        String extension;
+        String metadata;
+
+        int pos = fileName.lastIndexOf(".");
+        if (pos <= 0)
         {
-            fileData = Files.toByteArray(imageFile);
+            return null;
         }
-        else
+
+        if (!this.compressed)
         {
-            IplImage image = cvLoadImage(imageFile.getAbsolutePath());
+            // The native copy of the file is freed right away rather than left to the garbage collector.
+            BytePointer data = new BytePointer(fileData);
+            IplImage image = cvDecodeImage(cvMat(1, fileData.length, CV_8UC1, data));
+            data.deallocate();
+
+            if (image == null)
+            {
+                throw new IOException("Failed to decode " + path);
+            }
 
             width = image.width();
             height = image.height();
             channelCount = image.nChannels();
             depth = image.depth();
 
-            ByteBuffer byteBuffer = image.getByteBuffer();
-            fileData = new byte[byteBuffer.capacity()];
-            byteBuffer.get(fileData);
-
-            cvReleaseImage(image);
+            try
+            {
+                if (this.rawz)
+                {
+                    fileData = RAWZ_CODEC.get().encode(image);
+                }
+                else
+                {
+                    ByteBuffer byteBuffer = image.getByteBuffer();
+                    fileData = new byte[byteBuffer.capacity()];
+                    byteBuffer.get(fileData);
+                }
+            }
+            finally
+            {
+                cvReleaseImage(image);
+            }
         }
 
-        String name;
-        String extension;
-        String fileName = imageFile.getName();
-        String metadata;
+        name = fileName.substring(0, pos);
+        extension = fileName.substring(pos + 1, fileName.length()).toLowerCase();
 
-        int pos = fileName.lastIndexOf(".");
-        if (pos > 0)
+        // Hash here rather than in append(), so it is done by the worker threads of the parallel writer.
+        String hash = null;
+        if (this.deduplicator != null)
+        {
+            hash = ImageDeduplicator.hash(fileData, fileData.length);
+        }
+
+        if (this.binaryKey)
         {
-            name = fileName.substring(0, pos);
-            extension = fileName.substring(pos + 1, fileName.length()).toLowerCase();
-            metadata = "name=" + name + ";ext=" + extension;
+            ImageKeyWritable key = new ImageKeyWritable();
+            key.setName(name);
+            key.setExt(extension);
             if (!compressed)
             {
-                metadata += ";type=raw" + ";width=" + width + ";height=" + height + ";channel_count=" + channelCount + ";depth=" + depth;
+                if (this.rawz)
+                {
+                    key.setRawz(width, height, channelCount, depth);
+                }
+                else
+                {
+                    key.setRaw(width, height, channelCount, depth);
+                }
             }
 
             if ((additionMetadata != null) && !additionMetadata.isEmpty())
             {
-                metadata += ";" + additionMetadata;
+                key.putAll(additionMetadata);
             }
 
-            metadata += ";path=" + imageFile.getAbsolutePath();
+            key.put("path", path);
+            if (hash != null)
+            {
+                key.put("hash", hash);
+            }
+
+            return new ImageRecord(key, new BytesWritable(fileData));
+        }
+
+        metadata = "name=" + name + ";ext=" + extension;
+        if (!compressed)
+        {
+            metadata += ";type=" + (this.rawz ? ImageKeyWritable.TYPE_RAWZ : ImageKeyWritable.TYPE_RAW) + ";width=" + width + ";height=" + height + ";channel_count=" + channelCount + ";depth=" + depth;
+        }
 
-            writer.append(new Text(metadata), new BytesWritable(fileData));
+        if ((additionMetadata != null) && !additionMetadata.isEmpty())
+        {
+            metadata += ";" + additionMetadata;
         }
+
+        metadata += ";path=" + path;
+        if (hash != null)
+        {
+            metadata += ";hash=" + hash;
+        }
+
+        return new ImageRecord(new Text(metadata), new BytesWritable(fileData));
     }
 
     public void create(String outputPath) throws IOException
     {
         close();
 
-        this.writer = SequenceFile.createWriter(
-                conf,
-                SequenceFile.Writer.file(new Path(outputPath)),
-                SequenceFile.Writer.keyClass(Text.class),
-                SequenceFile.Writer.valueClass(BytesWritable.class));
+        this.outputPath = new Path(outputPath);
+
+        if (this.resume && !this.rolling)
+        {
+            throw new IOException("Only a rolling output can be resumed.");
+        }
+
+        this.committedInputs.clear();
+        this.skippedCount = 0;
+
+        if (this.rolling)
+        {
+            FileSystem fs = this.outputPath.getFileSystem(this.conf);
+            fs.mkdirs(this.outputPath);
+
+            this.manifest = new ImageManifest();
+            if (this.resume)
+            {
+                resumeOutput(fs);
+            }
+
+            this.partIndex = this.manifest.parts().size();
+            this.maxPartBytesAligned = alignToBlockSize(fs, this.maxPartBytes);
+
+            openFile(partPath(this.partIndex));
+        }
+        else
+        {
+            openFile(this.outputPath);
+        }
     }
 
     public void close() throws IOException
     {
         if (this.writer != null)
         {
-            this.writer.close();
-            this.writer = null;
+            closeFile();
+        }
+
+        this.manifest = null;
+    }
+
+    // Load the committed parts and their inputs, and remove anything left by an interrupted run. Without
+    // a manifest no part is committed, so a folder with parts but no manifest is refused rather than emptied.
+    private void resumeOutput(FileSystem fs) throws IOException
+    {
+        if (ImageManifest.exists(fs, this.outputPath))
+        {
+            this.manifest = ImageManifest.read(fs, this.outputPath);
+        }
+        else
+        {
+            for (FileStatus file : fs.listStatus(this.outputPath))
+            {
+                if (ImageManifest.partOf(file.getPath().getName()) != null)
+                {
+                    throw new IOException("Can't resume " + this.outputPath + ", it has parts but no manifest.");
+                }
+            }
+        }
+
+        Set<String> committedParts = new HashSet<String>();
+        for (ImageManifest.Part part : this.manifest.parts())
+        {
+            committedParts.add(part.getName());
+            ImageManifest.readCheckpoint(fs, this.outputPath, part.getName(), this.committedInputs);
+        }
+
+        Path checkpointFolder = new Path(this.outputPath, ImageManifest.CHECKPOINT_FOLDER);
+        List<FileStatus> files = new ArrayList<FileStatus>(Arrays.asList(fs.listStatus(this.outputPath)));
+        if (fs.exists(checkpointFolder))
+        {
+            files.addAll(Arrays.asList(fs.listStatus(checkpointFolder)));
+        }
+
+        for (FileStatus file : files)
+        {
+            String partName = ImageManifest.partOf(file.getPath().getName());
+            if ((partName != null) && !committedParts.contains(partName))
+            {
+                fs.delete(file.getPath(), true);
+            }
+        }
+    }
+
+    private void addPartInput(String path)
+    {
+        if (path != null)
+        {
+            this.partInputs.add(path);
         }
     }
+
+    // Skip an input that is already in a committed part of the resumed output.
+    protected boolean skipCommitted(String path)
+    {
+        if (this.committedInputs.isEmpty() || !this.committedInputs.contains(path))
+        {
+            return false;
+        }
+
+        this.skippedCount++;
+        return true;
+    }
+
+    private void openFile(Path filePath) throws IOException
+    {
+        this.filePath = filePath;
+        this.partInputs.clear();
+        this.partRecords = 0;
+        this.firstName = null;
+        this.lastName = null;
+
+        // The block size is only read from the configuration, hence a copy for this writer.
+        Configuration writerConf = this.conf;
+        if (this.compressionBlockSize > 0)
+        {
+            writerConf = new Configuration(this.conf);
+            writerConf.setInt("io.seqfile.compress.blocksize", this.compressionBlockSize);
+        }
+
+        this.writer = SequenceFile.createWriter(
+                writerConf,
+                SequenceFile.Writer.file(filePath),
+                SequenceFile.Writer.keyClass(this.binaryKey ? ImageKeyWritable.class : Text.class),
+                SequenceFile.Writer.valueClass(BytesWritable.class),
+                SequenceFile.Writer.compression(this.compressionType, (this.codec != null) ? this.codec : new DefaultCodec()));
+
+        if (this.indexed)
+        {
+            this.indexWriter = SequenceFile.createWriter(
+                    conf,
+                    SequenceFile.Writer.file(unsortedIndexPath(filePath)),
+                    SequenceFile.Writer.keyClass(Text.class),
+                    SequenceFile.Writer.valueClass(LongWritable.class));
+        }
+    }
+
+    private void closeFile() throws IOException
+    {
+        this.writer.close();
+        this.writer = null;
+
+        if (this.indexWriter != null)
+        {
+            this.indexWriter.close();
+            this.indexWriter = null;
+
+            writeIndex(this.filePath);
+        }
+
+        if (this.manifest != null)
+        {
+            FileSystem fs = this.outputPath.getFileSystem(this.conf);
+
+            // Don't leave an empty part behind, such as when a resumed run has no new image.
+            if ((this.partRecords == 0) && this.partInputs.isEmpty() && !this.manifest.parts().isEmpty())
+            {
+                fs.delete(this.filePath, false);
+                fs.delete(ImageStore.getIndexPath(this.filePath), true);
+                return;
+            }
+
+            long bytes = fs.getFileStatus(this.filePath).getLen();
+
+            // The checkpoint is written before the manifest, so a part is never committed without it.
+            ImageManifest.writeCheckpoint(fs, this.outputPath, this.filePath.getName(), this.partInputs);
+
+            this.manifest.add(new ImageManifest.Part(this.filePath.getName(), this.partRecords, bytes, this.firstName, this.lastName));
+            this.manifest.write(fs, this.outputPath);
+        }
+    }
+
+    // A part is full if the next record would push it over the byte budget, a part always has at least
+    // one record even if the record alone is bigger than the budget.
+    private boolean isPartFull(ImageRecord record) throws IOException
+    {
+        if (this.partRecords == 0)
+        {
+            return false;
+        }
+
+        if ((this.maxPartRecords > 0) && (this.partRecords >= this.maxPartRecords))
+        {
+            return true;
+        }
+
+        if (this.maxPartBytesAligned == Long.MAX_VALUE)
+        {
+            return false;
+        }
+
+        // The whole record is counted, not only the image, so that a part doesn't spill into one more
+        // block. With BLOCK compression the length doesn't include the current block, so a part can be
+        // over its budget by up to a compressed block.
+        this.keyBuffer.reset();
+        record.key().write(this.keyBuffer);
+
+        long recordBytes = RECORD_OVERHEAD + this.keyBuffer.getLength() + record.value().getLength();
+        return this.writer.getLength() + recordBytes > this.maxPartBytesAligned;
+    }
+
+    private long alignToBlockSize(FileSystem fs, long maxBytes)
+    {
+        if (maxBytes < 0)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        long blockSize = fs.getDefaultBlockSize(this.outputPath);
+        if (maxBytes <= blockSize)
+        {
+            return blockSize;
+        }
+
+        return maxBytes / blockSize * blockSize;
+    }
+
+    private Path partPath(int index)
+    {
+        return new Path(this.outputPath, String.format("part-%05d", index));
+    }
+
+    // Sort the (name, offset) pairs by name and write them as a MapFile.
+    private void writeIndex(Path filePath) throws IOException
+    {
+        Path unsortedPath = unsortedIndexPath(filePath);
+        Path sortedPath = unsortedPath.suffix(".sorted");
+        Path indexPath = ImageStore.getIndexPath(filePath);
+        FileSystem fs = filePath.getFileSystem(this.conf);
+
+        fs.delete(sortedPath, false);
+        fs.delete(indexPath, true);
+
+        SequenceFile.Sorter sorter = new SequenceFile.Sorter(fs, Text.class, LongWritable.class, this.conf);
+        sorter.sort(new Path[] { unsortedPath }, sortedPath, true);
+
+        SequenceFile.Reader reader = new SequenceFile.Reader(this.conf, SequenceFile.Reader.file(sortedPath));
+        MapFile.Writer writer = new MapFile.Writer(
+                this.conf,
+                indexPath,
+                MapFile.Writer.keyClass(Text.class),
+                SequenceFile.Writer.valueClass(LongWritable.class));
+
+        try
+        {
+            while (reader.next(this.indexName, this.indexOffset))
+            {
+                writer.append(this.indexName, this.indexOffset);
+            }
+        }
+        finally
+        {
+            writer.close();
+            reader.close();
+        }
+
+        fs.delete(sortedPath, false);
+    }
+
+    private Path unsortedIndexPath(Path filePath)
+    {
+        return ImageStore.getIndexPath(filePath).suffix(".unsorted");
+    }
 }
@@ -0,0 +1,326 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageDecoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageStore provide random access by image name to an indexed image sequence file, that is a file
+ * written by ImageSequenceFileWriter with setIndexed(true).
+ *
+ * The index is a MapFile "_<file name>.index" next to the sequence file that maps each name to the
+ * offset of its record, so a lookup is a binary search in the in memory MapFile index followed by a
+ * single seek in the index and a single seek in the sequence file. The input can also be a folder of
+ * indexed sequence files, such as the output of a sharded or rolling writer. For a rolling output, the
+ * parts are taken from its manifest and a part is only searched if the name is within its key range.
+ */
+public class ImageStore
+{
+    private Configuration conf = null;
+    private List<Part> parts = new ArrayList<Part>();
+    private BytesWritable value = new BytesWritable();
+    private Text indexName = new Text();
+    private LongWritable indexOffset = new LongWritable();
+    private MetadataParser parser = new MetadataParser();
+    private ImageDecoder decoder = new ImageDecoder();
+    private ImageMetadata metadata = null;
+    private Writable key = null;
+    private IplImage image = null;
+    private String name;
+    private String ext;
+
+    public String name()
+    {
+        return this.name;
+    }
+
+    public String originalExt()
+    {
+        return this.ext;
+    }
+
+    public IplImage image()
+    {
+        return this.image;
+    }
+
+    public ImageMetadata metadata()
+    {
+        return this.metadata;
+    }
+
+    public ImageStore(Configuration conf)
+    {
+        if (conf == null)
+        {
+            throw new IllegalArgumentException("conf can't be null");
+        }
+
+        this.conf = conf;
+    }
+
+    // Path of the index of the given image sequence file, the '_' prefix hide it from job inputs.
+    public static Path getIndexPath(Path dataPath)
+    {
+        return new Path(dataPath.getParent(), "_" + dataPath.getName() + ".index");
+    }
+
+    public void open(String inputPath) throws IOException
+    {
+        close();
+
+        Path path = new Path(inputPath);
+        FileSystem fs = path.getFileSystem(this.conf);
+
+        if (fs.getFileStatus(path).isDirectory() && ImageManifest.exists(fs, path))
+        {
+            for (ImageManifest.Part range : ImageManifest.read(fs, path).parts())
+            {
+                Part part = openPart(fs, new Path(path, range.getName()));
+                part.range = range;
+
+                this.parts.add(part);
+            }
+        }
+        else if (fs.getFileStatus(path).isDirectory())
+        {
+            FileStatus[] files = fs.listStatus(path);
+            Arrays.sort(files);
+
+            for (FileStatus file : files)
+            {
+                String name = file.getPath().getName();
+                if (file.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                {
+                    this.parts.add(openPart(fs, file.getPath()));
+                }
+            }
+        }
+        else
+        {
+            this.parts.add(openPart(fs, path));
+        }
+    }
+
+    // Look up an image by name and decode it, return false if there is no such image.
+    public boolean get(String name) throws Exception
+    {
+        if (!find(name))
+        {
+            return false;
+        }
+
+        this.name = this.metadata.get("name");
+        this.ext = this.metadata.get("ext");
+        this.image = this.decoder.decode(this.metadata, this.value);
+
+        return true;
+    }
+
+    // Look up an image by name without decoding it, return null if there is no such image.
+    public ImageRecord getRecord(String name) throws IOException
+    {
+        if (!find(name))
+        {
+            return null;
+        }
+
+        return copyRecord();
+    }
+
+    // Look up a batch of images, the records are read in file order so that all the seeks are forward.
+    // Names that are not found are not in the returned map, which is ordered by position in the store.
+    public Map<String, ImageRecord> getAll(Collection<String> names) throws IOException
+    {
+        checkOpen();
+
+        List<Location> locations = new ArrayList<Location>();
+        for (String name : new LinkedHashSet<String>(names))
+        {
+            this.indexName.set(name);
+            for (int i = 0; i < this.parts.size(); ++i)
+            {
+                Part part = this.parts.get(i);
+                if (part.mayContain(name) && (part.index.get(this.indexName, this.indexOffset) != null))
+                {
+                    locations.add(new Location(name, i, this.indexOffset.get()));
+                    break;
+                }
+            }
+        }
+
+        Collections.sort(locations, new Comparator<Location>()
+        {
+            @Override
+            public int compare(Location location1, Location location2)
+            {
+                if (location1.part != location2.part)
+                {
+                    return location1.part < location2.part ? -1 : 1;
+                }
+
+                return Long.compare(location1.offset, location2.offset);
+            }
+        });
+
+        Map<String, ImageRecord> records = new LinkedHashMap<String, ImageRecord>();
+        for (Location location : locations)
+        {
+            if (read(this.parts.get(location.part), location.offset, location.name))
+            {
+                records.put(location.name, copyRecord());
+            }
+        }
+
+        return records;
+    }
+
+    public void close() throws IOException
+    {
+        this.decoder.release();
+        this.image = null;
+
+        for (Part part : this.parts)
+        {
+            part.index.close();
+            part.reader.close();
+        }
+
+        this.parts.clear();
+        this.metadata = null;
+        this.key = null;
+    }
+
+    private Part openPart(FileSystem fs, Path dataPath) throws IOException
+    {
+        Path indexPath = getIndexPath(dataPath);
+        if (!fs.exists(indexPath))
+        {
+            throw new IOException("No index found for " + dataPath + ", the image sequence file must be written with an index.");
+        }
+
+        Part part = new Part();
+        part.reader = new SequenceFile.Reader(this.conf, SequenceFile.Reader.file(dataPath));
+        part.index = new MapFile.Reader(indexPath, this.conf);
+        part.key = (Writable)ReflectionUtils.newInstance(part.reader.getKeyClass(), this.conf);
+
+        return part;
+    }
+
+    private boolean find(String name) throws IOException
+    {
+        checkOpen();
+
+        this.indexName.set(name);
+        for (Part part : this.parts)
+        {
+            if (part.mayContain(name) && (part.index.get(this.indexName, this.indexOffset) != null))
+            {
+                return read(part, this.indexOffset.get(), name);
+            }
+        }
+
+        return false;
+    }
+
+    // Read the record at the given offset and check that it is the expected one. In a block compressed
+    // file the offset is the start of the block, so the block is scanned until the name is found.
+    private boolean read(Part part, long offset, String name) throws IOException
+    {
+        boolean scan = part.reader.isBlockCompressed();
+        boolean first = true;
+
+        part.reader.seek(offset);
+        while (part.reader.next(part.key, this.value))
+        {
+            if (!first && part.reader.syncSeen())
+            {
+                break;
+            }
+
+            first = false;
+
+            ImageMetadata metadata = ImageHelper.getMetadata(part.key, this.parser);
+            if (name.equals(metadata.get("name")))
+            {
+                this.key = part.key;
+                this.metadata = metadata;
+                return true;
+            }
+
+            if (!scan)
+            {
+                break;
+            }
+        }
+
+        return false;
+    }
+
+    private ImageRecord copyRecord()
+    {
+        byte[] bytes = Arrays.copyOf(this.value.getBytes(), this.value.getLength());
+        return new ImageRecord(WritableUtils.clone(this.key, this.conf), new BytesWritable(bytes));
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (this.parts.isEmpty())
+        {
+            throw new IOException("Invalid State: open() must be called before reading.");
+        }
+    }
+
+    private static class Part
+    {
+        SequenceFile.Reader reader;
+        MapFile.Reader index;
+        Writable key;
+        ImageManifest.Part range;
+
+        boolean mayContain(String name)
+        {
+            return (this.range == null) || this.range.mayContain(name);
+        }
+    }
+
+    private static class Location
+    {
+        final String name;
+        final int part;
+        final long offset;
+
+        Location(String name, int part, long offset)
+        {
+            this.name = name;
+            this.part = part;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageWritable is a decoded image with the metadata of its record, it is the value that
+ * ImageInputFormat hands to the mappers.
+ *
+ * The image belongs to the record reader and is only valid until the next record, once map() return
+ * it is released back to the reader pool. Code that need the image beyond map() must call retain()
+ * and then release() when done, the image is only given back once all holders released it.
+ *
+ * With MultithreadedImageMapper the record reader doesn't decode the records, the ImageWritable then
+ * only hold the undecoded value of the record, data(), until a map thread decode it into its own one.
+ *
+ * The metadata isn't serialized, it belongs to the record key. The image is serialized uncompressed.
+ */
+public class ImageWritable implements Writable
+{
+    private IplImage image = null;
+    private ImageMetadata metadata = null;
+    private ImagePool pool = null;
+    private BytesWritable data = null;
+    private boolean decoded = false;
+    private int refCount = 0;
+
+    public ImageWritable()
+    {}
+
+    // An image from the given pool, or decoded by OpenCV if the pool is null.
+    ImageWritable(IplImage image, ImageMetadata metadata, ImagePool pool)
+    {
+        this.image = image;
+        this.metadata = metadata;
+        this.pool = pool;
+        this.decoded = (pool == null);
+        this.refCount = 1;
+    }
+
+    // The undecoded value of a record, which belongs to the record reader.
+    ImageWritable(BytesWritable data, ImageMetadata metadata)
+    {
+        this.data = data;
+        this.metadata = metadata;
+        this.refCount = 1;
+    }
+
+    // Null if the record isn't decoded yet.
+    public IplImage image()
+    {
+        return this.image;
+    }
+
+    // The undecoded value of the record, null once decoded.
+    public BytesWritable data()
+    {
+        return this.data;
+    }
+
+    public ImageMetadata metadata()
+    {
+        return this.metadata;
+    }
+
+    public synchronized void retain()
+    {
+        if (this.refCount <= 0)
+        {
+            throw new IllegalStateException("The image is already released.");
+        }
+
+        this.refCount++;
+    }
+
+    public synchronized void release()
+    {
+        if (this.refCount <= 0)
+        {
+            return;
+        }
+
+        if (--this.refCount == 0)
+        {
+            if (this.image == null)
+            {
+                // Undecoded, the data belongs to the reader.
+                this.data = null;
+            }
+            else if (this.pool != null)
+            {
+                this.pool.release(this.image);
+            }
+            else if (this.decoded)
+            {
+                cvReleaseImage(this.image);
+            }
+            else
+            {
+                this.image.release();
+            }
+
+            this.image = null;
+            this.metadata = null;
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(this.image.width());
+        out.writeInt(this.image.height());
+        out.writeInt(this.image.depth());
+        out.writeInt(this.image.nChannels());
+
+        byte[] data = new byte[this.image.imageSize()];
+        this.image.getByteBuffer().get(data);
+        out.write(data);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        while (this.refCount > 0)
+        {
+            release();
+        }
+
+        int width = in.readInt();
+        int height = in.readInt();
+        int depth = in.readInt();
+        int channelCount = in.readInt();
+
+        IplImage image = IplImage.create(width, height, depth, channelCount);
+        byte[] data = new byte[image.imageSize()];
+        in.readFully(data);
+
+        ByteBuffer buffer = image.getByteBuffer();
+        buffer.put(data);
+
+        this.image = image;
+        this.metadata = null;
+        this.pool = null;
+        this.data = null;
+        this.decoded = false;
+        this.refCount = 1;
+    }
+}
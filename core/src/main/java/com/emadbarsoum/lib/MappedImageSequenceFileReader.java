@@ -0,0 +1,537 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageDecoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * MappedImageSequenceFileReader read a local, uncompressed image sequence file by memory mapping it
+ * and parsing the records straight from the mapped memory, instead of going through LocalFileSystem,
+ * its checksums and the buffer copies of SequenceFile.Reader.
+ *
+ * The image of a raw record is a header over the mapped pixels, nothing is copied, hence it is read
+ * only: writing to it crash the process. With setZeroCopy(false), the pixels are copied into a reusable
+ * image instead. Compressed images are decoded by OpenCV from the mapped bytes, and rawz images are
+ * decompressed into a reusable image. image(), metadata() and value() are only valid until the next
+ * call to next().
+ *
+ * The .crc file written by LocalFileSystem isn't checked, unless setVerifyChecksum(true) is called, in
+ * which case the whole file is checked when it is opened. Use isSupported() to check if a file can be
+ * read this way; compressed sequence files can't.
+ */
+public class MappedImageSequenceFileReader
+{
+    // Files bigger than this are mapped in windows of this size, remapped as needed.
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int SYNC_SIZE = 16;
+    private static final byte[] MAGIC = {'S', 'E', 'Q', 6};
+
+    private Configuration conf = null;
+    private boolean verifyChecksum = false;
+    private boolean decodeCompressed = true;
+    private boolean zeroCopy = true;
+
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    private long fileLength;
+    private MappedByteBuffer window = null;
+    private long windowStart;
+    private long position;
+    private byte[] sync = new byte[SYNC_SIZE];
+    private byte[] syncCheck = new byte[SYNC_SIZE];
+
+    private Writable key = null;
+    private byte[] keyBytes = new byte[256];
+    private DataInputBuffer keyInput = new DataInputBuffer();
+    private ByteBuffer value = null;
+    private BytesWritable scratch = new BytesWritable();
+    private ImageMetadata metadata = null;
+    private MetadataParser parser = new MetadataParser();
+    private ImageDecoder decoder = new ImageDecoder();
+    private IplImage header = null;
+    private IplImage copy = null;
+    private IplImage decoded = null;
+    private IplImage image = null;
+    private String name;
+    private String ext;
+
+    public MappedImageSequenceFileReader(Configuration conf)
+    {
+        if (conf == null)
+        {
+            throw new IllegalArgumentException("conf can't be null");
+        }
+
+        this.conf = conf;
+    }
+
+    public boolean isVerifyChecksum()
+    {
+        return this.verifyChecksum;
+    }
+
+    // Check the file against its .crc file when it is opened.
+    public void setVerifyChecksum(boolean verifyChecksum)
+    {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    public boolean isDecodeCompressed()
+    {
+        return this.decodeCompressed;
+    }
+
+    // If false, compressed images are not decoded and image() is null for them, which is useful
+    // for a caller that only need the compressed bytes.
+    public void setDecodeCompressed(boolean decodeCompressed)
+    {
+        this.decodeCompressed = decodeCompressed;
+    }
+
+    public boolean isZeroCopy()
+    {
+        return this.zeroCopy;
+    }
+
+    // If true, the image of a raw record is a read only view of the mapped file, otherwise it is a copy
+    // that can be modified.
+    public void setZeroCopy(boolean zeroCopy)
+    {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public String name()
+    {
+        return this.name;
+    }
+
+    public String originalExt()
+    {
+        return this.ext;
+    }
+
+    // The image of the current record, null if it can't be decoded.
+    public IplImage image()
+    {
+        return this.image;
+    }
+
+    public ImageMetadata metadata()
+    {
+        return this.metadata;
+    }
+
+    // The record value, compressed or raw image data, as a read only view of the mapped file.
+    public ByteBuffer value()
+    {
+        return this.value;
+    }
+
+    // Return true if the path is an uncompressed image sequence file on the local file system.
+    public static boolean isSupported(Configuration conf, Path path) throws IOException
+    {
+        FileSystem fs = path.getFileSystem(conf);
+        if (!"file".equals(fs.getUri().getScheme()))
+        {
+            return false;
+        }
+
+        File localFile = new File(fs.makeQualified(path).toUri().getPath());
+        if (!localFile.isFile())
+        {
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(localFile));
+        try
+        {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+            {
+                return false;
+            }
+
+            readString(in);
+            String valueClass = readString(in);
+            boolean compressed = in.readBoolean();
+
+            return !compressed && valueClass.equals(BytesWritable.class.getName());
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public void open(String inputPath) throws IOException
+    {
+        close();
+
+        Path path = new Path(inputPath);
+        FileSystem fs = path.getFileSystem(this.conf);
+        File localFile = new File(fs.makeQualified(path).toUri().getPath());
+
+        this.file = new RandomAccessFile(localFile, "r");
+        this.channel = this.file.getChannel();
+        this.fileLength = this.channel.size();
+
+        if (this.verifyChecksum)
+        {
+            verifyChecksum(localFile);
+        }
+
+        readHeader();
+    }
+
+    public boolean next() throws Exception
+    {
+        if (this.channel == null)
+        {
+            throw new Exception("Invalid State: open() must be called before next().");
+        }
+
+        releaseImage();
+
+        if (this.position + 4 > this.fileLength)
+        {
+            return false;
+        }
+
+        map(this.position, 4);
+        int recordLength = this.window.getInt((int)(this.position - this.windowStart));
+        if (recordLength == -1)
+        {
+            // Sync marker in front of the record.
+            map(this.position, 4 + SYNC_SIZE + 4);
+            getBytes(this.position + 4, this.syncCheck);
+            if (!Arrays.equals(this.sync, this.syncCheck))
+            {
+                throw new IOException("File is corrupt, invalid sync marker at " + this.position);
+            }
+
+            this.position += 4 + SYNC_SIZE;
+            recordLength = this.window.getInt((int)(this.position - this.windowStart));
+        }
+
+        map(this.position, 8L + recordLength);
+        int offset = (int)(this.position - this.windowStart);
+        int keyLength = this.window.getInt(offset + 4);
+
+        // Keys are small, so they are copied and deserialized as usual.
+        if (this.keyBytes.length < keyLength)
+        {
+            this.keyBytes = new byte[keyLength];
+        }
+
+        ByteBuffer record = this.window.duplicate();
+        record.position(offset + 8);
+        record.get(this.keyBytes, 0, keyLength);
+        this.keyInput.reset(this.keyBytes, keyLength);
+        this.key.readFields(this.keyInput);
+
+        // The BytesWritable value is its length followed by the data.
+        int valueOffset = offset + 8 + keyLength;
+        int valueLength = this.window.getInt(valueOffset);
+        record.limit(valueOffset + 4 + valueLength);
+        record.position(valueOffset + 4);
+        this.value = record.slice();
+
+        this.position += 8L + recordLength;
+
+        this.metadata = ImageHelper.getMetadata(this.key, this.parser);
+        this.name = this.metadata.get("name");
+        this.ext = this.metadata.get("ext");
+
+        ByteBuffer data = this.value.duplicate();
+        if (ImageHelper.isRaw(this.metadata) && this.zeroCopy)
+        {
+            this.image = wrapRaw(data, valueLength);
+        }
+        else if (ImageHelper.isRaw(this.metadata))
+        {
+            this.image = copyRaw(data);
+        }
+        else if (ImageHelper.isRawz(this.metadata))
+        {
+            // The inflater only read from an array.
+            this.scratch.setSize(valueLength);
+            data.get(this.scratch.getBytes(), 0, valueLength);
+            this.image = this.decoder.decode(this.metadata, this.scratch);
+        }
+        else if (this.decodeCompressed)
+        {
+            this.decoded = cvDecodeImage(cvMat(1, valueLength, CV_8UC1, new BytePointer(data)));
+            this.image = this.decoded;
+        }
+
+        return true;
+    }
+
+    public void close() throws IOException
+    {
+        releaseImage();
+        this.decoder.release();
+
+        if (this.header != null)
+        {
+            cvReleaseImageHeader(this.header);
+            this.header = null;
+        }
+
+        if (this.copy != null)
+        {
+            this.copy.release();
+            this.copy = null;
+        }
+
+        this.window = null;
+        this.value = null;
+
+        if (this.file != null)
+        {
+            this.file.close();
+            this.file = null;
+            this.channel = null;
+        }
+    }
+
+    // A single copy of the mapped pixels into a reusable image.
+    private IplImage copyRaw(ByteBuffer data)
+    {
+        int width = this.metadata.getAsInt("width");
+        int height = this.metadata.getAsInt("height");
+        int channelCount = this.metadata.getAsInt("channel_count");
+        int depth = this.metadata.getAsInt("depth");
+
+        if ((this.copy == null)                   ||
+            (this.copy.width() != width)          ||
+            (this.copy.height() != height)        ||
+            (this.copy.depth() != depth)          ||
+            (this.copy.nChannels() != channelCount))
+        {
+            if (this.copy != null)
+            {
+                this.copy.release();
+            }
+
+            this.copy = IplImage.create(width, height, depth, channelCount);
+        }
+
+        ImageHelper.copyRawBytes(data, this.copy);
+        return this.copy;
+    }
+
+    // A header over the mapped pixels, either padded to widthStep or tightly packed rows.
+    private IplImage wrapRaw(ByteBuffer data, int length)
+    {
+        int width = this.metadata.getAsInt("width");
+        int height = this.metadata.getAsInt("height");
+        int channelCount = this.metadata.getAsInt("channel_count");
+        int depth = this.metadata.getAsInt("depth");
+
+        if ((this.header == null)                   ||
+            (this.header.width() != width)          ||
+            (this.header.height() != height)        ||
+            (this.header.depth() != depth)          ||
+            (this.header.nChannels() != channelCount))
+        {
+            if (this.header != null)
+            {
+                cvReleaseImageHeader(this.header);
+            }
+
+            this.header = cvCreateImageHeader(cvSize(width, height), depth, channelCount);
+        }
+
+        int rowSize = width * channelCount * ((depth & 255) / 8);
+        int widthStep;
+        if (length == this.header.imageSize())
+        {
+            widthStep = this.header.widthStep();
+        }
+        else if (length == rowSize * height)
+        {
+            widthStep = rowSize;
+        }
+        else
+        {
+            throw new IllegalArgumentException("The raw image data is " + length + " bytes, expected " +
+                this.header.imageSize() + " or " + (rowSize * height) + " bytes.");
+        }
+
+        cvSetData(this.header, new BytePointer(data), widthStep);
+        return this.header;
+    }
+
+    // Make sure the window cover [start, start + length).
+    private void map(long start, long length) throws IOException
+    {
+        if (start + length > this.fileLength)
+        {
+            throw new IOException("File is truncated, record at " + start + " goes past the end of the file.");
+        }
+
+        if ((this.window != null) && (start >= this.windowStart) && (start + length <= this.windowStart + this.window.capacity()))
+        {
+            return;
+        }
+
+        long size = Math.min(this.fileLength - start, Math.max(WINDOW_SIZE, length));
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Record at " + start + " is too large to be mapped.");
+        }
+
+        this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        this.windowStart = start;
+    }
+
+    private void getBytes(long start, byte[] bytes)
+    {
+        ByteBuffer buffer = this.window.duplicate();
+        buffer.position((int)(start - this.windowStart));
+        buffer.get(bytes);
+    }
+
+    // Parse the SequenceFile header and position the reader on the first record.
+    private void readHeader() throws IOException
+    {
+        // The header is small, read it through a stream at the start of the file.
+        this.channel.position(0);
+        DataInputStream in = new DataInputStream(Channels.newInputStream(this.channel));
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+        {
+            throw new IOException("Not a version 6 sequence file.");
+        }
+
+        String keyClass = readString(in);
+        String valueClass = readString(in);
+        boolean compressed = in.readBoolean();
+        in.readBoolean();
+
+        if (compressed || !valueClass.equals(BytesWritable.class.getName()))
+        {
+            throw new IOException("Only uncompressed image sequence files can be memory mapped.");
+        }
+
+        // Metadata, not used.
+        int count = in.readInt();
+        for (int i = 0; i < 2 * count; ++i)
+        {
+            readString(in);
+        }
+
+        in.readFully(this.sync);
+        this.position = this.channel.position();
+
+        try
+        {
+            this.key = (Writable)ReflectionUtils.newInstance(this.conf.getClassByName(keyClass), this.conf);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Unknown key class: " + keyClass, e);
+        }
+    }
+
+    // Check the CRC32 of each chunk against the .crc file of LocalFileSystem, if there is one.
+    private void verifyChecksum(File localFile) throws IOException
+    {
+        File crcFile = new File(localFile.getParentFile(), "." + localFile.getName() + ".crc");
+        if (!crcFile.exists())
+        {
+            return;
+        }
+
+        DataInputStream sums = new DataInputStream(new BufferedInputStream(new FileInputStream(crcFile)));
+        try
+        {
+            byte[] magic = new byte[4];
+            sums.readFully(magic);
+            if (!Arrays.equals(magic, new byte[]{'c', 'r', 'c', 0}))
+            {
+                throw new IOException("Invalid checksum file: " + crcFile);
+            }
+
+            int bytesPerSum = sums.readInt();
+            byte[] chunk = new byte[bytesPerSum];
+            CRC32 crc = new CRC32();
+            for (long start = 0; start < this.fileLength; start += bytesPerSum)
+            {
+                int length = (int)Math.min(bytesPerSum, this.fileLength - start);
+                map(start, length);
+
+                ByteBuffer buffer = this.window.duplicate();
+                buffer.position((int)(start - this.windowStart));
+                buffer.get(chunk, 0, length);
+
+                crc.reset();
+                crc.update(chunk, 0, length);
+                if ((int)crc.getValue() != sums.readInt())
+                {
+                    throw new ChecksumException("Checksum error: " + localFile + " at " + start, start);
+                }
+            }
+        }
+        finally
+        {
+            sums.close();
+        }
+    }
+
+    // Same format as Text.readString(), a vint length followed by UTF-8 bytes.
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[WritableUtils.readVInt(in)];
+        in.readFully(bytes);
+
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    private void releaseImage()
+    {
+        if (this.decoded != null)
+        {
+            cvReleaseImage(this.decoded);
+            this.decoded = null;
+        }
+
+        this.image = null;
+    }
+}
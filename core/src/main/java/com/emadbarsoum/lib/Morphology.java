@@ -0,0 +1,419 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import org.apache.hadoop.conf.Configuration;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Morphology apply a morphological operation (erode, dilate, open, close, gradient, tophat or blackhat)
+ * with a rect, cross or ellipse structuring element of a given size, repeated a number of times.
+ *
+ * Large rectangles on 8 bit images use the van Herk/Gil-Werman algorithm: the rectangle is separated
+ * into a row and a column, and each line is cut in blocks of the kernel size, whose prefix and suffix
+ * min or max give the min or max of any window with 3 comparisons per pixel, whatever the kernel size.
+ * As repeating a rectangle is the same as a larger rectangle, the iterations are folded into the size.
+ * Everything else is done by OpenCV. Pixels outside the image are ignored, as OpenCV does.
+ *
+ * The scratch buffers are kept across images, this class isn't thread safe.
+ */
+public class Morphology
+{
+    public static final String OPERATION = "hvision.morph.op";
+    public static final String SHAPE = "hvision.morph.shape";
+    public static final String SIZE = "hvision.morph.size";
+    public static final String ITERATIONS = "hvision.morph.iterations";
+
+    public static final String[] OPERATIONS = {"erode", "dilate", "open", "close", "gradient", "tophat", "blackhat"};
+    public static final String[] SHAPES = {"rect", "cross", "ellipse"};
+
+    // Below this size OpenCV's vectorized row and column filters are faster.
+    private static final int VAN_HERK_MIN_SIZE = 9;
+
+    private String operation;
+    private String shape;
+    private int size;
+    private int iterations;
+
+    private int[] prefix = new int[0];
+    private int[] suffix = new int[0];
+    private int[] nextSuffix = new int[0];
+
+    // The pixels without the widthStep padding, and a copy of them for gradient, tophat and blackhat.
+    private byte[] data = new byte[0];
+    private byte[] other = new byte[0];
+
+    public Morphology(String operation, String shape, int size, int iterations)
+    {
+        this.operation = check(operation, OPERATIONS, "operation");
+        this.shape = check(shape, SHAPES, "shape");
+
+        if ((size < 1) || (size % 2 == 0))
+        {
+            throw new IllegalArgumentException("The kernel size must be an odd positive number.");
+        }
+
+        if (iterations < 1)
+        {
+            throw new IllegalArgumentException("The number of iterations must be positive.");
+        }
+
+        this.size = size;
+        this.iterations = iterations;
+    }
+
+    // The morphology set by setOptions() for the job, with the given default operation.
+    public static Morphology create(Configuration conf, String defaultOperation)
+    {
+        return new Morphology(
+            conf.get(OPERATION, defaultOperation),
+            conf.get(SHAPE, "rect"),
+            conf.getInt(SIZE, 3),
+            conf.getInt(ITERATIONS, 1));
+    }
+
+    // Set the options of a job from -shape, -size and -iterations, if given, and check them.
+    public static void setOptions(Configuration conf, CommandParser parser, String defaultOperation)
+    {
+        if (parser.has("shape"))
+        {
+            conf.set(SHAPE, parser.get("shape"));
+        }
+
+        if (parser.has("size"))
+        {
+            conf.setInt(SIZE, parser.getAsInt("size"));
+        }
+
+        if (parser.has("iterations"))
+        {
+            conf.setInt(ITERATIONS, parser.getAsInt("iterations"));
+        }
+
+        create(conf, defaultOperation);
+    }
+
+    public String operation()
+    {
+        return this.operation;
+    }
+
+    public String shape()
+    {
+        return this.shape;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public int iterations()
+    {
+        return this.iterations;
+    }
+
+    // Apply the operation to src into dst, which must have the same size and type, and can be src.
+    public void apply(IplImage src, IplImage dst)
+    {
+        // The size of the single rectangle equivalent to all the iterations.
+        int rectSize = this.iterations * (this.size - 1) + 1;
+
+        if (this.shape.equals("rect") && (rectSize >= VAN_HERK_MIN_SIZE) && (src.depth() == IPL_DEPTH_8U))
+        {
+            applyRect(src, dst, rectSize);
+        }
+        else
+        {
+            applyOpenCV(src, dst);
+        }
+    }
+
+    private void applyOpenCV(IplImage src, IplImage dst)
+    {
+        int shapeCode = this.shape.equals("rect") ? CV_SHAPE_RECT : (this.shape.equals("cross") ? CV_SHAPE_CROSS : CV_SHAPE_ELLIPSE);
+        IplConvKernel element = cvCreateStructuringElementEx(this.size, this.size, this.size / 2, this.size / 2, shapeCode, (int[])null);
+
+        try
+        {
+            switch (this.operation)
+            {
+                case "erode":
+                    cvErode(src, dst, element, this.iterations);
+                    break;
+                case "dilate":
+                    cvDilate(src, dst, element, this.iterations);
+                    break;
+                case "open":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_OPEN, this.iterations);
+                    break;
+                case "close":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_CLOSE, this.iterations);
+                    break;
+                case "gradient":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_GRADIENT, this.iterations);
+                    break;
+                case "tophat":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_TOPHAT, this.iterations);
+                    break;
+                default:
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_BLACKHAT, this.iterations);
+                    break;
+            }
+        }
+        finally
+        {
+            cvReleaseStructuringElement(element);
+        }
+    }
+
+    private void applyRect(IplImage src, IplImage dst, int rectSize)
+    {
+        int width = src.width();
+        int height = src.height();
+        int channelCount = src.nChannels();
+        int rowSize = width * channelCount;
+        int length = rowSize * height;
+
+        if (this.data.length < length)
+        {
+            this.data = new byte[length];
+        }
+
+        byte[] data = this.data;
+        ByteBuffer buffer = src.getByteBuffer();
+        for (int y = 0; y < height; ++y)
+        {
+            buffer.position(y * src.widthStep());
+            buffer.get(data, y * rowSize, rowSize);
+        }
+
+        byte[] other;
+        switch (this.operation)
+        {
+            case "erode":
+                rect(data, width, height, channelCount, rectSize, false);
+                break;
+            case "dilate":
+                rect(data, width, height, channelCount, rectSize, true);
+                break;
+            case "open":
+                rect(data, width, height, channelCount, rectSize, false);
+                rect(data, width, height, channelCount, rectSize, true);
+                break;
+            case "close":
+                rect(data, width, height, channelCount, rectSize, true);
+                rect(data, width, height, channelCount, rectSize, false);
+                break;
+            case "gradient":
+                other = copy(data, length);
+                rect(data, width, height, channelCount, rectSize, true);
+                rect(other, width, height, channelCount, rectSize, false);
+                subtract(data, other, data, length);
+                break;
+            case "tophat":
+                other = copy(data, length);
+                rect(other, width, height, channelCount, rectSize, false);
+                rect(other, width, height, channelCount, rectSize, true);
+                subtract(data, other, data, length);
+                break;
+            default:
+                other = copy(data, length);
+                rect(other, width, height, channelCount, rectSize, true);
+                rect(other, width, height, channelCount, rectSize, false);
+                subtract(other, data, data, length);
+                break;
+        }
+
+        buffer = dst.getByteBuffer();
+        for (int y = 0; y < height; ++y)
+        {
+            buffer.position(y * dst.widthStep());
+            buffer.put(data, y * rowSize, rowSize);
+        }
+    }
+
+    // Erode (min) or dilate (max) the pixels in place with a size x size rectangle, a row pass then a column pass.
+    private void rect(byte[] data, int width, int height, int channelCount, int size, boolean dilate)
+    {
+        rows(data, width, height, channelCount, size, dilate);
+        columns(data, width * channelCount, height, size, dilate);
+    }
+
+    // The row pass, each channel of each row is a line.
+    private void rows(byte[] data, int width, int height, int channelCount, int size, boolean dilate)
+    {
+        int radius = size / 2;
+        int identity = dilate ? 0 : 255;
+
+        // The line padded by radius on both sides, then up to a whole number of blocks.
+        int length = ((width + 2 * radius + size - 1) / size) * size;
+        ensureScratch(length);
+
+        int[] g = this.prefix;
+        int[] h = this.suffix;
+
+        for (int y = 0; y < height; ++y)
+        {
+            for (int c = 0; c < channelCount; ++c)
+            {
+                int start = y * width * channelCount + c;
+
+                for (int i = 0; i < length; ++i)
+                {
+                    int x = i - radius;
+                    int value = ((x >= 0) && (x < width)) ? (data[start + x * channelCount] & 0xFF) : identity;
+
+                    g[i] = ((i % size) == 0) ? value : (dilate ? Math.max(g[i - 1], value) : Math.min(g[i - 1], value));
+                    h[i] = value;
+                }
+
+                for (int i = length - 2; i >= 0; --i)
+                {
+                    if ((i % size) != (size - 1))
+                    {
+                        h[i] = dilate ? Math.max(h[i + 1], h[i]) : Math.min(h[i + 1], h[i]);
+                    }
+                }
+
+                // The window of x is [x, x + size - 1] in the padded line.
+                for (int x = 0; x < width; ++x)
+                {
+                    int value = dilate ? Math.max(h[x], g[x + size - 1]) : Math.min(h[x], g[x + size - 1]);
+                    data[start + x * channelCount] = (byte)value;
+                }
+            }
+        }
+    }
+
+    // The column pass, processed a block of rows at a time so that memory is accessed row by row. The
+    // output rows of a block are written once the next block is read, as they overlap its input rows.
+    private void columns(byte[] data, int rowSize, int height, int size, boolean dilate)
+    {
+        ensureScratch(size * rowSize);
+
+        // Suffix of block 0.
+        block(data, rowSize, height, size, 0, this.prefix, this.suffix, dilate);
+
+        for (int block = 0; block * size < height; ++block)
+        {
+            // Prefix and suffix of the next block.
+            block(data, rowSize, height, size, block + 1, this.prefix, this.nextSuffix, dilate);
+
+            for (int i = 0; i < size; ++i)
+            {
+                int y = block * size + i;
+                if (y >= height)
+                {
+                    break;
+                }
+
+                // The window of y is [y, y + size - 1] in padded rows, which end in the next block
+                // unless it is exactly the current block.
+                int out = y * rowSize;
+                int hOffset = i * rowSize;
+                if (i == 0)
+                {
+                    for (int j = 0; j < rowSize; ++j)
+                    {
+                        data[out + j] = (byte)this.suffix[j];
+                    }
+                }
+                else
+                {
+                    int gOffset = (i - 1) * rowSize;
+                    for (int j = 0; j < rowSize; ++j)
+                    {
+                        int value = dilate ?
+                            Math.max(this.suffix[hOffset + j], this.prefix[gOffset + j]) :
+                            Math.min(this.suffix[hOffset + j], this.prefix[gOffset + j]);
+
+                        data[out + j] = (byte)value;
+                    }
+                }
+            }
+
+            int[] suffix = this.suffix;
+            this.suffix = this.nextSuffix;
+            this.nextSuffix = suffix;
+        }
+    }
+
+    // The prefix and suffix min or max of the size rows of a block of padded rows.
+    private static void block(byte[] data, int rowSize, int height, int size, int block, int[] g, int[] h, boolean dilate)
+    {
+        int radius = size / 2;
+        int identity = dilate ? 0 : 255;
+
+        for (int i = 0; i < size; ++i)
+        {
+            int y = block * size + i - radius;
+            boolean inside = (y >= 0) && (y < height);
+            int row = y * rowSize;
+            int offset = i * rowSize;
+
+            for (int j = 0; j < rowSize; ++j)
+            {
+                int value = inside ? (data[row + j] & 0xFF) : identity;
+                h[offset + j] = value;
+                g[offset + j] = (i == 0) ? value : (dilate ? Math.max(g[offset - rowSize + j], value) : Math.min(g[offset - rowSize + j], value));
+            }
+        }
+
+        for (int i = size - 2; i >= 0; --i)
+        {
+            int offset = i * rowSize;
+            for (int j = 0; j < rowSize; ++j)
+            {
+                h[offset + j] = dilate ? Math.max(h[offset + rowSize + j], h[offset + j]) : Math.min(h[offset + rowSize + j], h[offset + j]);
+            }
+        }
+    }
+
+    // A copy of the first length pixels of data, in a buffer kept across images.
+    private byte[] copy(byte[] data, int length)
+    {
+        if (this.other.length < length)
+        {
+            this.other = new byte[length];
+        }
+
+        System.arraycopy(data, 0, this.other, 0, length);
+        return this.other;
+    }
+
+    // result = a - b over the first length pixels, saturated at 0.
+    private static void subtract(byte[] a, byte[] b, byte[] result, int length)
+    {
+        for (int i = 0; i < length; ++i)
+        {
+            result[i] = (byte)Math.max(0, (a[i] & 0xFF) - (b[i] & 0xFF));
+        }
+    }
+
+    private void ensureScratch(int length)
+    {
+        if (this.prefix.length < length)
+        {
+            this.prefix = new int[length];
+            this.suffix = new int[length];
+            this.nextSuffix = new int[length];
+        }
+    }
+
+    private static String check(String value, String[] values, String name)
+    {
+        for (String knownValue : values)
+        {
+            if (knownValue.equals(value))
+            {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown " + name + ": " + value);
+    }
+}
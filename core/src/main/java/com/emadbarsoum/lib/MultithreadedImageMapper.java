@@ -0,0 +1,346 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MultithreadedImageMapper run a mapper of images on several threads of the same map task, so a task
+ * with several cores doesn't leave all but one idle while a native operator runs.
+ *
+ * Each thread has its own instance of the mapper, with its own setup() and cleanup(), so the per task
+ * state of the mappers (image pool, detectors, similarity engines) is per thread and doesn't need to be
+ * thread safe. The task reader doesn't decode the records in this mode: under a lock, a thread only
+ * take the next record from it and copy its key and undecoded value, then decode the image outside the
+ * lock with its own decoder and image pool, so the JPEG decoding or rawz inflating of the threads run in
+ * parallel. Writes to the output and status updates go through the task context under the same lock.
+ *
+ * Use setMapper() to configure a job, with a single thread the mapper is run directly.
+ */
+public class MultithreadedImageMapper<KEYOUT, VALUEOUT> extends Mapper<Writable, ImageWritable, KEYOUT, VALUEOUT>
+{
+    public static final String THREADS = "hvision.map.threads";
+    public static final String MAPPER_CLASS = "hvision.map.class";
+
+    private Context outer = null;
+    private Class<? extends Mapper> mapperClass = null;
+    private volatile boolean failed = false;
+
+    // Set the mapper of the job, run on the given number of threads per task if it is more than one.
+    public static void setMapper(Job job, Class<? extends Mapper> mapperClass, int threadCount)
+    {
+        if (threadCount > 1)
+        {
+            job.setMapperClass(MultithreadedImageMapper.class);
+            job.getConfiguration().setClass(MAPPER_CLASS, mapperClass, Mapper.class);
+            job.getConfiguration().setInt(THREADS, threadCount);
+        }
+        else
+        {
+            job.setMapperClass(mapperClass);
+        }
+    }
+
+    // Same as above, with the number of threads given by -threads, one by default.
+    public static void setMapper(Job job, Class<? extends Mapper> mapperClass, CommandParser parser)
+    {
+        setMapper(job, mapperClass, parser.has("threads") ? parser.getAsInt("threads") : 1);
+    }
+
+    // Whether the job run its mapper with MultithreadedImageMapper, in which case the records are decoded
+    // by the map threads rather than by the record reader.
+    public static boolean isMultithreaded(Configuration conf)
+    {
+        return conf.getClass(MRJobConfig.MAP_CLASS_ATTR, null) == MultithreadedImageMapper.class;
+    }
+
+    // Same as setMapper() for the mappers that don't read images, which are run by Hadoop's MultithreadedMapper.
+    public static void setOtherMapper(Job job, Class<? extends Mapper> mapperClass, CommandParser parser)
+    {
+        int threadCount = parser.has("threads") ? parser.getAsInt("threads") : 1;
+        if (threadCount > 1)
+        {
+            job.setMapperClass(MultithreadedMapper.class);
+            MultithreadedMapper.setMapperClass(job, mapperClass);
+            MultithreadedMapper.setNumberOfThreads(job, threadCount);
+        }
+        else
+        {
+            job.setMapperClass(mapperClass);
+        }
+    }
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException
+    {
+        Configuration conf = context.getConfiguration();
+        this.outer = context;
+        this.mapperClass = conf.getClass(MAPPER_CLASS, null, Mapper.class);
+        if (this.mapperClass == null)
+        {
+            throw new IOException(MAPPER_CLASS + " isn't set.");
+        }
+
+        int threadCount = Math.max(1, conf.getInt(THREADS, 1));
+        List<MapRunner> runners = new ArrayList<MapRunner>();
+        for (int i = 0; i < threadCount; ++i)
+        {
+            MapRunner runner = new MapRunner(context);
+            runner.setName("image-mapper-" + i);
+            runners.add(runner);
+        }
+
+        for (MapRunner runner : runners)
+        {
+            runner.start();
+        }
+
+        Throwable error = null;
+        for (MapRunner runner : runners)
+        {
+            runner.join();
+            if ((error == null) && (runner.error != null))
+            {
+                error = runner.error;
+            }
+        }
+
+        if (error instanceof IOException)
+        {
+            throw (IOException)error;
+        }
+        else if (error instanceof InterruptedException)
+        {
+            throw (InterruptedException)error;
+        }
+        else if (error != null)
+        {
+            throw new IOException("Map thread failed.", error);
+        }
+    }
+
+    /**
+     * One thread with its own mapper, reading records from the task reader.
+     */
+    private class MapRunner extends Thread
+    {
+        private Mapper<Writable, ImageWritable, KEYOUT, VALUEOUT> mapper;
+        private Mapper<Writable, ImageWritable, KEYOUT, VALUEOUT>.Context subcontext;
+        private SubMapRecordReader reader;
+        private Throwable error = null;
+
+        @SuppressWarnings("unchecked")
+        public MapRunner(Context context) throws IOException, InterruptedException
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.mapper = (Mapper<Writable, ImageWritable, KEYOUT, VALUEOUT>)ReflectionUtils.newInstance(mapperClass, conf);
+            this.reader = new SubMapRecordReader();
+            this.reader.initialize(context.getInputSplit(), context);
+
+            MapContext<Writable, ImageWritable, KEYOUT, VALUEOUT> mapContext =
+                new MapContextImpl<Writable, ImageWritable, KEYOUT, VALUEOUT>(
+                    conf,
+                    context.getTaskAttemptID(),
+                    this.reader,
+                    new SubMapRecordWriter(),
+                    context.getOutputCommitter(),
+                    new SubMapStatusReporter(),
+                    context.getInputSplit());
+
+            this.subcontext = new WrappedMapper<Writable, ImageWritable, KEYOUT, VALUEOUT>().getMapContext(mapContext);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                this.mapper.run(this.subcontext);
+            }
+            catch (Throwable e)
+            {
+                // Stop the other threads at their next record.
+                failed = true;
+                this.error = e;
+            }
+            finally
+            {
+                this.reader.close();
+            }
+        }
+    }
+
+    /**
+     * Hand the records of the task reader to a thread, with its own key, and decode them on the thread.
+     */
+    private class SubMapRecordReader extends RecordReader<Writable, ImageWritable>
+    {
+        private Configuration conf = null;
+        private Writable key = null;
+        private BytesWritable bytes = new BytesWritable();
+        private MetadataParser parser = new MetadataParser();
+        private ImageRecordDecoder decoder = null;
+        private ImageWritable value = null;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context)
+        {
+            this.conf = context.getConfiguration();
+            this.decoder = new ImageRecordDecoder(context);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException
+        {
+            releaseValue();
+
+            while (true)
+            {
+                synchronized (outer)
+                {
+                    if (failed || !outer.nextKeyValue())
+                    {
+                        return false;
+                    }
+
+                    // The task reader reuse its key and value, so only a copy of their bytes is
+                    // taken under the lock.
+                    Writable outerKey = outer.getCurrentKey();
+                    if (this.key == null)
+                    {
+                        this.key = (Writable)ReflectionUtils.newInstance(outerKey.getClass(), this.conf);
+                    }
+
+                    this.key = ReflectionUtils.copy(this.conf, outerKey, this.key);
+                    this.bytes.set(outer.getCurrentValue().data());
+                }
+
+                this.value = this.decoder.decode(ImageHelper.getMetadata(this.key, this.parser), this.bytes);
+                if (this.value != null)
+                {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public Writable getCurrentKey()
+        {
+            return this.key;
+        }
+
+        @Override
+        public ImageWritable getCurrentValue()
+        {
+            return this.value;
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException
+        {
+            return outer.getProgress();
+        }
+
+        @Override
+        public void close()
+        {
+            releaseValue();
+
+            if (this.decoder != null)
+            {
+                this.decoder.close(outer);
+                this.decoder = null;
+            }
+        }
+
+        private void releaseValue()
+        {
+            if (this.value != null)
+            {
+                this.value.release();
+                this.value = null;
+            }
+        }
+    }
+
+    /**
+     * Write to the task output, one thread at a time.
+     */
+    private class SubMapRecordWriter extends RecordWriter<KEYOUT, VALUEOUT>
+    {
+        @Override
+        public void write(KEYOUT key, VALUEOUT value) throws IOException, InterruptedException
+        {
+            synchronized (outer)
+            {
+                outer.write(key, value);
+            }
+        }
+
+        @Override
+        public void close(TaskAttemptContext context)
+        {
+        }
+    }
+
+    /**
+     * Report counters and status through the task context.
+     */
+    private class SubMapStatusReporter extends StatusReporter
+    {
+        @Override
+        public Counter getCounter(Enum<?> name)
+        {
+            return outer.getCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name)
+        {
+            return outer.getCounter(group, name);
+        }
+
+        @Override
+        public void progress()
+        {
+            outer.progress();
+        }
+
+        @Override
+        public float getProgress()
+        {
+            return outer.getProgress();
+        }
+
+        @Override
+        public void setStatus(String status)
+        {
+            synchronized (outer)
+            {
+                outer.setStatus(status);
+            }
+        }
+    }
+}
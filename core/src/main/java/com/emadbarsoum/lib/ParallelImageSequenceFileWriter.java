@@ -0,0 +1,418 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParallelImageSequenceFileWriter is a pipelined version of ImageSequenceFileWriter, a pool of worker
+ * threads read and decode the images while a single writer thread append them to the sequence file.
+ *
+ * The number of images in flight is bounded by the queue size, so append() blocks when the workers or
+ * the writer fall behind and the memory stays flat regardless of the number of input images. In ordered
+ * mode the records are written in the same order as append() was called, otherwise they are written as
+ * soon as they are ready.
+ *
+ * In sharded mode, there is no writer thread. The output path is a folder and each worker append to its
+ * own sequence file "part-XXXXX" inside it, the order in that case is not preserved.
+ */
+public class ParallelImageSequenceFileWriter extends ImageSequenceFileWriter
+{
+    // Marks the end of the stream for the writer thread.
+    private static final Result END = new Result(-1, null, null);
+
+    private Configuration conf = null;
+    private boolean compressed = false;
+    private int threadCount;
+    private int queueSize;
+    private boolean ordered = false;
+    private boolean sharded = false;
+
+    private ExecutorService workers = null;
+    private Thread writerThread = null;
+    private Semaphore permits = null;
+    private BlockingQueue<Result> results = null;
+    private BlockingQueue<ImageSequenceFileWriter> shards = null;
+    private List<ImageSequenceFileWriter> shardList = null;
+    private long nextSequence = 0;
+    private volatile Exception failure = null;
+
+    public ParallelImageSequenceFileWriter(Configuration conf, boolean compressed, int threadCount)
+    {
+        super(conf, compressed);
+
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("threadCount must be greater than or equal to 1.");
+        }
+
+        this.conf = conf;
+        this.compressed = compressed;
+        this.threadCount = threadCount;
+        this.queueSize = 4 * threadCount;
+    }
+
+    public boolean isOrdered()
+    {
+        return this.ordered;
+    }
+
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+
+    public boolean isSharded()
+    {
+        return this.sharded;
+    }
+
+    public void setSharded(boolean sharded)
+    {
+        this.sharded = sharded;
+    }
+
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+
+    // Maximum number of images that are read but not written yet.
+    public void setQueueSize(int queueSize)
+    {
+        if (queueSize < 1)
+        {
+            throw new IllegalArgumentException("queueSize must be greater than or equal to 1.");
+        }
+
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void append(final File imageFile, final String additionMetadata) throws Exception
+    {
+        if (this.workers == null)
+        {
+            throw new Exception("Invalid State: create() must be called before append().");
+        }
+
+        if (skipCommitted(imageFile.getAbsolutePath()))
+        {
+            return;
+        }
+
+        submit(imageFile.getAbsolutePath(), new Callable<ImageRecord>()
+        {
+            @Override
+            public ImageRecord call() throws Exception
+            {
+                return createRecord(imageFile, additionMetadata);
+            }
+        });
+    }
+
+    @Override
+    public void append(final String fileName, final String path, final byte[] fileData, final String additionMetadata) throws Exception
+    {
+        if (this.workers == null)
+        {
+            throw new Exception("Invalid State: create() must be called before append().");
+        }
+
+        if (skipCommitted(path))
+        {
+            return;
+        }
+
+        submit(path, new Callable<ImageRecord>()
+        {
+            @Override
+            public ImageRecord call() throws Exception
+            {
+                return createRecord(fileName, path, fileData, additionMetadata);
+            }
+        });
+    }
+
+    // Wait for a free slot, then build the record on a worker thread.
+    private void submit(final String path, final Callable<ImageRecord> recordCreator) throws Exception
+    {
+        throwIfFailed();
+
+        this.permits.acquire();
+
+        final long sequence = this.nextSequence++;
+        this.workers.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                process(sequence, path, recordCreator);
+            }
+        });
+    }
+
+    @Override
+    public void create(String outputPath) throws IOException
+    {
+        close();
+
+        this.permits = new Semaphore(this.queueSize);
+        this.nextSequence = 0;
+        this.failure = null;
+
+        if (this.sharded)
+        {
+            if (isRolling())
+            {
+                throw new IOException("Rolling output isn't supported in sharded mode, each shard is already its own part.");
+            }
+
+            this.shards = new LinkedBlockingQueue<ImageSequenceFileWriter>();
+            this.shardList = new ArrayList<ImageSequenceFileWriter>();
+
+            for (int i = 0; i < this.threadCount; ++i)
+            {
+                ImageSequenceFileWriter shard = new ImageSequenceFileWriter(this.conf, this.compressed);
+                shard.setRawz(isRawz());
+                shard.setBinaryKey(isBinaryKey());
+                shard.setIndexed(isIndexed());
+                shard.setCompression(getCompressionType(), getCodec());
+                shard.setCompressionBlockSize(getCompressionBlockSize());
+                shard.setDeduplicator(getDeduplicator());
+                shard.create(new Path(outputPath, String.format("part-%05d", i)).toString());
+
+                this.shards.add(shard);
+                this.shardList.add(shard);
+            }
+        }
+        else
+        {
+            super.create(outputPath);
+
+            this.results = new ArrayBlockingQueue<Result>(this.queueSize + 1);
+            this.writerThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    write();
+                }
+            }, "ImageSequenceFileWriter");
+            this.writerThread.start();
+        }
+
+        this.workers = Executors.newFixedThreadPool(this.threadCount);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.workers == null)
+        {
+            super.close();
+            return;
+        }
+
+        try
+        {
+            this.workers.shutdown();
+            this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            if (this.writerThread != null)
+            {
+                this.results.put(END);
+                this.writerThread.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the pending images.", e);
+        }
+        finally
+        {
+            this.workers = null;
+            this.writerThread = null;
+            this.results = null;
+
+            if (this.shardList != null)
+            {
+                for (ImageSequenceFileWriter shard : this.shardList)
+                {
+                    shard.close();
+                }
+
+                this.shards = null;
+                this.shardList = null;
+            }
+
+            super.close();
+        }
+
+        if (this.failure != null)
+        {
+            throw new IOException("Failed to write one or more images.", this.failure);
+        }
+    }
+
+    // Worker side: read and decode the image, then either hand it to the writer thread or
+    // append it to a free shard.
+    private void process(long sequence, String path, Callable<ImageRecord> recordCreator)
+    {
+        ImageRecord record = null;
+        Exception error = null;
+
+        try
+        {
+            if (this.failure == null)
+            {
+                record = recordCreator.call();
+            }
+        }
+        catch (Exception e)
+        {
+            error = new Exception("Failed to read " + path, e);
+        }
+
+        if (this.sharded)
+        {
+            try
+            {
+                if ((error == null) && (record != null))
+                {
+                    ImageSequenceFileWriter shard = this.shards.take();
+                    try
+                    {
+                        shard.append(record);
+                    }
+                    finally
+                    {
+                        this.shards.put(shard);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                error = e;
+            }
+            finally
+            {
+                fail(error);
+                this.permits.release();
+            }
+        }
+        else
+        {
+            try
+            {
+                this.results.put(new Result(sequence, record, error));
+            }
+            catch (InterruptedException e)
+            {
+                fail(e);
+                this.permits.release();
+            }
+        }
+    }
+
+    // Writer thread: append the records in completion order, or in submission order if ordered is set.
+    private void write()
+    {
+        Map<Long, Result> pending = new HashMap<Long, Result>();
+        long expected = 0;
+
+        try
+        {
+            while (true)
+            {
+                Result result = this.results.take();
+                if (result == END)
+                {
+                    break;
+                }
+
+                if (!this.ordered)
+                {
+                    write(result);
+                    continue;
+                }
+
+                pending.put(result.sequence, result);
+                while ((result = pending.remove(expected)) != null)
+                {
+                    write(result);
+                    ++expected;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void write(Result result)
+    {
+        try
+        {
+            fail(result.error);
+            if ((this.failure == null) && (result.record != null))
+            {
+                super.append(result.record);
+            }
+        }
+        catch (Exception e)
+        {
+            fail(e);
+        }
+        finally
+        {
+            this.permits.release();
+        }
+    }
+
+    private synchronized void fail(Exception e)
+    {
+        if ((e != null) && (this.failure == null))
+        {
+            this.failure = e;
+        }
+    }
+
+    private void throwIfFailed() throws Exception
+    {
+        if (this.failure != null)
+        {
+            throw new Exception("Failed to write one or more images.", this.failure);
+        }
+    }
+
+    private static class Result
+    {
+        final long sequence;
+        final ImageRecord record;
+        final Exception error;
+
+        Result(long sequence, ImageRecord record, Exception error)
+        {
+            this.sequence = sequence;
+            this.record = record;
+            this.error = error;
+        }
+    }
+}
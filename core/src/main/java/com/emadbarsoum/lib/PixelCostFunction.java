@@ -0,0 +1,25 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageMetadata;
+
+/**
+ * PixelCostFunction is the default ImageCostFunction, the cost of an image is its number of pixels.
+ *
+ * For an image whose size can't be read, the cost is estimated from the size of its compressed data
+ * assuming a typical 10 pixels per byte.
+ */
+public class PixelCostFunction implements ImageCostFunction
+{
+    private static final double PIXELS_PER_BYTE = 10.0;
+
+    @Override
+    public double cost(ImageMetadata metadata, int width, int height, int length)
+    {
+        if ((width > 0) && (height > 0))
+        {
+            return (double)width * height;
+        }
+
+        return length * PIXELS_PER_BYTE;
+    }
+}
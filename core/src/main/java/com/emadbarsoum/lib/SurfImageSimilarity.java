@@ -138,6 +138,8 @@ public class SurfImageSimilarity implements ImageSimilarity
 
         cvReleaseImage(image1Gray);
         cvReleaseImage(image2Gray);
+        storage1.release();
+        storage2.release();
 
         return Math.max(1.0 - percentageOfMatches, 0.0);
     }
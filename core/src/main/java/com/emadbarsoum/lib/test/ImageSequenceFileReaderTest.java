@@ -1,6 +1,7 @@
 package com.emadbarsoum.lib.test;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.lib.AsyncImageSequenceFileReader;
 import com.emadbarsoum.lib.ImageSequenceFileReader;
 import org.apache.hadoop.conf.Configuration;
 
@@ -20,7 +21,7 @@ public class ImageSequenceFileReaderTest
     {
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
-            (parser.getNumberOfArgs() != 2) ||
+            (parser.getNumberOfArgs() < 2)  ||
             !(parser.has("i") && parser.has("o")))
         {
             showUsage();
@@ -32,32 +33,52 @@ public class ImageSequenceFileReaderTest
 
         File inputFile = new File(parser.get("i"));
 
-        ImageSequenceFileReader reader = new ImageSequenceFileReader(conf);
+        if (parser.has("threads"))
+        {
+            AsyncImageSequenceFileReader reader = new AsyncImageSequenceFileReader(conf, parser.getAsInt("threads"));
+            reader.setOrdered(!parser.has("unordered"));
+            reader.open(inputFile.getAbsolutePath());
 
-        reader.open(inputFile.getAbsolutePath());
+            while (reader.next())
+            {
+                writeImage(parser.get("o"), reader.name(), reader.originalExt(), reader.image());
+            }
 
-        while (reader.next())
+            reader.close();
+        }
+        else
         {
-            String outputPath = parser.get("o") + "/" + reader.name() + "." + reader.originalExt();
-            CvMat imageMat = cvEncodeImage("." + reader.originalExt(), reader.image());
+            ImageSequenceFileReader reader = new ImageSequenceFileReader(conf);
+            reader.open(inputFile.getAbsolutePath());
 
-            // Write the result...
-            byte[] data = new byte[imageMat.size()];
-            imageMat.getByteBuffer().get(data);
+            while (reader.next())
+            {
+                writeImage(parser.get("o"), reader.name(), reader.originalExt(), reader.image());
+            }
 
-            DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
-            out.write(data, 0, data.length);
-            out.close();
-
-            cvReleaseMat(imageMat);
+            reader.close();
         }
+    }
+
+    private static void writeImage(String outputFolder, String name, String ext, IplImage image) throws Exception
+    {
+        String outputPath = outputFolder + "/" + name + "." + ext;
+        CvMat imageMat = cvEncodeImage("." + ext, image);
+
+        // Write the result...
+        byte[] data = new byte[imageMat.size()];
+        imageMat.getByteBuffer().get(data);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
+        out.write(data, 0, data.length);
+        out.close();
 
-        reader.close();
+        cvReleaseMat(imageMat);
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: ImageSequenceFileReaderTest -i <input path to sequence file> -o <output folder>");
+        System.out.println("Usage: ImageSequenceFileReaderTest -i <input path to sequence file> -o <output folder> [-threads <number of decoding threads> [-unordered]]");
     }
 }
 
@@ -0,0 +1,146 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+import java.util.InvalidPropertiesFormatException;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageOperatorChain;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * Chain is a Map task that apply a chain of operators, such as "gaussian:size=5|color2gray|thumbnail:size=160",
+ * to all the images in the sequence file. Each image is decoded once, processed in memory by all the
+ * operators, and encoded once, instead of running one job per operator.
+ *
+ * Entry: com.emadbarsoum.map.Chain
+ */
+public class Chain extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Chain.class);
+
+    public static final String OPERATORS = "hvision.chain.ops";
+
+    public static class ChainMapper extends ImageMapper<Writable, BytesWritable>
+    {
+        private ImageOperatorChain chain = null;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            super.setup(context);
+
+            this.chain = new ImageOperatorChain(context.getConfiguration().get(OPERATORS));
+        }
+
+        @Override
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
+        {
+            ImageMetadata metadata = value.metadata();
+
+            IplImage image = value.image();
+            IplImage result = this.chain.apply(image, metadata, this.pool);
+
+            try
+            {
+                // Write the result...
+                byte[] data = this.encoder.encode(result, metadata);
+
+                context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
+            }
+            finally
+            {
+                if (result != image)
+                {
+                    this.pool.release(result);
+                }
+            }
+
+            context.setStatus("Status: map completed");
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.set(OPERATORS, parser.get("ops"));
+
+        ImageEncoder.setFormat(conf, parser);
+
+        Job job = Job.getInstance(conf, "Operator Chain");
+        job.setJarByClass(Chain.class);
+
+        MultithreadedImageMapper.setMapper(job, ChainMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
+        job.setOutputValueClass(BytesWritable.class);
+
+        ImageInputFormat.setInput(job, parser);
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "ops"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !(parser.has(nonOptional)))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        // Fail before submitting the job if the chain is invalid.
+        try
+        {
+            new ImageOperatorChain(parser.get("ops"));
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            System.out.println(e.getMessage());
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Chain(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision chain -i <input path of the sequence file> -o <output path for sequence file> -ops <operator[:name=value,...]|operator...> [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
+        System.out.println("Operators: gaussian:size=3,sigma=1.0 median:size=3 color2gray thumbnail:size=120 erode:shape=rect,size=3,iterations=1 dilate:shape=rect,size=3,iterations=1 morph:op=open,shape=rect,size=3,iterations=1");
+    }
+}
@@ -3,17 +3,22 @@ package com.emadbarsoum.map;
 import java.io.IOException;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
 import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImagePool;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -36,75 +41,34 @@ public class Color2Gray extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Color2Gray.class);
 
-    public static class Color2GrayMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class Color2GrayMapper extends ImageMapper<Writable, BytesWritable>
     {
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-            boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
+            ImageMetadata metadata = value.metadata();
 
-            IplImage image;
-            if (isRaw)
-            {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
-            else
-            {
-                image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
-
-            IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+            IplImage image = value.image();
 
-            // Convert the input image into a gray image.
-            cvCvtColor(image, grayImage, CV_BGR2GRAY);
+            try (ImagePool.Lease grayImage = this.pool.lease(image.width(), image.height(), IPL_DEPTH_8U, 1))
+            {
+                // Convert the input image into a gray image.
+                cvCvtColor(image, grayImage.image(), CV_BGR2GRAY);
 
-            CvMat grayImageMat = cvEncodeImage("." + metadata.get("ext"), grayImage);
+                // Write the result...
+                byte[] data = this.encoder.encode(grayImage.image(), metadata);
 
-            // Write the result...
-            byte[] data = new byte[grayImageMat.size()];
-            grayImageMat.getByteBuffer().get(data);
+                if (metadata.has("channel_count"))
+                {
+                    metadata.put("channel_count", "1");
+                }
 
-            // The result stored as compressed.
-            metadata.remove("type");
-            if (metadata.has("channel_count"))
-            {
-                metadata.put("channel_count", "1");
+                context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
             }
 
-            context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
-
-            cvReleaseMat(grayImageMat);
-            grayImage.release();
             context.setStatus("Status: map completed");
-
-            if (isRaw)
-            {
-                image.release();
-            }
-            else
-            {
-                cvReleaseImage(image);
-            }
         }
     }
 
@@ -115,20 +79,22 @@ public class Color2Gray extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         parser.parse();
 
+        ImageEncoder.setFormat(conf, parser);
+
         Job job = Job.getInstance(conf, "Color2Gray Conversion");
         job.setJarByClass(Color2Gray.class);
 
-        job.setMapperClass(Color2GrayMapper.class);
+        MultithreadedImageMapper.setMapper(job, Color2GrayMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job.setOutputKeyClass(Text.class);
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
         job.setOutputValueClass(BytesWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         boolean ret = job.waitForCompletion(true);
@@ -152,6 +118,6 @@ public class Color2Gray extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision color2gray -i <input path of the sequence file> -o <output path for sequence file>");
+        System.out.println("Usage: hvision color2gray -i <input path of the sequence file> -o <output path for sequence file> [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
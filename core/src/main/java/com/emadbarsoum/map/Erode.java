@@ -3,17 +3,22 @@ package com.emadbarsoum.map;
 import java.io.IOException;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
 import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.Morphology;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -27,7 +32,8 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
 
 /**
- * Erode is a Map task that Erode all the images in the sequence file.
+ * Erode is a Map task that Erode all the images in the sequence file, with a 3x3 rectangle by
+ * default, or the structuring element and number of iterations given in the command line.
  *
  * Entry: com.emadbarsoum.map.Erode
  */
@@ -35,67 +41,33 @@ public class Erode extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Erode.class);
 
-    public static class ErodeMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class ErodeMapper extends ImageMapper<Writable, BytesWritable>
     {
+        private Morphology morphology = null;
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-
-            boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-            IplImage image;
-
-            if (isRaw)
-            {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
+            super.setup(context);
 
-                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
-            else
-            {
-                image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+            this.morphology = Morphology.create(context.getConfiguration(), "erode");
+        }
 
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
+        @Override
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
+        {
+            ImageMetadata metadata = value.metadata();
 
-            cvErode(image, image);
+            IplImage image = value.image();
 
-            CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), image);
+            this.morphology.apply(image, image);
 
             // Write the result...
-            byte[] data = new byte[imageMat.size()];
-            imageMat.getByteBuffer().get(data);
-
-            // The result stored as compressed.
-            metadata.remove("type");
-
-            context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+            byte[] data = this.encoder.encode(image, metadata);
 
-            cvReleaseMat(imageMat);
+            context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
 
             context.setStatus("Status: map completed");
-
-            if (isRaw)
-            {
-                image.release();
-            }
-            else
-            {
-                cvReleaseImage(image);
-            }
         }
     }
 
@@ -106,20 +78,23 @@ public class Erode extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         parser.parse();
 
+        Morphology.setOptions(conf, parser, "erode");
+        ImageEncoder.setFormat(conf, parser);
+
         Job job = Job.getInstance(conf, "Morph Erode");
         job.setJarByClass(Erode.class);
 
-        job.setMapperClass(ErodeMapper.class);
+        MultithreadedImageMapper.setMapper(job, ErodeMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job.setOutputKeyClass(Text.class);
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
         job.setOutputValueClass(BytesWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         boolean ret = job.waitForCompletion(true);
@@ -143,6 +118,6 @@ public class Erode extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision erode -i <input path of the sequence file> -o <output path for sequence file>");
+        System.out.println("Usage: hvision erode -i <input path of the sequence file> -o <output path for sequence file> [-shape <rect, cross or ellipse>] [-size <kernel size>] [-iterations <number of iterations>] [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
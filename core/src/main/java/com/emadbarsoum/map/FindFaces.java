@@ -1,23 +1,26 @@
 package com.emadbarsoum.map;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
 import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
 import com.emadbarsoum.lib.FaceDetection;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.bytedeco.javacpp.BytePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,70 +42,46 @@ public class FindFaces extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(FindFaces.class);
 
-    public static class FindFacesMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class FindFacesMapper extends ImageMapper<Writable, BytesWritable>
     {
+        // Created once per task, so the classifier is loaded once.
+        private FaceDetection detector = null;
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            super.setup(context);
+
+            this.detector = new FaceDetection();
+            this.detector.setModel("faceModelFile");
+            this.detector.setImagePool(this.pool);
+        }
+
+        @Override
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            ImageMetadata metadata = value.metadata();
 
             URI[] uriPaths = context.getCacheFiles();
             if (uriPaths.length > 0)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-                FaceDetection detector = new FaceDetection();
-
-                detector.setModel("faceModelFile");
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+                IplImage image = value.image();
 
                 try
                 {
-                    detector.Detect(image, context);
+                    this.detector.Detect(image, context);
 
-                    if (detector.count() > 0)
+                    if (this.detector.count() > 0)
                     {
-                        CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), detector.getResultImage());
-
                         // Write the result...
-                        byte[] data = new byte[imageMat.size()];
-                        imageMat.getByteBuffer().get(data);
-
-                        // The result stored as compressed.
-                        metadata.remove("type");
+                        byte[] data = this.encoder.encode(this.detector.getResultImage(), metadata);
 
                         // Store face count.
-                        metadata.put("facecount", detector.count());
-
-                        context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+                        metadata.put("facecount", this.detector.count());
 
-                        cvReleaseMat(imageMat);
+                        context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
                     }
                 }
                 catch (Exception e)
@@ -111,17 +90,15 @@ public class FindFaces extends Configured implements Tool
                 }
 
                 context.setStatus("Status: map completed");
-
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
             }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.detector.release();
+            super.cleanup(context);
+        }
     }
 
     @Override
@@ -131,20 +108,22 @@ public class FindFaces extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         parser.parse();
 
+        ImageEncoder.setFormat(conf, parser);
+
         Job job = Job.getInstance(conf, "Find Faces");
         job.setJarByClass(Gaussian.class);
 
-        job.setMapperClass(FindFacesMapper.class);
+        MultithreadedImageMapper.setMapper(job, FindFacesMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job.setOutputKeyClass(Text.class);
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
         job.setOutputValueClass(BytesWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         // Add the model XML file to the distributed cache.
@@ -173,6 +152,6 @@ public class FindFaces extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision findfaces -i <input path of the sequence file> -o <output path for sequence file> -m <model path>");
+        System.out.println("Usage: hvision findfaces -i <input path of the sequence file> -o <output path for sequence file> -m <model path> [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
@@ -3,17 +3,21 @@ package com.emadbarsoum.map;
 import java.io.IOException;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
 import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -35,70 +39,27 @@ public class Median extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Median.class);
 
-    public static class MedianMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class MedianMapper extends ImageMapper<Writable, BytesWritable>
     {
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            ImageMetadata metadata = value.metadata();
 
-            boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
             int size = conf.getInt("size", 3);
-            IplImage image;
-
-            if (isRaw)
-            {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
-            else
-            {
-                image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
 
-            cvSmooth(image, image, CV_MEDIAN, size, 0, 0.0, 0.0);
+            IplImage image = value.image();
 
-            CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), image);
+            cvSmooth(image, image, CV_MEDIAN, size, 0, 0.0, 0.0);
 
             // Write the result...
-            byte[] data = new byte[imageMat.size()];
-            imageMat.getByteBuffer().get(data);
-
-            // The result stored as compressed.
-            metadata.remove("type");
+            byte[] data = this.encoder.encode(image, metadata);
 
-            context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
-
-            cvReleaseMat(imageMat);
+            context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
 
             context.setStatus("Status: map completed");
-
-            if (isRaw)
-            {
-                image.release();
-            }
-            else
-            {
-                cvReleaseImage(image);
-            }
         }
     }
 
@@ -111,20 +72,22 @@ public class Median extends Configured implements Tool
 
         conf.set("size", parser.get("size"));
 
+        ImageEncoder.setFormat(conf, parser);
+
         Job job = Job.getInstance(conf, "Median Blur");
         job.setJarByClass(Median.class);
 
-        job.setMapperClass(MedianMapper.class);
+        MultithreadedImageMapper.setMapper(job, MedianMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job.setOutputKeyClass(Text.class);
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
         job.setOutputValueClass(BytesWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         boolean ret = job.waitForCompletion(true);
@@ -154,6 +117,6 @@ public class Median extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision median -i <input path of the sequence file> -o <output path for sequence file> -size <kernel size>");
+        System.out.println("Usage: hvision median -i <input path of the sequence file> -o <output path for sequence file> -size <kernel size> [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
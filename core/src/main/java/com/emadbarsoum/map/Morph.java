@@ -0,0 +1,125 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.Morphology;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bytedeco.javacv.*;
+import org.bytedeco.javacpp.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Morph is a Map task that apply a morphological operation to all the images in the sequence file,
+ * such as an opening or a top-hat, in a single pass, with the structuring element and number of
+ * iterations given in the command line.
+ *
+ * Entry: com.emadbarsoum.map.Morph
+ */
+public class Morph extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Morph.class);
+
+    public static class MorphMapper extends ImageMapper<Writable, BytesWritable>
+    {
+        private Morphology morphology = null;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            super.setup(context);
+
+            this.morphology = Morphology.create(context.getConfiguration(), "open");
+        }
+
+        @Override
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
+        {
+            ImageMetadata metadata = value.metadata();
+
+            IplImage image = value.image();
+
+            this.morphology.apply(image, image);
+
+            // Write the result...
+            byte[] data = this.encoder.encode(image, metadata);
+
+            context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
+
+            context.setStatus("Status: map completed");
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.set(Morphology.OPERATION, parser.get("op"));
+        Morphology.setOptions(conf, parser, parser.get("op"));
+        ImageEncoder.setFormat(conf, parser);
+
+        Job job = Job.getInstance(conf, "Morph " + parser.get("op"));
+        job.setJarByClass(Morph.class);
+
+        MultithreadedImageMapper.setMapper(job, MorphMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i"))));
+        job.setOutputValueClass(BytesWritable.class);
+
+        ImageInputFormat.setInput(job, parser);
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "op"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !(parser.has(nonOptional)))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Morph(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision morph -i <input path of the sequence file> -o <output path for sequence file> -op <erode, dilate, open, close, gradient, tophat or blackhat> [-shape <rect, cross or ellipse>] [-size <kernel size>] [-iterations <number of iterations>] [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
+    }
+}
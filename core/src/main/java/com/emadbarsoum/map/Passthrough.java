@@ -2,11 +2,12 @@ package com.emadbarsoum.map;
 
 import java.io.IOException;
 
+import com.emadbarsoum.common.Utility;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -23,10 +24,10 @@ import org.apache.hadoop.util.ToolRunner;
  */
 public class Passthrough extends Configured implements Tool
 {
-    public static class PassthroughMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class PassthroughMapper extends Mapper<Writable, BytesWritable, Writable, BytesWritable>
     {
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
         {
             // Write the result...
             context.write(key, new BytesWritable(value.getBytes()));
@@ -48,7 +49,7 @@ public class Passthrough extends Configured implements Tool
         job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job.setOutputKeyClass(Text.class);
+        job.setOutputKeyClass(Utility.getSequenceFileKeyClass(conf, new Path(args[0])));
         job.setOutputValueClass(BytesWritable.class);
 
         FileInputFormat.addInputPath(job, new Path(args[0]));
@@ -0,0 +1,196 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.lib.ImageRecord;
+import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SequenceFileFromImageList is a Map task that convert a list of images into image sequence files,
+ * it is the distributed version of the iseq tool.
+ *
+ * The input is one or more text files with one image per line, the image is a path or URI of any
+ * Hadoop file system (HDFS, a shared local mount...), optionally followed by a tab and additional
+ * metadata such as "label=cat". Each mapper read its images, decode them if raw and write the same
+ * records that ImageSequenceFileWriter does. Images that can't be read are counted and skipped.
+ *
+ * Entry: com.emadbarsoum.map.SequenceFileFromImageList
+ */
+public class SequenceFileFromImageList extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(SequenceFileFromImageList.class);
+
+    public static class SequenceFileFromImageListMapper extends Mapper<LongWritable, Text, Writable, BytesWritable>
+    {
+        // Only used to build the records, nothing is written through it.
+        private ImageSequenceFileWriter recordBuilder;
+
+        @Override
+        protected void setup(Context context)
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.recordBuilder = new ImageSequenceFileWriter(conf, !conf.getBoolean("raw", false) && !conf.getBoolean("rawz", false));
+            this.recordBuilder.setRawz(conf.getBoolean("rawz", false));
+            this.recordBuilder.setBinaryKey(conf.getBoolean("binkey", false));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException,InterruptedException
+        {
+            String line = value.toString().trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                return;
+            }
+
+            String additionMetadata = null;
+            int pos = line.indexOf('\t');
+            if (pos > 0)
+            {
+                additionMetadata = line.substring(pos + 1).trim();
+                line = line.substring(0, pos).trim();
+            }
+
+            Path imagePath = new Path(line);
+            ImageRecord record;
+
+            try
+            {
+                byte[] fileData = readFully(imagePath, context.getConfiguration());
+                record = this.recordBuilder.createRecord(imagePath.getName(), imagePath.toString(), fileData, additionMetadata);
+            }
+            catch (Exception e)
+            {
+                log.warn("Failed to read " + line, e);
+                context.getCounter("HVision", "Failed images").increment(1);
+                return;
+            }
+
+            if (record == null)
+            {
+                context.getCounter("HVision", "Skipped images").increment(1);
+                return;
+            }
+
+            context.write(record.key(), record.value());
+            context.getCounter("HVision", "Images").increment(1);
+            context.progress();
+        }
+
+        private static byte[] readFully(Path path, Configuration conf) throws IOException
+        {
+            FileSystem fs = path.getFileSystem(conf);
+            long length = fs.getFileStatus(path).getLen();
+            if (length > Integer.MAX_VALUE)
+            {
+                throw new IOException(path + " is too large.");
+            }
+
+            byte[] data = new byte[(int)length];
+            FSDataInputStream in = fs.open(path);
+            try
+            {
+                IOUtils.readFully(in, data, 0, data.length);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            return data;
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        boolean binaryKey = parser.has("binkey");
+        conf.setBoolean("raw", parser.has("raw"));
+        conf.setBoolean("rawz", parser.has("rawz"));
+        conf.setBoolean("binkey", binaryKey);
+
+        Job job = Job.getInstance(conf, "Image Sequence File Creation");
+        job.setJarByClass(SequenceFileFromImageList.class);
+
+        MultithreadedImageMapper.setOtherMapper(job, SequenceFileFromImageListMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Each mapper get a fixed number of images from the list.
+        job.setInputFormatClass(NLineInputFormat.class);
+        NLineInputFormat.setNumLinesPerSplit(job, parser.has("lines") ? parser.getAsInt("lines") : 1000);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setOutputKeyClass(binaryKey ? ImageKeyWritable.class : Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+
+        // Same compression options as iseq, the files are uncompressed by default.
+        if (parser.has("compress"))
+        {
+            SequenceFileOutputFormat.setCompressOutput(job, true);
+            SequenceFileOutputFormat.setOutputCompressionType(job, ImageSequenceFileWriter.getCompressionType(parser.get("compress")));
+            if (parser.has("codec"))
+            {
+                SequenceFileOutputFormat.setOutputCompressorClass(job, ImageSequenceFileWriter.getCodec(conf, parser.get("codec")).getClass());
+            }
+        }
+
+        if (parser.has("blocksize"))
+        {
+            job.getConfiguration().setInt("io.seqfile.compress.blocksize", parser.getAsInt("blocksize") * 1024);
+        }
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 2)  ||
+            !(parser.has(nonOptional)))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new SequenceFileFromImageList(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision iseqmr -i <input path of the image list> -o <output path for sequence files> [-raw | -rawz] [-binkey] [-lines <images per mapper>] [-threads <number of map threads>] [-compress <record or block> [-codec <snappy, lz4, deflate, bzip2 or gzip>] [-blocksize <KB>]]");
+    }
+}
@@ -1,20 +1,29 @@
 package com.emadbarsoum.map;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.TreeSet;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoder;
 import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
+import com.emadbarsoum.common.Utility;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImagePool;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -31,89 +40,177 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
  * The output is another sequence file that contains the small files. The size of the thumbnail
  * is input as parameter.
  *
+ * With -sizes, several thumbnail sizes are created from a single decode, as a cascade where each size
+ * is resized from the next larger one, and each size is written to its own folder of the output
+ * through MultipleOutputs, i.e. <output>/160/part-m-00000.
+ *
  * Entry: com.emadbarsoum.map.Thumbnail
  */
 public class Thumbnail extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Thumbnail.class);
 
-    public static class ThumbnailMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class ThumbnailMapper extends ImageMapper<Writable, BytesWritable>
     {
+        // Only set with -sizes, in decreasing order.
+        private int[] sizes = null;
+        private MultipleOutputs<Writable, BytesWritable> outputs = null;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            super.setup(context);
+
+            String sizes = context.getConfiguration().get("sizes");
+            if (sizes != null)
+            {
+                this.sizes = parseSizes(sizes);
+                this.outputs = new MultipleOutputs<Writable, BytesWritable>(context);
+            }
+        }
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
+            if (this.sizes != null)
+            {
+                writeSizes(value);
+                context.setStatus("Status: map completed");
+                return;
+            }
+
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-            boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
+            ImageMetadata metadata = value.metadata();
 
             int size = conf.getInt("size", 120);
-            int w = size;
-            int h = size;
 
-            IplImage sourceImage;
-            if (isRaw)
-            {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                sourceImage = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                    value.getLength(),
-                    width,
-                    height,
-                    channelCount,
-                    depth);
-
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
-            else
+            IplImage sourceImage = value.image();
+            int[] targetSize = thumbnailSize(sourceImage, size);
+
+            try (ImagePool.Lease targetImage = this.pool.lease(targetSize[0], targetSize[1], sourceImage.depth(), sourceImage.nChannels()))
             {
-                sourceImage = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+                cvResize(sourceImage, targetImage.image());
 
-                context.setStatus("Status: Image loaded");
-                context.progress();
-            }
+                // Write the result...
+                byte[] data = this.encoder.encode(targetImage.image(), metadata);
 
-            if (sourceImage.width() > sourceImage.height())
-            {
-                h = (w * sourceImage.height()) / sourceImage.width();
+                context.write(ImageHelper.toKey(metadata), new BytesWritable(data));
             }
-            else
+
+            context.setStatus("Status: map completed");
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.outputs != null)
             {
-                w = (h * sourceImage.width()) / sourceImage.height();
+                this.outputs.close();
+                this.outputs = null;
             }
 
-            IplImage targetImage = IplImage.create(w, h, sourceImage.depth(), sourceImage.nChannels());
+            super.cleanup(context);
+        }
+
+        // Write each size to its own output, each one resized from the previous, larger, one.
+        private void writeSizes(ImageWritable value) throws IOException, InterruptedException
+        {
+            ImageMetadata metadata = value.metadata();
 
-            cvResize(sourceImage, targetImage);
-            CvMat targetImageMat = cvEncodeImage("." + metadata.get("ext"), targetImage);
+            IplImage sourceImage = value.image();
+            IplImage currentImage = sourceImage;
 
-            // Write the result...
-            byte[] data = new byte[targetImageMat.size()];
-            targetImageMat.getByteBuffer().get(data);
+            try
+            {
+                for (int size : this.sizes)
+                {
+                    int[] targetSize = thumbnailSize(sourceImage, size);
+                    IplImage targetImage = this.pool.acquire(targetSize[0], targetSize[1], sourceImage.depth(), sourceImage.nChannels());
 
-            // The result stored as compressed.
-            metadata.remove("type");
+                    // Area interpolation average all the source pixels, which is what a downscale need.
+                    cvResize(currentImage, targetImage, CV_INTER_AREA);
+                    if (currentImage != sourceImage)
+                    {
+                        this.pool.release(currentImage);
+                    }
 
-            context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+                    currentImage = targetImage;
 
-            cvReleaseMat(targetImageMat);
-            targetImage.release();
-            context.setStatus("Status: map completed");
+                    if (metadata.has("width"))
+                    {
+                        metadata.put("width", targetSize[0]);
+                        metadata.put("height", targetSize[1]);
+                    }
 
-            if (isRaw)
+                    byte[] data = this.encoder.encode(currentImage, metadata);
+                    this.outputs.write(namedOutput(size), ImageHelper.toKey(metadata), new BytesWritable(data), size + "/part");
+                }
+            }
+            finally
             {
-                sourceImage.release();
+                if (currentImage != sourceImage)
+                {
+                    this.pool.release(currentImage);
+                }
             }
-            else
+        }
+    }
+
+    // The size of the thumbnail of the image, {width, height}, the largest side being the given size.
+    private static int[] thumbnailSize(IplImage image, int size)
+    {
+        int w = size;
+        int h = size;
+
+        if (image.width() > image.height())
+        {
+            h = Math.max(1, (w * image.height()) / image.width());
+        }
+        else
+        {
+            w = Math.max(1, (h * image.width()) / image.height());
+        }
+
+        return new int[]{w, h};
+    }
+
+    // Parse a comma separated list of sizes, return the distinct sizes in decreasing order.
+    public static int[] parseSizes(String sizes)
+    {
+        TreeSet<Integer> sortedSizes = new TreeSet<Integer>(Collections.reverseOrder());
+        for (String size : sizes.split(","))
+        {
+            if (!size.trim().isEmpty())
             {
-                cvReleaseImage(sourceImage);
+                int value = Integer.parseInt(size.trim());
+                if (value < 1)
+                {
+                    throw new IllegalArgumentException("Invalid thumbnail size: " + value);
+                }
+
+                sortedSizes.add(value);
             }
         }
+
+        if (sortedSizes.isEmpty())
+        {
+            throw new IllegalArgumentException("No thumbnail size.");
+        }
+
+        int[] result = new int[sortedSizes.size()];
+        int i = 0;
+        for (int size : sortedSizes)
+        {
+            result[i++] = size;
+        }
+
+        return result;
+    }
+
+    private static String namedOutput(int size)
+    {
+        return "size" + size;
     }
 
     @Override
@@ -123,22 +220,52 @@ public class Thumbnail extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         parser.parse();
 
-        conf.set("size", parser.get("size"));
+        if (parser.has("sizes"))
+        {
+            conf.set("sizes", parser.get("sizes"));
+        }
+        else
+        {
+            conf.set("size", parser.get("size"));
+        }
+
+        ImageEncoder.setFormat(conf, parser);
 
         Job job = Job.getInstance(conf, "Thumbnail Creation");
         job.setJarByClass(Thumbnail.class);
 
-        job.setMapperClass(ThumbnailMapper.class);
-        job.setNumReduceTasks(0);
+        // Keep the same key type as the input, Text or ImageKeyWritable.
+        Class<?> keyClass = Utility.getSequenceFileKeyClass(conf, new Path(parser.get("i")));
 
-        // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        if (parser.has("sizes"))
+        {
+            // Each map thread would have its own MultipleOutputs, writing the same files.
+            if (parser.has("threads"))
+            {
+                log.warn("-threads isn't supported with -sizes, using a single map thread.");
+            }
+
+            MultithreadedImageMapper.setMapper(job, ThumbnailMapper.class, 1);
+
+            // Only the named outputs are written, so no empty default part files.
+            LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+            for (int size : parseSizes(parser.get("sizes")))
+            {
+                MultipleOutputs.addNamedOutput(job, namedOutput(size), SequenceFileOutputFormat.class, keyClass, BytesWritable.class);
+            }
+        }
+        else
+        {
+            MultithreadedImageMapper.setMapper(job, ThumbnailMapper.class, parser);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        }
 
-        job.setOutputKeyClass(Text.class);
+        job.setNumReduceTasks(0);
+
+        job.setOutputKeyClass(keyClass);
         job.setOutputValueClass(BytesWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         boolean ret = job.waitForCompletion(true);
@@ -147,21 +274,36 @@ public class Thumbnail extends Configured implements Tool
 
     public static void main(String[] args) throws Exception
     {
-        String[] nonOptional = {"i", "o", "size"};
+        String[] nonOptional = {"i", "o"};
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
             (parser.getNumberOfArgs() < 3) ||
-            !(parser.has(nonOptional)))
+            !(parser.has(nonOptional))     ||
+            !(parser.has("size") || parser.has("sizes")))
         {
             showUsage();
             System.exit(2);
         }
 
+        if (parser.has("sizes"))
+        {
+            try
+            {
+                parseSizes(parser.get("sizes"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.out.println(e.getMessage());
+                showUsage();
+                System.exit(2);
+            }
+        }
+
         ToolRunner.run(new Configuration(), new Thumbnail(), args);
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision thumbnail -i <input path of the sequence file> -o <output path for sequence file> -size <resolution>");
+        System.out.println("Usage: hvision thumbnail -i <input path of the sequence file> -o <output path for sequence file> -size <resolution> | -sizes <resolution,resolution,...> [-oformat <same, raw, rawz, jpg, png or webp>] [-quality <JPEG or WebP quality, PNG compression level>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
@@ -1,22 +1,21 @@
 package com.emadbarsoum.mapreduce;
 
 import com.emadbarsoum.common.CommandParser;
-import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
 import com.emadbarsoum.lib.FaceDetection;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,63 +35,47 @@ public class FaceStat extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(FaceStat.class);
 
-    public static class FaceStatMapper extends Mapper<Text, BytesWritable, IntWritable, IntWritable>
+    public static class FaceStatMapper extends ImageMapper<IntWritable, IntWritable>
     {
         private final static IntWritable one = new IntWritable(1);
 
+        // Created once per task, so the classifier is loaded once.
+        private FaceDetection detector = null;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            super.setup(context);
+
+            this.detector = new FaceDetection();
+            this.detector.setModel("faceModelFile");
+            this.detector.setImagePool(this.pool);
+        }
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
             context.setStatus("Status: map started");
 
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            ImageMetadata metadata = value.metadata();
 
             context.setStatus("Status: Metadata parsed");
 
             URI[] uriPaths = context.getCacheFiles();
             if (uriPaths.length > 0)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-                FaceDetection detector = new FaceDetection();
-
-                detector.setModel("faceModelFile");
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+                IplImage image = value.image();
 
                 try
                 {
-                    detector.Detect(image, context);
+                    this.detector.Detect(image, context);
 
                     // Count 0 to 3 people, more than that will be bucket into Crowd.
-                    if (detector.count() < 4)
+                    if (this.detector.count() < 4)
                     {
-                        context.write(new IntWritable(detector.count()), one);
+                        context.write(new IntWritable(this.detector.count()), one);
                     }
                     else
                     {
@@ -105,17 +88,15 @@ public class FaceStat extends Configured implements Tool
                 }
 
                 context.setStatus("Status: map completed");
-
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
             }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.detector.release();
+            super.cleanup(context);
+        }
     }
 
     public static class FaceStatReducer extends Reducer<IntWritable, IntWritable, Text, IntWritable>
@@ -163,19 +144,16 @@ public class FaceStat extends Configured implements Tool
         Job job = Job.getInstance(conf, "Face Stat");
         job.setJarByClass(ImageSearch.class);
 
-        job.setMapperClass(FaceStatMapper.class);
+        MultithreadedImageMapper.setMapper(job, FaceStatMapper.class, parser);
         job.setReducerClass(FaceStatReducer.class);
 
-        // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-
         job.setMapOutputKeyClass(IntWritable.class);
         job.setMapOutputValueClass(IntWritable.class);
 
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(IntWritable.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         // Add the model XML file to the distributed cache.
@@ -204,6 +182,6 @@ public class FaceStat extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision facestat -i <input path of the sequence file> -o <output path for sequence file> -m <model path>");
+        System.out.println("Usage: hvision facestat -i <input path of the sequence file> -o <output path for sequence file> -m <model path> [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
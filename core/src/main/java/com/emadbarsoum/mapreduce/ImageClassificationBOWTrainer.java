@@ -3,15 +3,17 @@ package com.emadbarsoum.mapreduce;
 import com.emadbarsoum.common.*;
 import com.emadbarsoum.lib.BOWCluster;
 import com.emadbarsoum.lib.Tuple;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageMapper;
+import com.emadbarsoum.lib.ImagePool;
+import com.emadbarsoum.lib.ImageWritable;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -44,10 +46,10 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(ImageClassificationBOWTrainer.class);
 
-    public static class ImageClassificationBOWTrainerMapper extends Mapper<Text, BytesWritable, IntWritable, Tuple>
+    public static class ImageClassificationBOWTrainerMapper extends ImageMapper<IntWritable, Tuple>
     {
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
         {
             // Needed for SURF feature.
             Loader.load(opencv_nonfree.class);
@@ -56,8 +58,7 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
 
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            ImageMetadata metadata = value.metadata();
 
             String label = metadata.get("label");
             int labelId = metadata.getAsInt("label_id");
@@ -71,37 +72,23 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
             URI[] uriPaths = context.getCacheFiles();
             if (uriPaths.length > 0)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-
                 bowCluster.load("bowClusterFile");
                 context.setStatus("Status: BOW Cluster loaded");
                 context.progress();
 
-                if (isRaw)
-                {
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(), value.getLength(), metadata);
+                IplImage image = value.image();
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
+                MatData matData;
+                try (ImagePool.Lease grayImage = this.pool.lease(image.width(), image.height(), IPL_DEPTH_8U, 1))
                 {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+                    // Convert the input image into a gray image.
+                    cvCvtColor(image, grayImage.image(), CV_BGR2GRAY);
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
+                    Mat imageMat = new Mat(grayImage.image().asCvMat());
+                    bowCluster.compute(imageMat);
+                    matData = MatData.create(bowCluster.getBowDescriptor());
                 }
 
-                IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
-
-                // Convert the input image into a gray image.
-                cvCvtColor(image, grayImage, CV_BGR2GRAY);
-
-                Mat imageMat = new Mat(grayImage.asCvMat());
-                bowCluster.compute(imageMat);
-                MatData matData = MatData.create(bowCluster.getBowDescriptor());
-
                 context.setStatus("Status: BOW descriptor Computed");
                 context.progress();
 
@@ -135,21 +122,9 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
 
                         context.write(new IntWritable(i), new Tuple(writables));
                     }
-
-                    grayImage.release();
                 }
 
                 context.setStatus("Status: map completed");
-
-                // Releasing the images...
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
             }
         }
     }
@@ -229,11 +204,10 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
         Job job = Job.getInstance(conf, "Image Classification BOW Trainer");
         job.setJarByClass(ImageClassificationBOWTrainer.class);
 
-        job.setMapperClass(ImageClassificationBOWTrainerMapper.class);
+        MultithreadedImageMapper.setMapper(job, ImageClassificationBOWTrainerMapper.class, parser);
         job.setReducerClass(ImageClassificationBOWTrainerReducer.class);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
         job.setMapOutputKeyClass(IntWritable.class);
@@ -242,7 +216,7 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         // Use symbolic link "bowClusterFile" to support different platform formats
@@ -270,7 +244,7 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision icbowtrain -i <input path of the sequence file> -cf <BOW cluster file> -o <output path for the result> [-c <cluster count>]");
+        System.out.println("Usage: hvision icbowtrain -i <input path of the sequence file> -cf <BOW cluster file> -o <output path for the result> [-c <cluster count>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
 
@@ -4,8 +4,7 @@ import java.io.IOException;
 import java.net.URI;
 
 import com.emadbarsoum.common.CommandParser;
-import com.emadbarsoum.common.ImageHelper;
-import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.ImageMetadata;
 import com.emadbarsoum.lib.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -13,11 +12,9 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.partition.InputSampler;
@@ -46,91 +43,76 @@ public class ImageSearchTotalOrder extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(ImageSearchTotalOrder.class);
 
-    public static class ImageSearchTotalOrderMapper extends Mapper<Text, BytesWritable, DoubleWritable, Text>
+    public static class ImageSearchTotalOrderMapper extends ImageMapper<DoubleWritable, Text>
     {
+        // Created once per task, so the query image is loaded once.
+        private ImageSimilarity imageSimilarity = null;
+        private IplImage queryImage = null;
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            context.setStatus("Status: map started");
+            super.setup(context);
 
             Configuration conf = context.getConfiguration();
-            ImageSimilarity imageSimilarity;
             String method = conf.get("method");
 
             if (method.equals("surf"))
             {
                 Loader.load(opencv_nonfree.class);
 
-                imageSimilarity = new SurfImageSimilarity();
+                this.imageSimilarity = new SurfImageSimilarity();
             }
             else
             {
-                imageSimilarity = new HistogramImageSimilarity();
+                this.imageSimilarity = new HistogramImageSimilarity(this.pool);
             }
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-
-            context.setStatus("Status: Metadata parsed");
-
             URI[] uriPaths = context.getCacheFiles();
             if (uriPaths.length > 0)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage queryImage = cvLoadImage("queryImageFile");
-                IplImage image;
+                this.queryImage = cvLoadImage("queryImageFile");
 
-                if (queryImage == null)
+                if (this.queryImage == null)
                 {
                     context.setStatus("Status: Loading Query image failed");
                     throw new NullPointerException();
                 }
 
                 context.setStatus("Status: Query image loaded");
-                context.progress();
+            }
+        }
 
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                            value.getLength(),
-                            width,
-                            height,
-                            channelCount,
-                            depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+        @Override
+        public void map(Writable key, ImageWritable value, Context context) throws IOException,InterruptedException
+        {
+            context.setStatus("Status: map started");
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+            ImageMetadata metadata = value.metadata();
 
-                double distance = imageSimilarity.computeDistance(image, queryImage, context);
-                context.write(new DoubleWritable(distance), key);
+            if (this.queryImage != null)
+            {
+                IplImage image = value.image();
 
-                context.setStatus("Status: map completed");
+                double distance = this.imageSimilarity.computeDistance(image, this.queryImage, context);
+                // The result keeps the metadata as Text, whatever the input key type is.
+                Text result = (key instanceof Text) ? (Text)key : new Text(metadata.toMetadata());
+                context.write(new DoubleWritable(distance), result);
 
-                // Releasing the images...
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
+                context.setStatus("Status: map completed");
+            }
+        }
 
-                cvReleaseImage(queryImage);
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.queryImage != null)
+            {
+                cvReleaseImage(this.queryImage);
+                this.queryImage = null;
             }
+
+            super.cleanup(context);
         }
     }
 
@@ -165,12 +147,11 @@ public class ImageSearchTotalOrder extends Configured implements Tool
         Job job = Job.getInstance(conf, "Image Search Total Order");
         job.setJarByClass(ImageSearchTotalOrder.class);
 
-        job.setMapperClass(ImageSearchTotalOrderMapper.class);
+        MultithreadedImageMapper.setMapper(job, ImageSearchTotalOrderMapper.class, parser);
         job.setReducerClass(ImageSearchTotalOrderReducer.class);
         job.setPartitionerClass(TotalOrderPartitioner.class);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
         job.setMapOutputKeyClass(DoubleWritable.class);
@@ -179,7 +160,7 @@ public class ImageSearchTotalOrder extends Configured implements Tool
         job.setOutputKeyClass(DoubleWritable.class);
         job.setOutputValueClass(Text.class);
 
-        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        ImageInputFormat.setInput(job, parser);
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
         Path partitionFilePath = new Path(new Path(parser.get("p")),
@@ -224,6 +205,6 @@ public class ImageSearchTotalOrder extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision imagesearchtotal -i <input path of the sequence file> -q <query image> -p <folder path of partition file> -o <output path for the result> [-m <hist or surf>]");
+        System.out.println("Usage: hvision imagesearchtotal -i <input path of the sequence file> -q <query image> -p <folder path of partition file> -o <output path for the result> [-m <hist or surf>] [-threads <number of map threads>] [-where <metadata filter>] [-balance [<number of splits>]] [-combine [<split size in MB>]]");
     }
 }
@@ -1,13 +1,13 @@
 package com.emadbarsoum.tools;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageFileWalker;
 import com.emadbarsoum.lib.BOWCluster;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.bytedeco.javacpp.opencv_nonfree;
 
 import java.io.File;
-import java.io.FilenameFilter;
 
 import static org.bytedeco.javacpp.opencv_highgui.*;
 
@@ -42,41 +42,24 @@ public class BOWTrainer
 
         BOWCluster bowCluster = new BOWCluster(clusterCount);
 
-        // Iterate through image files only.
-        FilenameFilter fileNameFilter = new FilenameFilter()
-        {
-            @Override
-            public boolean accept(File dir, String name)
-            {
-                if (name.lastIndexOf('.') > 0)
-                {
-                    int lastIndex = name.lastIndexOf('.');
-                    String str = name.substring(lastIndex).toLowerCase();
-
-                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
-                    {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        };
+        // Stream the images of each sub folder of the input, one folder per label as for iseqlab, the
+        // images at the root of the input aren't used.
+        ImageFileWalker walker = new ImageFileWalker();
+        walker.configure(parser);
 
-        File[] folders = new File(parser.get("i")).listFiles();
-        for (File folder : folders)
+        final BOWCluster cluster = bowCluster;
+        File input = new File(parser.get("i"));
+        for (String folderName : ImageFileWalker.listFolders(input))
         {
-            if (folder.isDirectory() && !folder.isHidden())
+            walker.walk(new File(input, folderName), new ImageFileWalker.Visitor()
             {
-                File[] files = new File(parser.get("i") + "/" + folder.getName()).listFiles(fileNameFilter);
-                for (File file : files)
+                @Override
+                public void visit(File imageFile) throws Exception
                 {
-                    if (file.isFile() && !file.isHidden())
-                    {
-                        Mat imageMat = imread(file.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
-                        bowCluster.add(imageMat);
-                    }
+                    Mat imageMat = imread(imageFile.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
+                    cluster.add(imageMat);
                 }
-            }
+            });
         }
 
         bowCluster.cluster();
@@ -85,6 +68,6 @@ public class BOWTrainer
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision bowtrainer -i <input path to folder of images> -o <output path for model file> -c <number of cluster>");
+        System.out.println("Usage: hvision bowtrainer -i <input path to folder of image folders> -o <output path for model file> -c <number of cluster> [-ext <jpg,jpeg,png>] [-minsize <KB>] [-maxsize <KB>] [-norecurse]");
     }
 }
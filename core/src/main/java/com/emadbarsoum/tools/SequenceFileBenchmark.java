@@ -0,0 +1,191 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageFileWalker;
+import com.emadbarsoum.lib.ImageRecord;
+import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command line tool that write the same sample images into a sequence file with each compression
+ * type and codec, and report the file size and the write and scan throughput of each.
+ *
+ * The throughput is in MB of uncompressed record data per second, reading from the page cache, so it
+ * is the CPU cost of the codec. With -diskrate, the scan throughput is also estimated for a disk or
+ * network that read that many MB per second, which is what matters when the reads are I/O bound.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.SequenceFileBenchmark
+ */
+public class SequenceFileBenchmark
+{
+    private static final String DEFAULT_CODECS = "none,record:deflate,block:deflate,block:snappy,block:lz4,block:bzip2";
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 2)  ||
+            !(parser.has("i") && parser.has("o")))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        final int maxImages = parser.has("max") ? parser.getAsInt("max") : 1000;
+        final int blockSize = parser.has("blocksize") ? parser.getAsInt("blocksize") * 1024 : 0;
+        final double diskRate = parser.has("diskrate") ? parser.getAsDouble("diskrate") : 0;
+        String[] codecs = (parser.has("codecs") ? parser.get("codecs") : DEFAULT_CODECS).split(",");
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        // Build the records once, so only the sequence file itself is measured.
+        final boolean compressed = !parser.has("raw") && !parser.has("rawz");
+        final ImageSequenceFileWriter recordBuilder = new ImageSequenceFileWriter(conf, compressed);
+        recordBuilder.setRawz(parser.has("rawz"));
+        final List<ImageRecord> records = new ArrayList<ImageRecord>();
+        long dataBytes = 0;
+
+        ImageFileWalker walker = new ImageFileWalker();
+        walker.configure(parser);
+        try
+        {
+            walker.walk(new File(parser.get("i")), new ImageFileWalker.Visitor()
+            {
+                @Override
+                public void visit(File imageFile) throws Exception
+                {
+                    if (records.size() >= maxImages)
+                    {
+                        throw new StopException();
+                    }
+
+                    ImageRecord record = recordBuilder.createRecord(imageFile, null);
+                    if (record != null)
+                    {
+                        records.add(record);
+                    }
+                }
+            });
+        }
+        catch (StopException e)
+        {
+            // Enough images.
+        }
+
+        if (records.isEmpty())
+        {
+            System.out.println("No image found in " + parser.get("i"));
+            System.exit(1);
+        }
+
+        for (ImageRecord record : records)
+        {
+            dataBytes += record.value().getLength();
+        }
+
+        System.out.format("%d %s images, %.1f MB of image data.\n",
+            records.size(), compressed ? "compressed" : (parser.has("rawz") ? "rawz" : "raw"), dataBytes / (1024.0 * 1024.0));
+
+        System.out.format("%-16s %10s %8s %12s %12s%s\n", "codec", "size (MB)", "ratio", "write MB/s", "scan MB/s",
+            (diskRate > 0) ? String.format(" %16s", "scan MB/s @ disk") : "");
+
+        Path outputFolder = new Path(new File(parser.get("o")).getAbsolutePath());
+        FileSystem fs = outputFolder.getFileSystem(conf);
+        fs.mkdirs(outputFolder);
+
+        for (String codec : codecs)
+        {
+            Path path = new Path(outputFolder, "bench-" + codec.replace(':', '-'));
+            String[] parts = codec.split(":");
+
+            try
+            {
+                ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+                writer.setCompression(
+                    ImageSequenceFileWriter.getCompressionType(parts[0]),
+                    (parts.length > 1) ? ImageSequenceFileWriter.getCodec(conf, parts[1]) : null);
+                writer.setCompressionBlockSize(blockSize);
+
+                long start = System.nanoTime();
+                writer.create(path.toString());
+                for (ImageRecord record : records)
+                {
+                    writer.append(record);
+                }
+
+                writer.close();
+                double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+                long size = fs.getFileStatus(path).getLen();
+                start = System.nanoTime();
+                scan(conf, path);
+                double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+                double megabytes = dataBytes / (1024.0 * 1024.0);
+                double scanRate = megabytes / scanSeconds;
+                String diskColumn = "";
+                if (diskRate > 0)
+                {
+                    // The scan is limited by either the codec or the time to read the compressed bytes.
+                    double ioRate = diskRate * dataBytes / size;
+                    diskColumn = String.format(" %16.1f", Math.min(scanRate, ioRate));
+                }
+
+                System.out.format("%-16s %10.1f %8.2f %12.1f %12.1f%s\n",
+                    codec,
+                    size / (1024.0 * 1024.0),
+                    (double)dataBytes / size,
+                    megabytes / writeSeconds,
+                    scanRate,
+                    diskColumn);
+            }
+            catch (Exception e)
+            {
+                // Such as a native codec that isn't available on this machine.
+                System.out.format("%-16s skipped: %s\n", codec, e.getMessage());
+            }
+            finally
+            {
+                fs.delete(path, false);
+            }
+        }
+    }
+
+    // Read all the keys and values of the file.
+    private static void scan(Configuration conf, Path path) throws Exception
+    {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+        try
+        {
+            Writable key = (Writable)ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            BytesWritable value = new BytesWritable();
+            while (reader.next(key, value))
+            {
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static class StopException extends Exception
+    {
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision iseqbench -i <input path to folder of sample images> -o <folder for the temporary sequence files> [-raw | -rawz] [-max <number of images>] [-codecs <none,record:deflate,block:snappy,...>] [-blocksize <KB>] [-diskrate <MB/s>] [-ext <jpg,jpeg,png>] [-norecurse]");
+    }
+}
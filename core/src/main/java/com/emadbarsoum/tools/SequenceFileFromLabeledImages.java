@@ -1,12 +1,17 @@
 package com.emadbarsoum.tools;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageFileWalker;
+import com.emadbarsoum.lib.ImageDeduplicator;
 import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import com.emadbarsoum.lib.ParallelImageSequenceFileWriter;
 import org.apache.hadoop.conf.Configuration;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A command line tool that convert all images in a given set of folders into Hadoop sequence file.
@@ -29,8 +34,8 @@ public class SequenceFileFromLabeledImages
             System.exit(2);
         }
 
-        // Should we store the images uncompressed in the sequence file.
-        if (parser.has("raw"))
+        // Should we store the images uncompressed in the sequence file, as is or with a fast lossless codec.
+        if (parser.has("raw") || parser.has("rawz"))
         {
             compressed = false;
         }
@@ -40,66 +45,151 @@ public class SequenceFileFromLabeledImages
 
         File outputFile = new File(parser.get("o"));
 
-        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+        ImageSequenceFileWriter writer;
+        if (parser.has("threads"))
+        {
+            // Read and decode the images on multiple threads, while a single thread write them.
+            ParallelImageSequenceFileWriter parallelWriter = new ParallelImageSequenceFileWriter(conf, compressed, parser.getAsInt("threads"));
+            parallelWriter.setOrdered(parser.has("ordered"));
+            parallelWriter.setSharded(parser.has("shards"));
 
-        writer.create(outputFile.getAbsolutePath());
+            writer = parallelWriter;
+        }
+        else
+        {
+            writer = new ImageSequenceFileWriter(conf, compressed);
+        }
+
+        writer.setRawz(parser.has("rawz"));
+
+        // Store the metadata as binary ImageKeyWritable instead of Text.
+        writer.setBinaryKey(parser.has("binkey"));
 
-        // Iterate through image files only.
-        FilenameFilter fileNameFilter = new FilenameFilter()
+        // Index the images by name, so they can be fetched with ImageStore.
+        writer.setIndexed(parser.has("index"));
+
+        // Compress the records or blocks of records, the files are uncompressed by default.
+        writer.configureCompression(parser);
+
+        // Roll to a new part file after the given size in MB (0 for one block) and/or number of images,
+        // with only -rollcount the parts have no size limit.
+        if (parser.has("roll") || parser.has("rollcount"))
         {
-            @Override
-            public boolean accept(File dir, String name)
-            {
-                if (name.lastIndexOf('.') > 0)
-                {
-                    int lastIndex = name.lastIndexOf('.');
-                    String str = name.substring(lastIndex).toLowerCase();
+            long maxBytes = parser.has("roll") ? parser.getAsInt("roll") * 1024L * 1024L : -1;
+            long maxRecords = parser.has("rollcount") ? parser.getAsInt("rollcount") : 0;
 
-                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
-                    {
-                        return true;
-                    }
-                }
-                return false;
+            writer.setRolling(maxBytes, maxRecords);
+        }
+
+        // Continue an interrupted or previous run, only the new images are added as new parts.
+        if (parser.has("resume"))
+        {
+            if (!writer.isRolling())
+            {
+                writer.setRolling(0, 0);
             }
-        };
 
-        int labelCount = 0;
-        ArrayList<String> labels = new ArrayList<String>();
+            writer.setResume(true);
+        }
 
-        // Folder name are the target label.
-        File[] folders = new File(parser.get("i")).listFiles();
-        for (File folder : folders)
+        // Skip images with the same content, across runs if a store folder is given.
+        ImageDeduplicator deduplicator = null;
+        if (parser.has("dedup") || parser.has("dedupstore"))
         {
-            if (folder.isDirectory() && !folder.isHidden())
-            {
-                labels.add(folder.getName());
+            int expectedImages = parser.has("dedupsize") ? parser.getAsInt("dedupsize") : 10000000;
+            deduplicator = new ImageDeduplicator(conf, parser.has("dedupstore") ? new File(parser.get("dedupstore")).getAbsolutePath() : null, expectedImages);
+            deduplicator.open();
 
-                labelCount++;
-            }
+            writer.setDeduplicator(deduplicator);
+        }
+
+        writer.create(outputFile.getAbsolutePath());
+
+        // Folder name are the target label, the images of a label can be in nested sub folders.
+        final File input = new File(parser.get("i"));
+        boolean isArchive = ImageFileWalker.isArchive(input);
+
+        // For an archive, the labels are the top level folders. Listing them read the archive headers
+        // unless they are given, which avoid decompressing a tar.gz twice.
+        List<String> labels;
+        if (parser.has("labels"))
+        {
+            labels = Arrays.asList(parser.get("labels").split(","));
+        }
+        else if (isArchive)
+        {
+            labels = ImageFileWalker.listArchiveFolders(input);
         }
+        else
+        {
+            labels = ImageFileWalker.listFolders(input);
+        }
+
+        int labelCount = labels.size();
+
+        ImageFileWalker walker = new ImageFileWalker();
+        walker.configure(parser);
 
-        int labelId = 0;
-        for (String folderName : labels)
+        final ImageSequenceFileWriter imageWriter = writer;
+        if (isArchive)
         {
-            File[] files = new File(parser.get("i") + "/" + folderName).listFiles(fileNameFilter);
-            for (File file : files)
+            final Map<String, String> labelMetadata = new HashMap<String, String>();
+            for (int labelId = 0; labelId < labelCount; ++labelId)
             {
-                if (file.isFile() && !file.isHidden())
+                String label = labels.get(labelId);
+                labelMetadata.put(label, "label=" + label + ";label_id=" + labelId + ";label_count=" + labelCount);
+            }
+
+            // Single pass over the archive, the label of an entry is its top level folder.
+            walker.walkArchive(input, 1, new ImageFileWalker.ArchiveVisitor()
+            {
+                @Override
+                public void visit(String entryName, byte[] data) throws Exception
                 {
-                    String metadata = "label=" + folderName + ";label_id=" + labelId + ";label_count=" + labelCount;
-                    writer.append(file, metadata);
+                    String metadata = labelMetadata.get(ImageFileWalker.topFolder(entryName));
+                    if (metadata != null)
+                    {
+                        String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+                        imageWriter.append(fileName, input.getAbsolutePath() + "!/" + entryName, data, metadata);
+                    }
                 }
-            }
+            });
+        }
+        else
+        {
+            int labelId = 0;
+            for (String folderName : labels)
+            {
+                final String metadata = "label=" + folderName + ";label_id=" + labelId + ";label_count=" + labelCount;
+                walker.walk(new File(input, folderName), new ImageFileWalker.Visitor()
+                {
+                    @Override
+                    public void visit(File imageFile) throws Exception
+                    {
+                        imageWriter.append(imageFile, metadata);
+                    }
+                });
 
-            labelId++;
+                labelId++;
+            }
         }
 
         writer.close();
+
+        if (writer.isResume())
+        {
+            System.out.println("Skipped " + writer.skippedCount() + " already ingested images.");
+        }
+
+        if (deduplicator != null)
+        {
+            deduplicator.close();
+            System.out.println("Skipped " + deduplicator.duplicateCount() + " duplicate images.");
+        }
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision iseqlab -i <input path to folder of images> -o <output path for sequence file> [-raw]");
+        System.out.println("Usage: hvision iseqlab -i <input path to folder of images or tar, tar.gz, zip archive> [-labels <label1,label2,...>] -o <output path for sequence file> [-ext <jpg,jpeg,png>] [-minsize <KB>] [-maxsize <KB>] [-norecurse] [-raw | -rawz] [-binkey] [-index] [-roll <part size in MB>] [-rollcount <images per part>] [-resume] [-dedup] [-dedupstore <folder> [-dedupsize <expected images>]] [-compress <record or block> [-codec <snappy, lz4, deflate, bzip2 or gzip>] [-blocksize <KB>]] [-threads <number of threads> [-ordered] [-shards]]");
     }
 }
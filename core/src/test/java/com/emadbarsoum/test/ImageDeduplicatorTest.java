@@ -0,0 +1,130 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.ImageDeduplicator;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Unit test for ImageDeduplicator and its store across runs.
+ */
+public class ImageDeduplicatorTest extends TestCase
+{
+    private Configuration conf;
+    private FileSystem fs;
+    private Path folder;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageDeduplicatorTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageDeduplicatorTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        this.conf = new Configuration();
+        this.fs = FileSystem.getLocal(this.conf);
+        this.folder = new Path(Files.createTempDirectory("dedup").toString());
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        this.fs.delete(this.folder, true);
+    }
+
+    /**
+     */
+    public void testInMemory() throws IOException
+    {
+        ImageDeduplicator deduplicator = new ImageDeduplicator(this.conf);
+        deduplicator.open();
+
+        assertTrue(deduplicator.add(hash(1)));
+        assertTrue(deduplicator.add(hash(2)));
+        assertFalse(deduplicator.add(hash(1)));
+        assertTrue(deduplicator.duplicateCount() == 1);
+
+        deduplicator.close();
+    }
+
+    /**
+     */
+    public void testStoreAcrossRuns() throws IOException
+    {
+        // The Bloom filter of the first run is sized for 1000 hashes, the store outgrows it.
+        for (int run = 0; run < 3; ++run)
+        {
+            ImageDeduplicator deduplicator = new ImageDeduplicator(this.conf, this.folder.toString(), 1000);
+            deduplicator.open();
+
+            for (int i = 0; i < run * 1500; ++i)
+            {
+                assertFalse(deduplicator.add(hash(i)));
+            }
+
+            for (int i = run * 1500; i < (run + 1) * 1500; ++i)
+            {
+                assertTrue(deduplicator.add(hash(i)));
+            }
+
+            assertTrue(deduplicator.duplicateCount() == run * 1500);
+            deduplicator.close();
+        }
+    }
+
+    /**
+     */
+    public void testInterruptedClose() throws IOException
+    {
+        ImageDeduplicator deduplicator = new ImageDeduplicator(this.conf, this.folder.toString(), 1000);
+        deduplicator.open();
+        assertTrue(deduplicator.add(hash(1)));
+        deduplicator.close();
+
+        // A generation that "current" never pointed to, and a run that was never merged.
+        this.fs.mkdirs(new Path(this.folder, "store-1"));
+        this.fs.create(new Path(this.folder, "store-1/bloom"), true).close();
+        this.fs.mkdirs(new Path(this.folder, "hashes.run-0"));
+
+        deduplicator = new ImageDeduplicator(this.conf, this.folder.toString(), 1000);
+        deduplicator.open();
+        assertFalse(deduplicator.add(hash(1)));
+        assertTrue(deduplicator.add(hash(2)));
+        deduplicator.close();
+
+        assertFalse(this.fs.exists(new Path(this.folder, "hashes.run-0")));
+
+        deduplicator = new ImageDeduplicator(this.conf, this.folder.toString(), 1000);
+        deduplicator.open();
+        assertFalse(deduplicator.add(hash(1)));
+        assertFalse(deduplicator.add(hash(2)));
+        deduplicator.close();
+    }
+
+    private static String hash(int value)
+    {
+        byte[] data = ByteBuffer.allocate(4).putInt(value).array();
+        return ImageDeduplicator.hash(data, data.length);
+    }
+}
@@ -0,0 +1,143 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.ImageKeyWritable;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.IOException;
+import java.util.InvalidPropertiesFormatException;
+
+/**
+ * Unit test for ImageKeyWritable.
+ */
+public class ImageKeyWritableTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageKeyWritableTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageKeyWritableTest.class);
+    }
+
+    /**
+     */
+    public void testFixedFields() throws InvalidPropertiesFormatException
+    {
+        ImageKeyWritable key = new ImageKeyWritable("name=cat;ext=jpg;type=raw;width=640;height=480;channel_count=3;depth=8;label=animal");
+
+        assertTrue(key.isRaw());
+        assertTrue(key.getWidth() == 640);
+        assertTrue(key.getHeight() == 480);
+        assertTrue(key.getAsInt("channel_count") == 3);
+        assertTrue(key.get("name").equals("cat"));
+        assertTrue(key.get("label").equals("animal"));
+
+        key.remove("type");
+        assertFalse(key.has("type"));
+        assertFalse(key.isRaw());
+    }
+
+    /**
+     */
+    public void testSerialization() throws IOException
+    {
+        ImageKeyWritable key1 = new ImageKeyWritable("name=cat;ext=png;label=animal;path=/tmp/cat.png");
+        ImageKeyWritable key2 = new ImageKeyWritable();
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        key1.write(out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        key2.readFields(in);
+
+        assertTrue(key1.equals(key2));
+        assertTrue(key2.get("path").equals("/tmp/cat.png"));
+        assertTrue(key2.toMetadata().equals(key1.toMetadata()));
+    }
+
+    /**
+     */
+    public void testRawComparator() throws IOException
+    {
+        ImageKeyWritable key1 = new ImageKeyWritable("name=apple;ext=jpg");
+        ImageKeyWritable key2 = new ImageKeyWritable("name=banana;ext=jpg");
+
+        DataOutputBuffer out1 = new DataOutputBuffer();
+        DataOutputBuffer out2 = new DataOutputBuffer();
+        key1.write(out1);
+        key2.write(out2);
+
+        WritableComparator comparator = WritableComparator.get(ImageKeyWritable.class);
+        int rawResult = comparator.compare(out1.getData(), 0, out1.getLength(), out2.getData(), 0, out2.getLength());
+
+        assertTrue(rawResult < 0);
+        assertTrue(key1.compareTo(key2) < 0);
+    }
+
+    /**
+     */
+    public void testTrailingSeparators() throws InvalidPropertiesFormatException
+    {
+        ImageKeyWritable key = new ImageKeyWritable("a=b=");
+        assertTrue(key.get("a").equals("b"));
+
+        key = new ImageKeyWritable("name=cat;label=animal=;;");
+        assertTrue(key.get("name").equals("cat"));
+        assertTrue(key.get("label").equals("animal"));
+
+        key = new ImageKeyWritable("x=1;;");
+        assertTrue(key.get("x").equals("1"));
+        assertTrue(key.toMetadata().equals("x=1"));
+    }
+
+    /**
+     */
+    public void testInvalidMetadata()
+    {
+        try
+        {
+            new ImageKeyWritable("x;y=2");
+            assertTrue(false);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(true);
+        }
+
+        try
+        {
+            new ImageKeyWritable("a=;b=1");
+            assertTrue(false);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(true);
+        }
+
+        try
+        {
+            new ImageKeyWritable("a=1;;b=2");
+            assertTrue(false);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(true);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.ImageManifest;
+import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for ImageManifest and resuming a rolling output.
+ */
+public class ImageManifestTest extends TestCase
+{
+    private Configuration conf;
+    private FileSystem fs;
+    private Path folder;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageManifestTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageManifestTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        this.conf = new Configuration();
+        this.fs = FileSystem.getLocal(this.conf);
+        this.folder = new Path(Files.createTempDirectory("manifest").toString());
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        this.fs.delete(this.folder, true);
+    }
+
+    /**
+     */
+    public void testWriteRead() throws IOException
+    {
+        ImageManifest manifest = new ImageManifest();
+        manifest.add(new ImageManifest.Part("part-00000", 10, 1000, "cat", "dog"));
+        manifest.add(new ImageManifest.Part("part-00001", 2, 200, null, null));
+        manifest.write(this.fs, this.folder);
+
+        // Written again over the previous one.
+        manifest.add(new ImageManifest.Part("part-00002", 1, 100, "fox", "fox"));
+        manifest.write(this.fs, this.folder);
+
+        assertTrue(ImageManifest.exists(this.fs, this.folder));
+
+        List<ImageManifest.Part> parts = ImageManifest.read(this.fs, this.folder).parts();
+        assertTrue(parts.size() == 3);
+        assertTrue(parts.get(0).getName().equals("part-00000"));
+        assertTrue(parts.get(0).getRecords() == 10);
+        assertTrue(parts.get(0).getBytes() == 1000);
+        assertTrue(parts.get(0).getFirstName().equals("cat"));
+        assertTrue(parts.get(0).getLastName().equals("dog"));
+        assertTrue(parts.get(1).getFirstName() == null);
+        assertTrue(parts.get(1).getLastName() == null);
+        assertTrue(parts.get(2).getName().equals("part-00002"));
+
+        assertTrue(parts.get(0).mayContain("cow"));
+        assertFalse(parts.get(0).mayContain("eel"));
+        assertTrue(parts.get(1).mayContain("eel"));
+    }
+
+    /**
+     */
+    public void testTempManifest() throws IOException
+    {
+        ImageManifest manifest = new ImageManifest();
+        manifest.add(new ImageManifest.Part("part-00000", 10, 1000, "cat", "dog"));
+        manifest.write(this.fs, this.folder);
+
+        // Only the complete temporary manifest left, as after a crash in the middle of a rename.
+        Path path = new Path(this.folder, ImageManifest.FILE_NAME);
+        Path tempPath = new Path(this.folder, ImageManifest.FILE_NAME + ".tmp");
+        assertTrue(this.fs.rename(path, tempPath));
+
+        assertTrue(ImageManifest.exists(this.fs, this.folder));
+        assertTrue(ImageManifest.read(this.fs, this.folder).parts().size() == 1);
+
+        // Crash while writing the temporary manifest.
+        writeFile(tempPath, "# part\trecords\tbytes\tfirst name\tlast name\npart-00000\t10\t10");
+        assertFalse(ImageManifest.exists(this.fs, this.folder));
+    }
+
+    /**
+     */
+    public void testPartOf()
+    {
+        assertTrue(ImageManifest.partOf("part-00001").equals("part-00001"));
+        assertTrue(ImageManifest.partOf(".part-00001.crc").equals("part-00001"));
+        assertTrue(ImageManifest.partOf("_part-00001.index").equals("part-00001"));
+        assertTrue(ImageManifest.partOf(ImageManifest.FILE_NAME) == null);
+        assertTrue(ImageManifest.partOf(ImageManifest.FILE_NAME + ".tmp") == null);
+    }
+
+    /**
+     */
+    public void testCheckpoint() throws IOException
+    {
+        ImageManifest.writeCheckpoint(this.fs, this.folder, "part-00000", Arrays.asList("/a/cat.jpg", "/a/dog.jpg"));
+
+        List<String> inputs = new ArrayList<String>();
+        ImageManifest.readCheckpoint(this.fs, this.folder, "part-00000", inputs);
+        ImageManifest.readCheckpoint(this.fs, this.folder, "part-00001", inputs);
+
+        assertTrue(inputs.equals(Arrays.asList("/a/cat.jpg", "/a/dog.jpg")));
+    }
+
+    /**
+     */
+    public void testResumeWithoutManifest() throws Exception
+    {
+        Path part = new Path(this.folder, "part-00000");
+        writeFile(part, "data");
+
+        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(this.conf, false);
+        writer.setRolling(-1, 10);
+        writer.setResume(true);
+
+        try
+        {
+            writer.create(this.folder.toString());
+            assertTrue(false);
+        }
+        catch (IOException e)
+        {
+            assertTrue(true);
+        }
+
+        assertTrue(this.fs.exists(part));
+    }
+
+    private void writeFile(Path path, String content) throws IOException
+    {
+        FSDataOutputStream out = this.fs.create(path, true);
+        try
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
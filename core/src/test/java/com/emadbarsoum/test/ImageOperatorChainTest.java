@@ -0,0 +1,65 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.ImageOperatorChain;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.InvalidPropertiesFormatException;
+
+/**
+ * Unit test for ImageOperatorChain.
+ */
+public class ImageOperatorChainTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageOperatorChainTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageOperatorChainTest.class);
+    }
+
+    /**
+     */
+    public void testParseChain() throws InvalidPropertiesFormatException
+    {
+        ImageOperatorChain chain = new ImageOperatorChain("gaussian:size=5,sigma=1.2| color2gray |thumbnail:size=160");
+
+        assertEquals(3, chain.size());
+        assertEquals(Arrays.asList("gaussian", "color2gray", "thumbnail"), chain.names());
+
+        chain = new ImageOperatorChain("morph:op=tophat,size=31|erode:shape=ellipse,size=5");
+        assertEquals(Arrays.asList("morph", "erode"), chain.names());
+    }
+
+    /**
+     */
+    public void testInvalidChain()
+    {
+        String[] invalidChains = {"", "|", "blur", "gaussian:size", "gaussian:size=4", "median:size=x", "thumbnail:width=10", "erode:shape=disk", "morph:op=thin", "dilate:size=4"};
+
+        for (String invalidChain : invalidChains)
+        {
+            try
+            {
+                new ImageOperatorChain(invalidChain);
+                fail("Expected an exception for: " + invalidChain);
+            }
+            catch (InvalidPropertiesFormatException e)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.MetadataFilter;
+import com.emadbarsoum.common.MetadataParser;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.InvalidPropertiesFormatException;
+
+/**
+ * Unit test for MetadataFilter.
+ */
+public class MetadataFilterTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MetadataFilterTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(MetadataFilterTest.class);
+    }
+
+    /**
+     */
+    public void testMatchingFilter() throws InvalidPropertiesFormatException
+    {
+        MetadataParser metadata = new MetadataParser("name=a;label=cat;width=800;height=600");
+        metadata.parse();
+
+        assertTrue(new MetadataFilter("label=cat").matches(metadata));
+        assertTrue(new MetadataFilter("label=cat;width>=640").matches(metadata));
+        assertTrue(new MetadataFilter("width>640;height<=600;label!=dog").matches(metadata));
+        assertTrue(new MetadataFilter(" width = 800.0 ").matches(metadata));
+    }
+
+    /**
+     */
+    public void testRejectingFilter() throws InvalidPropertiesFormatException
+    {
+        MetadataParser metadata = new MetadataParser("name=a;label=cat;width=320;height=240");
+        metadata.parse();
+
+        assertFalse(new MetadataFilter("label=dog").matches(metadata));
+        assertFalse(new MetadataFilter("label=cat;width>=640").matches(metadata));
+        assertFalse(new MetadataFilter("height<240").matches(metadata));
+    }
+
+    /**
+     */
+    public void testNumericComparison() throws InvalidPropertiesFormatException
+    {
+        MetadataParser metadata = new MetadataParser("width=90");
+        metadata.parse();
+
+        // As strings "90" > "100", as numbers it isn't.
+        assertTrue(new MetadataFilter("width<100").matches(metadata));
+    }
+
+    /**
+     */
+    public void testMissingName() throws InvalidPropertiesFormatException
+    {
+        MetadataParser metadata = new MetadataParser("name=a");
+        metadata.parse();
+
+        assertFalse(new MetadataFilter("label=cat").matches(metadata));
+        assertTrue(new MetadataFilter("label!=cat").matches(metadata));
+    }
+
+    /**
+     */
+    public void testProbedImageSize() throws InvalidPropertiesFormatException
+    {
+        // A compressed image, its size comes from its header.
+        MetadataParser metadata = new MetadataParser("name=a;label=cat;ext=jpg");
+        metadata.parse();
+
+        MetadataFilter filter = new MetadataFilter("label=cat;width>=640");
+        assertTrue(filter.needsImageSize(metadata));
+        assertTrue(filter.matches(metadata, new int[]{800, 600}));
+        assertFalse(filter.matches(metadata, new int[]{320, 240}));
+        assertFalse(filter.matches(metadata, null));
+        assertFalse(new MetadataFilter("label=dog;height<1000").matches(metadata, new int[]{800, 600}));
+
+        // The metadata wins over the probed size.
+        MetadataParser raw = new MetadataParser("name=a;width=320;height=240");
+        raw.parse();
+        assertFalse(filter.needsImageSize(raw));
+        assertFalse(new MetadataFilter("width>=640").matches(raw, new int[]{800, 600}));
+        assertFalse(new MetadataFilter("label=cat").needsImageSize(metadata));
+    }
+
+    /**
+     */
+    public void testInvalidFilter()
+    {
+        String[] filters = {"", "label", "=cat", "label!cat"};
+        for (String filter : filters)
+        {
+            try
+            {
+                new MetadataFilter(filter);
+                fail("Expected an exception for: " + filter);
+            }
+            catch (InvalidPropertiesFormatException e)
+            {
+            }
+        }
+    }
+}
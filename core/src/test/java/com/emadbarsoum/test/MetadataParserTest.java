@@ -4,6 +4,7 @@ import com.emadbarsoum.common.MetadataParser;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.hadoop.io.Text;
 
 import java.util.InvalidPropertiesFormatException;
 
@@ -168,4 +169,105 @@ public class MetadataParserTest extends TestCase
             assertTrue(true);
         }
     }
+
+    /**
+     */
+    public void testTrailingSeparatorMetadata()
+    {
+        MetadataParser parser = new MetadataParser("a=b=;x=1");
+
+        try
+        {
+            parser.parse();
+
+            assertTrue(parser.get("a").equals("b"));
+            assertTrue(parser.getAsInt("x") == 1);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(false);
+        }
+
+        try
+        {
+            new MetadataParser("a=;x=1").parse();
+            assertTrue(false);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(true);
+        }
+
+        try
+        {
+            new MetadataParser("a=b=c").parse();
+            assertTrue(false);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(true);
+        }
+    }
+
+    /**
+     */
+    public void testReuseWithText()
+    {
+        MetadataParser parser = new MetadataParser();
+        Text key = new Text("name=cat;width=640;height=-480");
+
+        try
+        {
+            parser.reset(key);
+            parser.parse();
+
+            assertTrue(parser.get("name").equals("cat"));
+            assertTrue(parser.getAsInt("width") == 640);
+            assertTrue(parser.getAsInt("height") == -480);
+
+            key.set("name=dog;width=32");
+            parser.reset(key);
+            parser.parse();
+
+            assertTrue(parser.get("name").equals("dog"));
+            assertTrue(parser.getAsInt("width") == 32);
+            assertFalse(parser.has("height"));
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(false);
+        }
+    }
+
+    /**
+     */
+    public void testWriteToText()
+    {
+        MetadataParser parser = new MetadataParser(new Text("x=1;type=raw;y=2;x=3"));
+
+        try
+        {
+            parser.parse();
+
+            assertTrue(parser.get("x").equals("3"));
+
+            parser.remove("type");
+            parser.put("z", 4);
+
+            Text output = new Text();
+            parser.writeTo(output);
+
+            MetadataParser result = new MetadataParser(output);
+            result.parse();
+
+            assertFalse(result.has("type"));
+            assertTrue(result.getAsInt("x") == 3);
+            assertTrue(result.getAsInt("y") == 2);
+            assertTrue(result.getAsInt("z") == 4);
+        }
+        catch (InvalidPropertiesFormatException e)
+        {
+            assertTrue(false);
+        }
+    }
 }
@@ -0,0 +1,192 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.Morphology;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Unit test for Morphology, the van Herk/Gil-Werman rectangles against OpenCV.
+ */
+public class MorphologyTest extends TestCase
+{
+    // Kernel size and iterations, all of them fold into a rectangle of at least 9 so that the van Herk path is used.
+    private static final int[][] KERNELS = {{9, 1}, {5, 2}, {3, 5}, {7, 3}};
+
+    // Heights that aren't a multiple of the folded sizes, and an image narrower than the kernel.
+    private static final int[][] SIZES = {{37, 23}, {64, 31}, {5, 40}};
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MorphologyTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(MorphologyTest.class);
+    }
+
+    /**
+     */
+    public void testRectGray()
+    {
+        compareWithOpenCV(1);
+    }
+
+    /**
+     */
+    public void testRectColor()
+    {
+        compareWithOpenCV(3);
+    }
+
+    /**
+     */
+    public void testInPlace()
+    {
+        Random random = new Random(11);
+        IplImage image = createRandomImage(37, 23, 3, random);
+        IplImage expected = cvCreateImage(cvSize(37, 23), IPL_DEPTH_8U, 3);
+
+        try
+        {
+            openCV("close", 5, 2, image, expected);
+            new Morphology("close", "rect", 5, 2).apply(image, image);
+
+            assertSamePixels(expected, image, "close in place");
+        }
+        finally
+        {
+            cvReleaseImage(image);
+            cvReleaseImage(expected);
+        }
+    }
+
+    private void compareWithOpenCV(int channelCount)
+    {
+        Random random = new Random(channelCount);
+
+        // The same morphologies for all the sizes, so that their buffers are reused for smaller and larger images.
+        Morphology[][] morphologies = new Morphology[KERNELS.length][Morphology.OPERATIONS.length];
+        for (int k = 0; k < KERNELS.length; ++k)
+        {
+            for (int o = 0; o < Morphology.OPERATIONS.length; ++o)
+            {
+                morphologies[k][o] = new Morphology(Morphology.OPERATIONS[o], "rect", KERNELS[k][0], KERNELS[k][1]);
+            }
+        }
+
+        for (int[] size : SIZES)
+        {
+            IplImage image = createRandomImage(size[0], size[1], channelCount, random);
+            IplImage expected = cvCreateImage(cvSize(size[0], size[1]), IPL_DEPTH_8U, channelCount);
+            IplImage actual = cvCreateImage(cvSize(size[0], size[1]), IPL_DEPTH_8U, channelCount);
+
+            try
+            {
+                for (int k = 0; k < KERNELS.length; ++k)
+                {
+                    int[] kernel = KERNELS[k];
+                    for (int o = 0; o < Morphology.OPERATIONS.length; ++o)
+                    {
+                        String operation = Morphology.OPERATIONS[o];
+
+                        openCV(operation, kernel[0], kernel[1], image, expected);
+                        morphologies[k][o].apply(image, actual);
+
+                        assertSamePixels(expected, actual,
+                            operation + " " + kernel[0] + "x" + kernel[0] + " * " + kernel[1] +
+                            " on " + size[0] + "x" + size[1] + "x" + channelCount);
+                    }
+                }
+            }
+            finally
+            {
+                cvReleaseImage(image);
+                cvReleaseImage(expected);
+                cvReleaseImage(actual);
+            }
+        }
+    }
+
+    // The reference result, straight from OpenCV with a rect element.
+    private static void openCV(String operation, int size, int iterations, IplImage src, IplImage dst)
+    {
+        IplConvKernel element = cvCreateStructuringElementEx(size, size, size / 2, size / 2, CV_SHAPE_RECT, (int[])null);
+
+        try
+        {
+            switch (operation)
+            {
+                case "erode":
+                    cvErode(src, dst, element, iterations);
+                    break;
+                case "dilate":
+                    cvDilate(src, dst, element, iterations);
+                    break;
+                case "open":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_OPEN, iterations);
+                    break;
+                case "close":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_CLOSE, iterations);
+                    break;
+                case "gradient":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_GRADIENT, iterations);
+                    break;
+                case "tophat":
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_TOPHAT, iterations);
+                    break;
+                default:
+                    cvMorphologyEx(src, dst, null, element, CV_MOP_BLACKHAT, iterations);
+                    break;
+            }
+        }
+        finally
+        {
+            cvReleaseStructuringElement(element);
+        }
+    }
+
+    private static IplImage createRandomImage(int width, int height, int channelCount, Random random)
+    {
+        IplImage image = cvCreateImage(cvSize(width, height), IPL_DEPTH_8U, channelCount);
+
+        byte[] pixels = new byte[image.imageSize()];
+        random.nextBytes(pixels);
+        image.getByteBuffer().put(pixels);
+
+        return image;
+    }
+
+    // Compare the rows of both images, without their widthStep padding.
+    private static void assertSamePixels(IplImage expected, IplImage actual, String message)
+    {
+        int rowSize = expected.width() * expected.nChannels();
+        ByteBuffer expectedBuffer = expected.getByteBuffer();
+        ByteBuffer actualBuffer = actual.getByteBuffer();
+
+        for (int y = 0; y < expected.height(); ++y)
+        {
+            for (int i = 0; i < rowSize; ++i)
+            {
+                assertEquals(message + " at " + i + "," + y,
+                    expectedBuffer.get(y * expected.widthStep() + i),
+                    actualBuffer.get(y * actual.widthStep() + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.RawImageCodec;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Unit test for RawImageCodec.
+ */
+public class RawImageCodecTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RawImageCodecTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(RawImageCodecTest.class);
+    }
+
+    /**
+     */
+    public void testRoundTrip()
+    {
+        RawImageCodec codec = new RawImageCodec();
+        Random random = new Random(7);
+
+        // A width of 33 pads the rows of every type to a multiple of 4 bytes.
+        int[] depths = {IPL_DEPTH_8U, IPL_DEPTH_16U};
+        int[] channelCounts = {1, 3};
+
+        try
+        {
+            for (int depth : depths)
+            {
+                for (int channelCount : channelCounts)
+                {
+                    IplImage image = cvCreateImage(cvSize(33, 17), depth, channelCount);
+                    IplImage result = cvCreateImage(cvSize(33, 17), depth, channelCount);
+
+                    try
+                    {
+                        byte[] pixels = new byte[image.imageSize()];
+                        random.nextBytes(pixels);
+                        image.getByteBuffer().put(pixels);
+                        result.getByteBuffer().put(new byte[result.imageSize()]);
+
+                        // The same codec is reused, as the writer and the decoder do.
+                        for (int i = 0; i < 2; ++i)
+                        {
+                            byte[] data = codec.encode(image);
+                            codec.decode(data, data.length, result);
+
+                            assertSamePixels(image, result);
+                        }
+                    }
+                    finally
+                    {
+                        cvReleaseImage(image);
+                        cvReleaseImage(result);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            codec.end();
+        }
+    }
+
+    /**
+     */
+    public void testCompressGradient()
+    {
+        RawImageCodec codec = new RawImageCodec();
+        IplImage image = cvCreateImage(cvSize(256, 64), IPL_DEPTH_8U, 3);
+
+        try
+        {
+            ByteBuffer buffer = image.getByteBuffer();
+            for (int y = 0; y < image.height(); ++y)
+            {
+                for (int x = 0; x < image.width() * 3; ++x)
+                {
+                    buffer.put(y * image.widthStep() + x, (byte)(x / 3 + y));
+                }
+            }
+
+            byte[] data = codec.encode(image);
+            assertTrue(data.length < image.imageSize() / 10);
+        }
+        finally
+        {
+            cvReleaseImage(image);
+            codec.end();
+        }
+    }
+
+    /**
+     */
+    public void testInvalidData()
+    {
+        RawImageCodec codec = new RawImageCodec();
+        IplImage image = cvCreateImage(cvSize(16, 16), IPL_DEPTH_8U, 1);
+        IplImage other = cvCreateImage(cvSize(16, 17), IPL_DEPTH_8U, 1);
+
+        try
+        {
+            byte[] data = codec.encode(image);
+            codec.decode(data, data.length, other);
+            fail("Expected an exception for data of another size.");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+        finally
+        {
+            cvReleaseImage(image);
+            cvReleaseImage(other);
+            codec.end();
+        }
+    }
+
+    // Compare the rows of both images, without their widthStep padding.
+    private static void assertSamePixels(IplImage expected, IplImage actual)
+    {
+        int rowSize = expected.width() * expected.nChannels() * ((expected.depth() & 255) / 8);
+        ByteBuffer expectedBuffer = expected.getByteBuffer();
+        ByteBuffer actualBuffer = actual.getByteBuffer();
+
+        assertTrue(rowSize < expected.widthStep());
+
+        for (int y = 0; y < expected.height(); ++y)
+        {
+            for (int i = 0; i < rowSize; ++i)
+            {
+                assertEquals(expectedBuffer.get(y * expected.widthStep() + i), actualBuffer.get(y * actual.widthStep() + i));
+            }
+        }
+    }
+}